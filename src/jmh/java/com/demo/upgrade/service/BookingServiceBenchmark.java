@@ -0,0 +1,149 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationNights;
+import com.demo.upgrade.repository.ArchivedReservationRepository;
+import com.demo.upgrade.repository.ReservationRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Availability hot paths of {@link BookingServiceImpl} over a fake repository. Run with
+ * mvn -Pbenchmark test-compile exec:exec; the gc profiler reports gc.alloc.rate.norm per call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BookingServiceBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    private int reservationCount;
+
+    /**
+     * 120 reaches past the 64 days of the occupancy index, so status calls take the fallback path and
+     * count the nights of every reservation the repository returns; that is where reservationCount shows.
+     */
+    @Param({"7", "30", "120"})
+    private int rangeDays;
+
+    /**
+     * Share of reservations that fall inside the bookable month; the rest are spread over the past three years.
+     */
+    @Param({"0.1", "1.0"})
+    private double overlapDensity;
+
+    @Param({"true", "false"})
+    private boolean statusCached;
+
+    private BookingServiceImpl bookingService;
+
+    private List<ReservationNights> overlapping;
+
+    private LocalDate start;
+
+    private LocalDate end;
+
+    private long id;
+
+    @Setup
+    public void setUp() {
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+        Random random = new Random(42);
+        List<ReservationNights> all = new ArrayList<>(reservationCount);
+        for (int i = 0; i < reservationCount; i++) {
+            LocalDate first = random.nextDouble() < overlapDensity
+                    ? tomorrow.plusDays(random.nextInt(28))
+                    : tomorrow.minusDays(1 + random.nextInt(3 * 365));
+            all.add(new ReservationNights(i, first, first.plusDays(1 + random.nextInt(3))));
+        }
+
+        // results are kept per range, so the fallback path is measured rather than this scan; callers get a copy they may change
+        Map<List<LocalDate>, List<ReservationNights>> results = new ConcurrentHashMap<>();
+        ReservationRepository repository = (ReservationRepository) Proxy.newProxyInstance(
+                ReservationRepository.class.getClassLoader(), new Class<?>[]{ReservationRepository.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("findOccupancy") && !method.getName().equals("findSiteOccupancy")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    LocalDate from = (LocalDate) args[args.length - 2];
+                    LocalDate to = (LocalDate) args[args.length - 1];
+                    return new ArrayList<>(results.computeIfAbsent(List.of(from, to), range -> {
+                        List<ReservationNights> result = new ArrayList<>();
+                        for (ReservationNights res : all) {
+                            if (!res.getEndDate().isBefore(from) && !res.getStartDate().isAfter(to)) {
+                                result.add(res);
+                            }
+                        }
+                        return result;
+                    }));
+                });
+
+        Sites sites = new Sites(new MockEnvironment().withProperty("upgrade.reservation.size", "3"));
+        OccupancyIndex occupancyIndex = new OccupancyIndex(repository, sites);
+        ReflectionTestUtils.setField(occupancyIndex, "days", 64);
+        occupancyIndex.rebuild();
+        StatusCache statusCache = new StatusCache(occupancyIndex, sites, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(statusCache, "maxSize", statusCached ? 256 : 0);
+        statusCache.init();
+        // lookups by id are not measured, so the history table is never reached
+        ArchivedReservationRepository archivedRepository = (ArchivedReservationRepository) Proxy.newProxyInstance(
+                ArchivedReservationRepository.class.getClassLoader(), new Class<?>[]{ArchivedReservationRepository.class},
+                (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        // upgrade.inventory.enabled is off, so the night inventory never touches its JdbcTemplate
+        NightInventory nightInventory = new NightInventory(null, sites, null, new SimpleMeterRegistry());
+        bookingService = new BookingServiceImpl(repository, archivedRepository, occupancyIndex, statusCache, sites, nightInventory);
+
+        start = tomorrow;
+        end = tomorrow.plusDays(rangeDays);
+        overlapping = repository.findOccupancy(start, end);
+        id = overlapping.isEmpty() ? 0 : overlapping.get(0).getId();
+    }
+
+    @Benchmark
+    public List<String> getAvaliableDays() {
+        return bookingService.getAvaliableDays(Reservation.DEFAULT_SITE, start, end);
+    }
+
+    @Benchmark
+    public int[] getRemainingCapacity() {
+        return bookingService.getRemainingCapacity(Reservation.DEFAULT_SITE, start, end);
+    }
+
+    @Benchmark
+    public Boolean isAvaliable() {
+        return bookingService.isAvaliable(Reservation.DEFAULT_SITE, start, start.plusDays(3), null);
+    }
+
+    @Benchmark
+    public Boolean isAvaliableExcludingId() {
+        return bookingService.isAvaliable(Reservation.DEFAULT_SITE, start, start.plusDays(3), id);
+    }
+
+    @Benchmark
+    public Map<String, Integer> getBookedMap() {
+        return bookingService.getBookedMap(overlapping);
+    }
+
+    @Benchmark
+    public void verifyDates(Blackhole blackhole) {
+        blackhole.consume(bookingService.verifyDates(start, end, false));
+        blackhole.consume(bookingService.verifyDates(start, start.plusDays(3), true));
+    }
+}
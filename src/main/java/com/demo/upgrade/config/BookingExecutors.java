@@ -0,0 +1,111 @@
+package com.demo.upgrade.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Separate bounded pools for status reads and reservation writes, so slow scans cannot take the
+ * threads reserve needs. A full pool rejects at once with RejectedExecutionException.
+ */
+@Component
+public class BookingExecutors {
+
+    @Value("${upgrade.bulkhead.read.threads:16}")
+    private int readThreads;
+
+    @Value("${upgrade.bulkhead.read.queue-size:100}")
+    private int readQueueSize;
+
+    @Value("${upgrade.bulkhead.write.threads:8}")
+    private int writeThreads;
+
+    @Value("${upgrade.bulkhead.write.queue-size:50}")
+    private int writeQueueSize;
+
+    @Value("${upgrade.bulkhead.virtual-threads:false}")
+    private boolean virtualThreads;
+
+    private MeterRegistry meterRegistry;
+
+    private Logger logger = LoggerFactory.getLogger(BookingExecutors.class);
+
+    private ThreadPoolTaskExecutor reads;
+
+    private ThreadPoolTaskExecutor writes;
+
+    public BookingExecutors(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        reads = create("booking-read-", readThreads, readQueueSize);
+        writes = create("booking-write-", writeThreads, writeQueueSize);
+    }
+
+    @PreDestroy
+    public void stop() {
+        reads.shutdown();
+        writes.shutdown();
+    }
+
+    public ThreadPoolTaskExecutor getReads() {
+        return reads;
+    }
+
+    public ThreadPoolTaskExecutor getWrites() {
+        return writes;
+    }
+
+    private ThreadPoolTaskExecutor create(String prefix, int threads, int queueSize) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(prefix);
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueSize);
+        executor.setTaskDecorator(task -> {
+            AtomicInteger queries = QueryCountInspector.current();
+            return () -> {
+                QueryCountInspector.bind(queries);
+                try {
+                    task.run();
+                } finally {
+                    QueryCountInspector.unbind();
+                }
+            };
+        });
+        ThreadFactory factory = virtualThreads ? virtualThreadFactory(prefix) : null;
+        if (factory != null) {
+            executor.setThreadFactory(factory);
+        }
+        executor.initialize();
+        new ExecutorServiceMetrics(executor.getThreadPoolExecutor(), prefix + "executor", Tags.empty()).bindTo(meterRegistry);
+        return executor;
+    }
+
+    /**
+     * Thread.ofVirtual().name(prefix, 0).factory() where the JDK has it; looked up reflectively so the build stays on Java 11.
+     */
+    private ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not supported by this JDK, using platform threads for " + prefix + "executor");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.demo.upgrade.config;
+
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+
+/**
+ * With spring.main.lazy-initialization (the fast-start profile) a bean nothing refers to is never
+ * created, so its scheduled jobs would never run. Beans with @Scheduled methods stay eager.
+ */
+@Configuration
+public class LazyInitConfig {
+
+    @Bean
+    public static LazyInitializationExcludeFilter scheduledBeans() {
+        return (beanName, beanDefinition, beanType) -> beanType != null && hasScheduledMethod(beanType);
+    }
+
+    private static boolean hasScheduledMethod(Class<?> beanType) {
+        for (Method method : ReflectionUtils.getUniqueDeclaredMethods(beanType, ReflectionUtils.USER_DECLARED_METHODS)) {
+            if (AnnotatedElementUtils.hasAnnotation(method, Scheduled.class)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,46 @@
+package com.demo.upgrade.config;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the SQL statements Hibernate prepares on the current thread. Registered through
+ * hibernate.session_factory.statement_inspector. Worker threads bind the counter of the request
+ * they run for, see {@link BookingExecutors}.
+ */
+public class QueryCountInspector implements StatementInspector {
+
+    private static final ThreadLocal<AtomicInteger> COUNT = ThreadLocal.withInitial(AtomicInteger::new);
+
+    @Override
+    public String inspect(String sql) {
+        COUNT.get().incrementAndGet();
+        return sql;
+    }
+
+    /**
+     * Starts a fresh counter on the current thread.
+     */
+    public static AtomicInteger reset() {
+        AtomicInteger count = new AtomicInteger();
+        COUNT.set(count);
+        return count;
+    }
+
+    public static int count() {
+        return COUNT.get().get();
+    }
+
+    public static AtomicInteger current() {
+        return COUNT.get();
+    }
+
+    public static void bind(AtomicInteger count) {
+        COUNT.set(count);
+    }
+
+    public static void unbind() {
+        COUNT.remove();
+    }
+}
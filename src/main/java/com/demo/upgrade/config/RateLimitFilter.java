@@ -0,0 +1,49 @@
+package com.demo.upgrade.config;
+
+import com.demo.upgrade.service.RateLimiter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Answers 429 with Retry-After when the client address or X-Api-Key has used up its read (GET)
+ * or write bucket, before the request is dispatched to a controller. Behind a proxy, set
+ * server.forward-headers-strategy so the address is the client's.
+ */
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    public static final String API_KEY_HEADER = "X-Api-Key";
+
+    private RateLimiter rateLimiter;
+
+    public RateLimitFilter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        boolean isWrite = !HttpMethod.GET.matches(request.getMethod()) && !HttpMethod.HEAD.matches(request.getMethod());
+        long retryAfter = rateLimiter.acquire(isWrite, RateLimiter.IP, request.getRemoteAddr());
+        if (retryAfter == 0) {
+            retryAfter = rateLimiter.acquire(isWrite, RateLimiter.API_KEY, request.getHeader(API_KEY_HEADER));
+        }
+        if (retryAfter > 0) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf((retryAfter + 999) / 1000));
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !rateLimiter.isEnabled();
+    }
+}
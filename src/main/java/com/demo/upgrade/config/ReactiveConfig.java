@@ -0,0 +1,66 @@
+package com.demo.upgrade.config;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.r2dbc.core.DatabaseClient;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+
+/**
+ * R2DBC client for the reactive profile. Auto-configuration of R2DBC is excluded in
+ * {@link com.demo.upgrade.UpgradeApplication} and the connection factory is kept out of the context,
+ * since a ConnectionFactory bean makes the JDBC DataSource used by the occupancy index back off:
+ * the pool is registered as a Disposable, so it is still closed with the context.
+ */
+@Configuration
+@Profile("reactive")
+public class ReactiveConfig {
+
+    /**
+     * Connections are reused from a pool of spring.r2dbc.pool.initial-size to max-size, rather than
+     * opened for every statement.
+     */
+    @Bean(destroyMethod = "dispose")
+    public Disposable r2dbcConnectionPool(@Value("${spring.r2dbc.url}") String url,
+                                          @Value("${spring.r2dbc.username:}") String username,
+                                          @Value("${spring.r2dbc.password:}") String password,
+                                          @Value("${spring.r2dbc.pool.initial-size:2}") int initialSize,
+                                          @Value("${spring.r2dbc.pool.max-size:10}") int maxSize,
+                                          @Value("${spring.r2dbc.pool.max-idle-time:1800000}") long maxIdleTime) {
+        ConnectionFactoryOptions.Builder options = ConnectionFactoryOptions.parse(url).mutate();
+        if (!username.isEmpty()) {
+            options.option(ConnectionFactoryOptions.USER, username);
+            options.option(ConnectionFactoryOptions.PASSWORD, password);
+        }
+        ConnectionFactory connectionFactory = ConnectionFactories.get(options.build());
+        return new ConnectionPool(ConnectionPoolConfiguration.builder(connectionFactory)
+                .name("r2dbc")
+                .initialSize(initialSize)
+                .maxSize(maxSize)
+                .maxIdleTime(Duration.ofMillis(maxIdleTime))
+                .build());
+    }
+
+    @Bean
+    public DatabaseClient databaseClient(@Qualifier("r2dbcConnectionPool") Disposable pool) {
+        return DatabaseClient.create((ConnectionFactory) pool);
+    }
+
+    /**
+     * Tomcat is on the classpath for the servlet stack and would otherwise win; serve this profile from Netty's event loops.
+     */
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+}
@@ -0,0 +1,16 @@
+package com.demo.upgrade.config;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs the queries of the method on a read replica while one is within upgrade.replica.max-lag,
+ * and on the primary otherwise. Only for reads whose answer may be that stale; capacity checks
+ * that guard a write must stay on the primary.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReadReplica {
+}
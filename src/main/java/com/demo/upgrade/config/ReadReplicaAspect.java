@@ -0,0 +1,94 @@
+package com.demo.upgrade.config;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DataAccessException;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Gives a {@link ReadReplica} method a healthy replica, if there is one. While it reads from the
+ * replica its Hibernate session may read the second-level cache but not put into it, so rows and
+ * query results as stale as the replica are never served from the cache afterwards. A read that
+ * fails on the replica, after the connection was handed out, marks it failed and runs again on the primary.
+ */
+@Aspect
+public class ReadReplicaAspect {
+
+    private static final String STORE_MODE = "javax.persistence.cache.storeMode";
+
+    private ReplicaRouter router;
+
+    private ObjectProvider<EntityManagerFactory> entityManagerFactory;
+
+    public ReadReplicaAspect(ReplicaRouter router, ObjectProvider<EntityManagerFactory> entityManagerFactory) {
+        this.router = router;
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    @Around("@annotation(com.demo.upgrade.config.ReadReplica)")
+    public Object onReplica(ProceedingJoinPoint joinPoint) throws Throwable {
+        String replica = router.pick();
+        if (replica == null) {
+            return joinPoint.proceed();
+        }
+        String previous = RoutingDataSource.setReadReplica(replica);
+        try {
+            return withoutCachePuts(joinPoint);
+        } catch (DataAccessException e) {
+            router.markFailed(replica, e);
+        } finally {
+            RoutingDataSource.setReadReplica(previous);
+        }
+        String replicaBefore = RoutingDataSource.setReadReplica(null);
+        try {
+            return joinPoint.proceed();
+        } finally {
+            RoutingDataSource.setReadReplica(replicaBefore);
+        }
+    }
+
+    private Object withoutCachePuts(ProceedingJoinPoint joinPoint) throws Throwable {
+        EntityManagerFactory factory = entityManagerFactory.getObject();
+        EntityManagerHolder holder = (EntityManagerHolder) TransactionSynchronizationManager.getResource(factory);
+        if (holder != null) {
+            EntityManager entityManager = holder.getEntityManager();
+            Object previousStoreMode = entityManager.getProperties().getOrDefault(STORE_MODE, CacheStoreMode.USE);
+            CacheMode previous = entityManager.unwrap(Session.class).getCacheMode();
+            withoutPuts(entityManager);
+            try {
+                return joinPoint.proceed();
+            } finally {
+                entityManager.setProperty(STORE_MODE, previousStoreMode);
+                entityManager.unwrap(Session.class).setCacheMode(previous);
+            }
+        }
+        EntityManager entityManager = factory.createEntityManager();
+        withoutPuts(entityManager);
+        TransactionSynchronizationManager.bindResource(factory, new EntityManagerHolder(entityManager));
+        try {
+            return joinPoint.proceed();
+        } finally {
+            TransactionSynchronizationManager.unbindResource(factory);
+            EntityManagerFactoryUtils.closeEntityManager(entityManager);
+        }
+    }
+
+    /**
+     * Both settings are needed: find() derives the session's cache mode from the JPA store mode,
+     * queries use the session's.
+     */
+    private static void withoutPuts(EntityManager entityManager) {
+        entityManager.setProperty(STORE_MODE, CacheStoreMode.BYPASS);
+        entityManager.unwrap(Session.class).setCacheMode(CacheMode.GET);
+    }
+}
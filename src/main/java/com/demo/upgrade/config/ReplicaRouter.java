@@ -0,0 +1,142 @@
+package com.demo.upgrade.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * The primary and replica pools, and which replicas are fit to serve reads. Every
+ * upgrade.replica.heartbeat-interval ms the primary's replica_heartbeat row is stamped and read back
+ * from each replica; a replica whose copy is more than upgrade.replica.max-lag ms old, or that
+ * fails, takes no reads until a later check finds it caught up.
+ */
+public class ReplicaRouter {
+
+    private static final int HEARTBEAT_ID = 1;
+
+    private DataSource primary;
+
+    private Map<String, Replica> replicas = new LinkedHashMap<>();
+
+    private long maxLag;
+
+    private Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    private volatile String[] healthy = new String[0];
+
+    private AtomicInteger next = new AtomicInteger();
+
+    private LongSupplier clock = System::currentTimeMillis;
+
+    public ReplicaRouter(DataSource primary, Map<String, DataSource> replicas, long maxLag, MeterRegistry meterRegistry) {
+        this.primary = primary;
+        this.maxLag = maxLag;
+        replicas.forEach((name, dataSource) -> {
+            Replica replica = new Replica(dataSource);
+            this.replicas.put(name, replica);
+            Gauge.builder("booking.replica.lag", replica, r -> r.lag).tag("replica", name).baseUnit("milliseconds").register(meterRegistry);
+            Gauge.builder("booking.replica.healthy", replica, r -> r.healthy ? 1 : 0).tag("replica", name).register(meterRegistry);
+        });
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public DataSource getReplica(String name) {
+        return replicas.get(name).dataSource;
+    }
+
+    /**
+     * A healthy replica, in turn, or null when there is none.
+     */
+    public String pick() {
+        String[] names = healthy;
+        if (names.length == 0) {
+            return null;
+        }
+        return names[Math.floorMod(next.getAndIncrement(), names.length)];
+    }
+
+    public void markFailed(String name, Exception e) {
+        Replica replica = replicas.get(name);
+        if (replica.healthy) {
+            logger.warn("Replica " + name + " failed, reading from the primary: " + e.getMessage());
+        }
+        replica.healthy = false;
+        updateHealthy();
+    }
+
+    @Scheduled(initialDelayString = "${upgrade.replica.heartbeat-interval:1000}", fixedDelayString = "${upgrade.replica.heartbeat-interval:1000}")
+    public void heartbeat() {
+        Timestamp now = new Timestamp(clock.getAsLong());
+        try {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(primary);
+            if (jdbcTemplate.update("UPDATE replica_heartbeat SET beat_at=? WHERE id=?", now, HEARTBEAT_ID) == 0) {
+                jdbcTemplate.update("INSERT INTO replica_heartbeat (id, beat_at) VALUES (?, ?)", HEARTBEAT_ID, now);
+            }
+        } catch (DataAccessException e) {
+            logger.warn("Could not write the replica heartbeat: " + e.getMessage());
+        }
+        replicas.forEach((name, replica) -> {
+            boolean wasHealthy = replica.healthy;
+            try {
+                Timestamp beat = new JdbcTemplate(replica.dataSource).queryForObject("SELECT beat_at FROM replica_heartbeat WHERE id=?", Timestamp.class, HEARTBEAT_ID);
+                replica.lag = beat == null ? Long.MAX_VALUE : clock.getAsLong() - beat.getTime();
+                replica.healthy = replica.lag <= maxLag;
+            } catch (DataAccessException e) {
+                replica.lag = Long.MAX_VALUE;
+                replica.healthy = false;
+            }
+            if (wasHealthy != replica.healthy) {
+                logger.warn("Replica " + name + (replica.healthy ? " caught up" : " is behind by " + replica.lag + " ms") + ", reads " + (replica.healthy ? "resume" : "go to the primary"));
+            }
+        });
+        updateHealthy();
+    }
+
+    public void close() {
+        closePool(primary);
+        replicas.values().forEach(replica -> closePool(replica.dataSource));
+    }
+
+    private void updateHealthy() {
+        List<String> names = new ArrayList<>();
+        replicas.forEach((name, replica) -> {
+            if (replica.healthy) {
+                names.add(name);
+            }
+        });
+        healthy = names.toArray(new String[0]);
+    }
+
+    private void closePool(DataSource dataSource) {
+        if (dataSource instanceof HikariDataSource) {
+            ((HikariDataSource) dataSource).close();
+        }
+    }
+
+    private static class Replica {
+        private final DataSource dataSource;
+        private volatile boolean healthy;
+        private volatile long lag = Long.MAX_VALUE;
+
+        Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.demo.upgrade.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * With upgrade.replica.enabled, spring.datasource becomes the primary and upgrade.replica.urls the
+ * replicas. The lazy proxy takes the physical connection at the first statement, after the
+ * {@link ReadReplica} mark is known.
+ */
+@Configuration
+@ConditionalOnProperty(name = "upgrade.replica.enabled", havingValue = "true")
+public class ReplicaRoutingConfig {
+
+    @Bean
+    public ReplicaRouter replicaRouter(DataSourceProperties properties, MeterRegistry meterRegistry,
+                                       @Value("${upgrade.replica.urls}") String[] urls,
+                                       @Value("${upgrade.replica.username:${spring.datasource.username:}}") String username,
+                                       @Value("${upgrade.replica.password:${spring.datasource.password:}}") String password,
+                                       @Value("${upgrade.replica.max-lag:5000}") long maxLag) {
+        HikariDataSource primary = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        primary.setPoolName("primary");
+        primary.setMetricRegistry(meterRegistry);
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        for (int i = 0; i < urls.length; i++) {
+            HikariDataSource replica = DataSourceBuilder.create().type(HikariDataSource.class)
+                    .driverClassName(properties.determineDriverClassName()).url(urls[i].trim())
+                    .username(username).password(password).build();
+            replica.setPoolName("replica-" + i);
+            replica.setReadOnly(true);
+            replica.setMetricRegistry(meterRegistry);
+            replicas.put("replica-" + i, replica);
+        }
+        return new ReplicaRouter(primary, replicas, maxLag, meterRegistry);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRouter replicaRouter) {
+        return new LazyConnectionDataSourceProxy(new RoutingDataSource(replicaRouter));
+    }
+
+    @Bean
+    public ReadReplicaAspect readReplicaAspect(ReplicaRouter replicaRouter, ObjectProvider<EntityManagerFactory> entityManagerFactory) {
+        return new ReadReplicaAspect(replicaRouter, entityManagerFactory);
+    }
+}
@@ -0,0 +1,50 @@
+package com.demo.upgrade.config;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Hands out connections of the replica a {@link ReadReplica} method was given, and primary
+ * connections otherwise. A replica that cannot give a connection is marked failed and the primary
+ * is used instead.
+ */
+public class RoutingDataSource extends AbstractDataSource {
+
+    private static final ThreadLocal<String> READ_REPLICA = new ThreadLocal<>();
+
+    private ReplicaRouter router;
+
+    public RoutingDataSource(ReplicaRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Sends the reads of the current thread to the named replica, or to the primary when null;
+     * returns the previous one.
+     */
+    static String setReadReplica(String replica) {
+        String previous = READ_REPLICA.get();
+        READ_REPLICA.set(replica);
+        return previous;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        String replica = READ_REPLICA.get();
+        if (replica != null) {
+            try {
+                return router.getReplica(replica).getConnection();
+            } catch (SQLException e) {
+                router.markFailed(replica, e);
+            }
+        }
+        return router.getPrimary().getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return router.getPrimary().getConnection(username, password);
+    }
+}
@@ -0,0 +1,81 @@
+package com.demo.upgrade.config;
+
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.core.config.DefaultConfiguration;
+import org.ehcache.jsr107.Eh107Configuration;
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.hibernate.cfg.AvailableSettings;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+import java.net.URI;
+import java.time.Duration;
+import java.util.UUID;
+
+/**
+ * Hibernate second-level cache on in-process Ehcache: the reservations entity region and the
+ * query results region are bounded by upgrade.cache.&lt;reservations|queries&gt;.max-entries and
+ * expire upgrade.cache.&lt;reservations|queries&gt;.ttl ms after they are written. Statistics are
+ * turned on so the hit and miss counts are exported as hibernate_second_level_cache_requests and
+ * hibernate_cache_query_requests. With upgrade.cache.enabled=false the cache is switched off,
+ * rather than left to the unbounded defaults Hibernate would pick up from the classpath.
+ */
+@Configuration
+public class SecondLevelCacheConfig {
+
+    private static final String RESERVATIONS_REGION = "reservations";
+
+    private static final String QUERY_RESULTS_REGION = "default-query-results-region";
+
+    private static final String UPDATE_TIMESTAMPS_REGION = "default-update-timestamps-region";
+
+    @Bean
+    @ConditionalOnProperty(name = "upgrade.cache.enabled", havingValue = "true", matchIfMissing = true)
+    public CacheManager hibernateCacheManager(@Value("${upgrade.cache.reservations.max-entries:10000}") long reservationEntries,
+                                              @Value("${upgrade.cache.reservations.ttl:600000}") long reservationTtl,
+                                              @Value("${upgrade.cache.queries.max-entries:1000}") long queryEntries,
+                                              @Value("${upgrade.cache.queries.ttl:60000}") long queryTtl) {
+        EhcacheCachingProvider provider = new EhcacheCachingProvider();
+        // a manager of its own per application context, so test contexts do not share regions
+        CacheManager cacheManager = provider.getCacheManager(URI.create("urn:upgrade:hibernate:" + UUID.randomUUID()),
+                new DefaultConfiguration(provider.getDefaultClassLoader()));
+        cacheManager.createCache(RESERVATIONS_REGION, region(reservationEntries, reservationTtl));
+        cacheManager.createCache(QUERY_RESULTS_REGION, region(queryEntries, queryTtl));
+        // one entry per table; these must outlive every cached query result, so they never expire
+        cacheManager.createCache(UPDATE_TIMESTAMPS_REGION, Eh107Configuration.fromEhcacheCacheConfiguration(
+                CacheConfigurationBuilder.newCacheConfigurationBuilder(Object.class, Object.class, ResourcePoolsBuilder.heap(1000))));
+        return cacheManager;
+    }
+
+    @Bean
+    public HibernatePropertiesCustomizer secondLevelCache(ObjectProvider<CacheManager> cacheManager) {
+        return properties -> {
+            CacheManager hibernateCacheManager = cacheManager.getIfAvailable();
+            if (hibernateCacheManager == null) {
+                properties.put(AvailableSettings.USE_SECOND_LEVEL_CACHE, false);
+                properties.put(AvailableSettings.USE_QUERY_CACHE, false);
+                return;
+            }
+            properties.put(AvailableSettings.USE_SECOND_LEVEL_CACHE, true);
+            properties.put(AvailableSettings.USE_QUERY_CACHE, true);
+            properties.put(AvailableSettings.CACHE_REGION_FACTORY, ConfigSettings.SIMPLE_FACTORY_NAME);
+            properties.put(ConfigSettings.CACHE_MANAGER, hibernateCacheManager);
+            properties.put(ConfigSettings.MISSING_CACHE_STRATEGY, "fail");
+            properties.put(AvailableSettings.GENERATE_STATISTICS, true);
+        };
+    }
+
+    private javax.cache.configuration.Configuration<Object, Object> region(long maxEntries, long ttl) {
+        return Eh107Configuration.fromEhcacheCacheConfiguration(
+                CacheConfigurationBuilder.newCacheConfigurationBuilder(Object.class, Object.class, ResourcePoolsBuilder.heap(maxEntries))
+                        .withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(Duration.ofMillis(ttl))));
+    }
+}
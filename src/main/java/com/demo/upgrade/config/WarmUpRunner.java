@@ -0,0 +1,98 @@
+package com.demo.upgrade.config;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.Sites;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.LocalDate;
+
+/**
+ * Runs the availability checks, JSON mapping and the HTTP endpoints enough times for the JIT to
+ * compile them before the instance reports ready. Application runners complete before Spring Boot
+ * publishes the ready and accepting-traffic events. Writes are only exercised with ids that do not
+ * exist, so nothing is booked.
+ */
+@Component
+@ConditionalOnProperty(name = "upgrade.warmup.enabled", havingValue = "true")
+public class WarmUpRunner implements ApplicationRunner {
+
+    @Value("${upgrade.warmup.iterations:2000}")
+    private int iterations;
+
+    @Value("${upgrade.warmup.requests:200}")
+    private int requests;
+
+    @Value("${upgrade.warmup.exit:false}")
+    private boolean exit;
+
+    private BookingService bookingService;
+
+    private Sites sites;
+
+    private ObjectMapper objectMapper;
+
+    private ConfigurableApplicationContext context;
+
+    private Logger logger = LoggerFactory.getLogger(WarmUpRunner.class);
+
+    public WarmUpRunner(BookingService bookingService, Sites sites, ObjectMapper objectMapper, ConfigurableApplicationContext context) {
+        this.bookingService = bookingService;
+        this.sites = sites;
+        this.objectMapper = objectMapper;
+        this.context = context;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        long started = System.nanoTime();
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+        String site = sites.getDefault();
+        for (int i = 0; i < iterations; i++) {
+            LocalDate start = tomorrow.plusDays(i % 20);
+            LocalDate end = start.plusDays(1 + i % 8);
+            bookingService.verifyDates(start, end, i % 2 == 0);
+            bookingService.getAvaliableDays(site, start, end);
+            bookingService.isAvaliable(site, start, end, null);
+            String json = objectMapper.writeValueAsString(new Reservation("Warm-up", "warmup@email.com", start, end));
+            objectMapper.readValue(json, Reservation.class);
+        }
+        long services = System.nanoTime();
+        if (context instanceof WebServerApplicationContext) {
+            exerciseEndpoints(((WebServerApplicationContext) context).getWebServer().getPort());
+        }
+        logger.info(String.format("Warm-up took %d ms (%d service iterations in %d ms, %d requests per endpoint)",
+                (System.nanoTime() - started) / 1_000_000, iterations, (services - started) / 1_000_000, requests));
+        if (exit) {
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+
+    private void exerciseEndpoints(int port) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String base = "http://localhost:" + port + "/api/booking/";
+        String body = objectMapper.writeValueAsString(new Reservation("Warm-up", "warmup@email.com", LocalDate.now().plusDays(2), LocalDate.now().plusDays(3)));
+        for (int i = 0; i < requests; i++) {
+            client.send(HttpRequest.newBuilder(URI.create(base + "status")).GET().build(), HttpResponse.BodyHandlers.ofString());
+            client.send(HttpRequest.newBuilder(URI.create(base + "change?id=-1"))
+                    .header("Content-Type", "application/json")
+                    .PUT(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+            client.send(HttpRequest.newBuilder(URI.create(base + "cancel?id=-1"))
+                    .PUT(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+        }
+    }
+}
@@ -1,96 +1,647 @@
 package com.demo.upgrade.controller;
 
+import com.demo.upgrade.config.BookingExecutors;
+import com.demo.upgrade.model.CompactAvailability;
 import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationHold;
+import com.demo.upgrade.model.WaitlistEntry;
+import com.demo.upgrade.service.AvailabilityFeed;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingResult;
 import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.HoldManager;
+import com.demo.upgrade.service.IdempotencyStore;
+import com.demo.upgrade.service.RateLimiter;
+import com.demo.upgrade.service.ReservationExporter;
+import com.demo.upgrade.service.ReservationJournal;
+import com.demo.upgrade.service.ReservationSequencer;
+import com.demo.upgrade.service.Sites;
+import com.demo.upgrade.service.Waitlist;
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api")
+@Profile("!reactive")
+@Timed(value = "booking.endpoint", histogram = true)
 public class BookingController {
 
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    public static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
+
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 200;
+
     private BookingService bookingService;
 
+    private ReservationSequencer sequencer;
+
+    private ReservationJournal journal;
+
+    private BookingExecutors executors;
+
+    private Sites sites;
+
+    private AvailabilityFeed availabilityFeed;
+
+    private IdempotencyStore idempotencyStore;
+
+    private RateLimiter rateLimiter;
+
+    private HoldManager holdManager;
+
+    private Waitlist waitlist;
+
+    private ReservationExporter exporter;
+
+    private MeterRegistry meterRegistry;
+
+    @Value("${upgrade.batch.max-size:500}")
+    private int maxBatchSize;
+
+    @Value("${upgrade.bulkhead.retry-after:1}")
+    private int retryAfter;
+
+    @Value("${upgrade.stream.timeout:1800000}")
+    private long streamTimeout;
+
     private Logger logger = LoggerFactory.getLogger(BookingController.class);
 
-    public BookingController(BookingService bookingService) {
+    public BookingController(BookingService bookingService, Optional<ReservationSequencer> sequencer, Optional<ReservationJournal> journal,
+                             BookingExecutors executors, Sites sites, AvailabilityFeed availabilityFeed, IdempotencyStore idempotencyStore,
+                             RateLimiter rateLimiter, HoldManager holdManager, Waitlist waitlist, ReservationExporter exporter,
+                             MeterRegistry meterRegistry) {
         this.bookingService = bookingService;
+        this.sequencer = sequencer.orElse(null);
+        this.journal = journal.orElse(null);
+        this.executors = executors;
+        this.sites = sites;
+        this.availabilityFeed = availabilityFeed;
+        this.idempotencyStore = idempotencyStore;
+        this.rateLimiter = rateLimiter;
+        this.holdManager = holdManager;
+        this.waitlist = waitlist;
+        this.exporter = exporter;
+        this.meterRegistry = meterRegistry;
     }
 
     @GetMapping("/booking/status")
-    public ResponseEntity<List<String>> getStatus(@RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate) {
+    public CompletableFuture<ResponseEntity<List<String>>> getStatus(@RequestParam(required = false) String site,
+                                                                     @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate,
+                                                                     @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return CompletableFuture.completedFuture(unknownSite("status"));
+        }
+        return submit("status", executors.getReads(), () -> {
+            try {
+                LocalDate start = startDate == null ? LocalDate.now().plusDays(1) : LocalDate.parse(startDate);
+                LocalDate end = endDate == null ? LocalDate.now().plusMonths(1) : LocalDate.parse(endDate);
+                if (!bookingService.verifyDates(start, end, false)) {
+                    count("status", "bad_dates");
+                    return new ResponseEntity<>(Collections.singletonList("Start or end date is not correct"), HttpStatus.BAD_REQUEST);
+                }
+                String eTag = "\"" + bookingService.getOccupancyVersion(siteName, start, end) + "-" + siteName + "-" + start + "-" + end + "\"";
+                if (eTag.equals(ifNoneMatch)) {
+                    count("status", "not_modified");
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+                }
+                count("status", "ok");
+                return ResponseEntity.ok().eTag(eTag).body(bookingService.getAvaliableDays(siteName, start, end));
+            } catch (Exception e) {
+                return error("status", e);
+            }
+        });
+    }
+
+    /**
+     * Remaining capacity per night as a compact, run-length encoded array, for ranges up to
+     * upgrade.status.max-range-days. Chosen by Accept: application/vnd.upgrade.availability+json or format=compact.
+     */
+    @GetMapping(value = "/booking/status", produces = CompactAvailability.MEDIA_TYPE)
+    public CompletableFuture<ResponseEntity<CompactAvailability>> getCompactStatus(@RequestParam(required = false) String site,
+                                                                                   @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate,
+                                                                                   @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return CompletableFuture.completedFuture(unknownSite("status_compact"));
+        }
+        return submit("status_compact", executors.getReads(), () -> {
+            try {
+                LocalDate start = startDate == null ? LocalDate.now().plusDays(1) : LocalDate.parse(startDate);
+                LocalDate end = endDate == null ? LocalDate.now().plusMonths(1) : LocalDate.parse(endDate);
+                if (!bookingService.verifyRange(start, end)) {
+                    count("status_compact", "bad_dates");
+                    return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
+                }
+                String eTag = "\"" + bookingService.getOccupancyVersion(siteName, start, end) + "-" + siteName + "-" + start + "-" + end + "-compact\"";
+                if (eTag.equals(ifNoneMatch)) {
+                    count("status_compact", "not_modified");
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+                }
+                count("status_compact", "ok");
+                int[] remaining = bookingService.getRemainingCapacity(siteName, start, end);
+                return ResponseEntity.ok().eTag(eTag).body(CompactAvailability.of(siteName, start, sites.getSize(siteName), remaining));
+            } catch (Exception e) {
+                return error("status_compact", e);
+            }
+        });
+    }
+
+    @GetMapping(value = "/booking/status", params = "format=compact")
+    public CompletableFuture<ResponseEntity<CompactAvailability>> getCompactStatusByParameter(@RequestParam(required = false) String site,
+                                                                                              @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate,
+                                                                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return getCompactStatus(site, startDate, endDate, ifNoneMatch);
+    }
+
+    /**
+     * Replaces polling for interactive clients: a "snapshot" event in the compact format, then
+     * "delta" events with the nights whose remaining capacity changed. Browsers reconnect after
+     * upgrade.stream.timeout ms.
+     */
+    @GetMapping(value = "/booking/status/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamStatus(@RequestParam(required = false) String site,
+                                                   @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return unknownSite("status_stream");
+        }
         try {
             LocalDate start = startDate == null ? LocalDate.now().plusDays(1) : LocalDate.parse(startDate);
             LocalDate end = endDate == null ? LocalDate.now().plusMonths(1) : LocalDate.parse(endDate);
             if (!bookingService.verifyDates(start, end, false)) {
-                return new ResponseEntity<>(Collections.singletonList("Start or end date is not correct"), HttpStatus.BAD_REQUEST);
+                count("status_stream", "bad_dates");
+                return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
             }
-            return new ResponseEntity<>(bookingService.getAvaliableDays(start, end), HttpStatus.OK);
+            SseEmitter emitter = new SseEmitter(streamTimeout);
+            Runnable unsubscribe = availabilityFeed.subscribe(siteName, start, end, new AvailabilityFeed.Subscriber() {
+                @Override
+                public void send(String event, Object data) throws IOException {
+                    emitter.send(SseEmitter.event().name(event).data(data));
+                }
+
+                @Override
+                public void close() {
+                    emitter.complete();
+                }
+            });
+            emitter.onCompletion(unsubscribe);
+            emitter.onTimeout(unsubscribe);
+            emitter.onError(e -> unsubscribe.run());
+            count("status_stream", "ok");
+            return ResponseEntity.ok(emitter);
         } catch (Exception e) {
-            logger.error(e.getMessage());
-            return new ResponseEntity<>(null, HttpStatus.INTERNAL_SERVER_ERROR);
+            return error("status_stream", e);
         }
     }
 
     @PostMapping("/booking/reserve")
-    public ResponseEntity<String> reserve(@RequestBody Reservation reservation) {
+    public CompletableFuture<ResponseEntity<String>> reserve(@RequestParam(required = false) String site, @RequestBody Reservation reservation,
+                                                             @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return CompletableFuture.completedFuture(unknownSite("reserve"));
+        }
+        reservation.setSite(siteName);
+        return idempotent("reserve", idempotencyKey, fingerprint(siteName, reservation), () -> emailWait(reservation.getEmail()),
+                () -> reserve(siteName, reservation));
+    }
+
+    private CompletableFuture<ResponseEntity<String>> reserve(String siteName, Reservation reservation) {
+        if (journal != null) {
+            return await("reserve", onWrites(() -> journal.reserve(reservation)));
+        }
+        if (sequencer != null) {
+            return await("reserve", sequencer.reserve(reservation));
+        }
+        return submit("reserve", executors.getWrites(), () -> {
+            try {
+                if (!bookingService.verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+                    return respond("reserve", BookingResult.of(BookingOutcome.BAD_DATES));
+                }
+                else if (!bookingService.isAvaliable(siteName, reservation.getStartDate(), reservation.getEndDate(), null)) {
+                    return respond("reserve", BookingResult.of(BookingOutcome.UNAVAILABLE));
+                }
+                Long id = bookingService.reserve(reservation);
+                return respond("reserve", id == null ? BookingResult.of(BookingOutcome.UNAVAILABLE) : new BookingResult(BookingOutcome.CREATED, id));
+            } catch (Exception e) {
+                return error("reserve", e);
+            }
+        });
+    }
+
+    @PostMapping("/booking/reserve/batch")
+    public CompletableFuture<ResponseEntity<List<BookingResult>>> reserveBatch(@RequestParam(required = false) String site, @RequestBody List<Reservation> reservations) {
+        if (reservations.size() > maxBatchSize) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(null, HttpStatus.PAYLOAD_TOO_LARGE));
+        }
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return CompletableFuture.completedFuture(unknownSite("reserve_batch"));
+        }
+        long wait = reservations.stream().map(Reservation::getEmail).distinct().mapToLong(this::emailWait).max().orElse(0);
+        if (wait > 0) {
+            return CompletableFuture.completedFuture(tooManyRequests("reserve_batch", wait));
+        }
+        reservations.forEach(reservation -> reservation.setSite(siteName));
+        CompletableFuture<List<BookingResult>> results;
+        if (journal == null && sequencer != null) {
+            results = sequencer.reserveAll(reservations);
+        } else {
+            try {
+                results = CompletableFuture.supplyAsync(() -> journal != null ? journal.reserveAll(siteName, reservations) : bookingService.reserveAll(reservations),
+                        executors.getWrites());
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.completedFuture(rejected("reserve_batch"));
+            }
+        }
+        return results.handle((list, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                if (cause instanceof RejectedExecutionException) {
+                    return rejected("reserve_batch");
+                }
+                return error("reserve_batch", cause);
+            }
+            for (BookingResult result : list) {
+                count("reserve_batch", result.getOutcome().name().toLowerCase());
+            }
+            return new ResponseEntity<>(list, HttpStatus.OK);
+        });
+    }
+
+    /**
+     * Holds the nights of the body for upgrade.hold.ttl ms; only the dates are read.
+     */
+    @PostMapping("/booking/hold")
+    public ResponseEntity<ReservationHold> hold(@RequestParam(required = false) String site, @RequestBody Reservation reservation) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return unknownSite("hold");
+        }
         try {
             if (!bookingService.verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
-                return new ResponseEntity<>("Start or end date is not correct", HttpStatus.BAD_REQUEST);
+                count("hold", "bad_dates");
+                return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
             }
-            else if (!bookingService.isAvaliable(reservation.getStartDate(), reservation.getEndDate(), null)) {
-                return new ResponseEntity<>("Select time range is not avaliable", HttpStatus.BAD_REQUEST);
+            ReservationHold hold = holdManager.hold(siteName, reservation.getStartDate(), reservation.getEndDate());
+            if (hold == null) {
+                count("hold", "unavailable");
+                return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
             }
-            return new ResponseEntity<>(bookingService.reserve(reservation).toString(), HttpStatus.CREATED);
+            count("hold", "created");
+            return new ResponseEntity<>(hold, HttpStatus.CREATED);
         } catch (Exception e) {
-            logger.error(e.getMessage());
-            return new ResponseEntity<>(null, HttpStatus.INTERNAL_SERVER_ERROR);
+            return error("hold", e);
         }
     }
 
-    @PutMapping("/booking/change")
-    public ResponseEntity<String> update (@RequestParam(required = true) long id, @RequestBody Reservation reservation) {
-        try{
-            if(bookingService.getReservation(id) != null) {
-                if (!bookingService.verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
-                    return new ResponseEntity<>("Start or end date is not correct", HttpStatus.BAD_REQUEST);
-                }
-                if (!bookingService.isAvaliable(reservation.getStartDate(), reservation.getEndDate(), id)) {
-                    return new ResponseEntity<>("Select time range is not avaliable", HttpStatus.BAD_REQUEST);
+    /**
+     * Makes the reservation for a hold with the name and email of the body.
+     */
+    @PostMapping("/booking/hold/confirm")
+    public CompletableFuture<ResponseEntity<String>> confirmHold(@RequestParam(required = true) String holdId, @RequestBody Reservation reservation) {
+        long wait = emailWait(reservation.getEmail());
+        if (wait > 0) {
+            return CompletableFuture.completedFuture(tooManyRequests("hold_confirm", wait));
+        }
+        return submit("hold_confirm", executors.getWrites(), () -> {
+            try {
+                BookingResult result = holdManager.confirm(holdId, reservation.getName(), reservation.getEmail());
+                if (result.getOutcome() == BookingOutcome.NOT_FOUND) {
+                    count("hold_confirm", "not_found");
+                    return new ResponseEntity<>("Not found the hold or it has expired", HttpStatus.NOT_FOUND);
                 }
-                bookingService.update(id, reservation);
-                return new ResponseEntity<>("Reservation updated", HttpStatus.OK);
+                return respond("hold_confirm", result);
+            } catch (Exception e) {
+                return error("hold_confirm", e);
             }
-            else {
-                return new ResponseEntity<>("Not found the reservation", HttpStatus.NOT_FOUND);
+        });
+    }
+
+    @PutMapping("/booking/hold/release")
+    public ResponseEntity<String> releaseHold(@RequestParam(required = true) String holdId) {
+        if (!holdManager.release(holdId)) {
+            count("hold_release", "not_found");
+            return new ResponseEntity<>("Not found the hold or it has expired", HttpStatus.NOT_FOUND);
+        }
+        count("hold_release", "released");
+        return new ResponseEntity<>("Hold is released", HttpStatus.OK);
+    }
+
+    /**
+     * Queues a request for full nights; it is booked in arrival order once they free up.
+     */
+    @PostMapping("/booking/waitlist")
+    public CompletableFuture<ResponseEntity<String>> joinWaitlist(@RequestParam(required = false) String site, @RequestBody Reservation reservation) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return CompletableFuture.completedFuture(unknownSite("waitlist"));
+        }
+        long wait = emailWait(reservation.getEmail());
+        if (wait > 0) {
+            return CompletableFuture.completedFuture(tooManyRequests("waitlist", wait));
+        }
+        return submit("waitlist", executors.getWrites(), () -> {
+            try {
+                if (!bookingService.verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+                    return respond("waitlist", BookingResult.of(BookingOutcome.BAD_DATES));
+                }
+                WaitlistEntry entry = waitlist.join(siteName, reservation.getName(), reservation.getEmail(), reservation.getStartDate(), reservation.getEndDate());
+                count("waitlist", "created");
+                return new ResponseEntity<>(String.valueOf(entry.getId()), HttpStatus.CREATED);
+            } catch (Exception e) {
+                return error("waitlist", e);
             }
-        } catch (Exception e){
-            logger.error(e.getMessage());
-            return new ResponseEntity<>(null, HttpStatus.INTERNAL_SERVER_ERROR);
+        });
+    }
+
+    /**
+     * The waitlist entry; reservationId is set once it has been booked.
+     */
+    @GetMapping("/booking/waitlist")
+    public ResponseEntity<WaitlistEntry> getWaitlistEntry(@RequestParam(required = true) long id) {
+        WaitlistEntry entry = waitlist.getEntry(id);
+        if (entry == null) {
+            return new ResponseEntity<>(null, HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(entry);
+    }
+
+    @PutMapping("/booking/waitlist/cancel")
+    public ResponseEntity<String> leaveWaitlist(@RequestParam(required = true) long id) {
+        if (!waitlist.leave(id)) {
+            count("waitlist_cancel", "not_found");
+            return new ResponseEntity<>("Not found the waitlist entry or it is already booked", HttpStatus.NOT_FOUND);
+        }
+        count("waitlist_cancel", "cancelled");
+        return new ResponseEntity<>("Waitlist entry is cancelled", HttpStatus.OK);
+    }
+
+    /**
+     * Streams reservations as NDJSON, or CSV with format=csv, as they are read. Filters: site,
+     * startDate/endDate (overlap, either may be left open), cancelled, and archived to include
+     * reservations_history. Runs on the request thread rather than a bulkhead, so it is not cut off
+     * by the async timeout; at most upgrade.export.max-concurrent run at once, the others get 503.
+     */
+    @GetMapping("/booking/export")
+    public void export(@RequestParam(required = false) String site, @RequestParam(required = false) String startDate,
+                       @RequestParam(required = false) String endDate, @RequestParam(required = false) Boolean cancelled,
+                       @RequestParam(defaultValue = "false") boolean archived, @RequestParam(defaultValue = "ndjson") String format,
+                       HttpServletResponse response) throws IOException {
+        if (site != null && !sites.contains(site)) {
+            count("export", "unknown_site");
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        ReservationExporter.Format exportFormat;
+        LocalDate start;
+        LocalDate end;
+        try {
+            exportFormat = ReservationExporter.Format.valueOf(format.toUpperCase());
+            start = startDate == null ? null : LocalDate.parse(startDate);
+            end = endDate == null ? null : LocalDate.parse(endDate);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            count("export", "bad_request");
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Format must be ndjson or csv and dates yyyy-MM-dd");
+            return;
+        }
+        response.setContentType(exportFormat.getContentType());
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=reservations." + exportFormat.name().toLowerCase());
+        try {
+            exporter.export(site, start, end, cancelled, archived, exportFormat, response.getOutputStream());
+            count("export", "ok");
+        } catch (RejectedExecutionException e) {
+            count("export", "rejected");
+            response.reset();
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+        } catch (RuntimeException e) {
+            count("export", "error");
+            throw e;
+        }
+    }
+
+    @PutMapping("/booking/change")
+    public CompletableFuture<ResponseEntity<String>> update (@RequestParam(required = false) String site, @RequestParam(required = true) long id, @RequestBody Reservation reservation,
+                                                             @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return CompletableFuture.completedFuture(unknownSite("change"));
         }
+        reservation.setSite(siteName);
+        return idempotent("change", idempotencyKey, id + "|" + fingerprint(siteName, reservation), () -> emailWait(reservation.getEmail()),
+                () -> update(siteName, id, reservation));
+    }
+
+    private CompletableFuture<ResponseEntity<String>> update(String siteName, long id, Reservation reservation) {
+        if (journal != null) {
+            return await("change", onWrites(() -> journal.change(siteName, id, reservation)));
+        }
+        if (sequencer != null) {
+            return await("change", sequencer.change(siteName, id, reservation));
+        }
+        return submit("change", executors.getWrites(), () -> {
+            try{
+                return respond("change", bookingService.change(siteName, id, reservation));
+            } catch (Exception e){
+                return error("change", e);
+            }
+        });
     }
 
     @PutMapping("/booking/cancel")
-    public ResponseEntity<String> cancel (@RequestParam(required = true) long id) {
-        try{
-            if(bookingService.getReservation(id) != null) {
-                bookingService.cancel(id);
-                return new ResponseEntity<>("Reservation is cancelled", HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<String>> cancel (@RequestParam(required = false) String site, @RequestParam(required = true) long id,
+                                                             @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return CompletableFuture.completedFuture(unknownSite("cancel"));
+        }
+        return idempotent("cancel", idempotencyKey, siteName + "|" + id, () -> 0, () -> cancel(siteName, id));
+    }
+
+    private CompletableFuture<ResponseEntity<String>> cancel(String siteName, long id) {
+        if (journal != null) {
+            return await("cancel", onWrites(() -> journal.cancel(siteName, id)));
+        }
+        if (sequencer != null) {
+            return await("cancel", sequencer.cancel(siteName, id));
+        }
+        return submit("cancel", executors.getWrites(), () -> {
+            try{
+                return respond("cancel", bookingService.cancel(siteName, id));
+            } catch (Exception e){
+                return error("cancel", e);
             }
-            else {
+        });
+    }
+
+    private ResponseEntity<String> respond(String endpoint, BookingResult result) {
+        count(endpoint, result.getOutcome().name().toLowerCase());
+        switch (result.getOutcome()) {
+            case CREATED:
+                return new ResponseEntity<>(result.getId().toString(), HttpStatus.CREATED);
+            case UPDATED:
+                return new ResponseEntity<>("Reservation updated", HttpStatus.OK);
+            case CANCELLED:
+                return new ResponseEntity<>("Reservation is cancelled", HttpStatus.OK);
+            case BAD_DATES:
+                return new ResponseEntity<>("Start or end date is not correct", HttpStatus.BAD_REQUEST);
+            case UNAVAILABLE:
+                return new ResponseEntity<>("Select time range is not avaliable", HttpStatus.BAD_REQUEST);
+            default:
                 return new ResponseEntity<>("Not found the reservation", HttpStatus.NOT_FOUND);
+        }
+    }
+
+    /**
+     * Runs the handler once per Idempotency-Key and endpoint. A repeat gets the first response with
+     * Idempotent-Replayed: true, waiting for it if the first is still running; 5xx responses are not
+     * kept, so a retry after one runs again. A key reused for a different request gets 422. The
+     * rate limit (rateLimit returns the ms to wait) is only charged to requests that run, so a
+     * repeat always gets the first response; a 429 is not kept either.
+     */
+    private CompletableFuture<ResponseEntity<String>> idempotent(String endpoint, String idempotencyKey, String fingerprint, LongSupplier rateLimit,
+                                                                 Supplier<CompletableFuture<ResponseEntity<String>>> handler) {
+        if (idempotencyKey == null) {
+            long wait = rateLimit.getAsLong();
+            return wait > 0 ? CompletableFuture.completedFuture(tooManyRequests(endpoint, wait)) : handler.get();
+        }
+        if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            count(endpoint, "bad_idempotency_key");
+            return CompletableFuture.completedFuture(new ResponseEntity<>("Idempotency-Key must have 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters", HttpStatus.BAD_REQUEST));
+        }
+        String key = endpoint + ":" + idempotencyKey;
+        IdempotencyStore.Claim claim;
+        try {
+            claim = idempotencyStore.begin(key, fingerprint);
+        } catch (IllegalArgumentException e) {
+            count(endpoint, "idempotency_conflict");
+            return CompletableFuture.completedFuture(new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(error(endpoint, e));
+        }
+        if (!claim.isFirst()) {
+            return claim.getResponse().thenApply(response -> {
+                count(endpoint, "replayed");
+                return ResponseEntity.status(response.getStatus()).header(IDEMPOTENT_REPLAYED, "true").body(response.getBody());
+            });
+        }
+        long wait = rateLimit.getAsLong();
+        if (wait > 0) {
+            idempotencyStore.complete(claim, HttpStatus.TOO_MANY_REQUESTS.value(), null, false);
+            return CompletableFuture.completedFuture(tooManyRequests(endpoint, wait));
+        }
+        CompletableFuture<ResponseEntity<String>> result;
+        try {
+            result = handler.get();
+        } catch (RuntimeException e) {
+            idempotencyStore.complete(claim, HttpStatus.INTERNAL_SERVER_ERROR.value(), null, false);
+            throw e;
+        }
+        return result.whenComplete((response, e) -> {
+            if (response == null) {
+                idempotencyStore.complete(claim, HttpStatus.INTERNAL_SERVER_ERROR.value(), null, false);
+            } else {
+                idempotencyStore.complete(claim, response.getStatusCodeValue(), response.getBody(), !response.getStatusCode().is5xxServerError());
             }
-        } catch (Exception e){
-            logger.error(e.getMessage());
-            return new ResponseEntity<>(null, HttpStatus.INTERNAL_SERVER_ERROR);
+        });
+    }
+
+    private String fingerprint(String siteName, Reservation reservation) {
+        return siteName + "|" + reservation.getName() + "|" + reservation.getEmail() + "|" + reservation.getStartDate() + "|" + reservation.getEndDate();
+    }
+
+    /**
+     * Runs the handler on the endpoint's bulkhead, or answers 503 with Retry-After when it is full.
+     */
+    private <T> CompletableFuture<ResponseEntity<T>> submit(String endpoint, Executor executor, Supplier<ResponseEntity<T>> handler) {
+        try {
+            return CompletableFuture.supplyAsync(handler, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(rejected(endpoint));
+        }
+    }
+
+    private CompletableFuture<BookingResult> onWrites(Supplier<BookingResult> command) {
+        try {
+            return CompletableFuture.supplyAsync(command, executors.getWrites());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
 
+    private CompletableFuture<ResponseEntity<String>> await(String endpoint, CompletableFuture<BookingResult> result) {
+        return result.handle((outcome, e) -> {
+            if (e == null) {
+                return respond(endpoint, outcome);
+            }
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof RejectedExecutionException) {
+                return rejected(endpoint);
+            }
+            return error(endpoint, cause);
+        });
+    }
+
+    private <T> ResponseEntity<T> unknownSite(String endpoint) {
+        count(endpoint, "unknown_site");
+        return new ResponseEntity<>(null, HttpStatus.NOT_FOUND);
+    }
+
+    /**
+     * Takes a write token for the email of the reservation and returns the ms to wait when there
+     * is none; the client address and API key buckets are checked by RateLimitFilter.
+     */
+    private long emailWait(String email) {
+        return email == null ? 0 : rateLimiter.acquire(true, RateLimiter.EMAIL, email.trim().toLowerCase());
+    }
+
+    private <T> ResponseEntity<T> tooManyRequests(String endpoint, long waitMillis) {
+        count(endpoint, "rate_limited");
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header(HttpHeaders.RETRY_AFTER, String.valueOf((waitMillis + 999) / 1000)).build();
+    }
+
+    private <T> ResponseEntity<T> rejected(String endpoint) {
+        count(endpoint, "rejected");
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter)).build();
+    }
+
+    private <T> ResponseEntity<T> error(String endpoint, Throwable e) {
+        count(endpoint, "error");
+        logger.error(e.getMessage(), e);
+        return new ResponseEntity<>(null, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    private void count(String endpoint, String outcome) {
+        meterRegistry.counter("booking.outcome", "endpoint", endpoint, "outcome", outcome).increment();
+    }
+
 }
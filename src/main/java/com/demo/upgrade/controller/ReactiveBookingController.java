@@ -0,0 +1,187 @@
+package com.demo.upgrade.controller;
+
+import com.demo.upgrade.model.CompactAvailability;
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.service.AvailabilityFeed;
+import com.demo.upgrade.service.BookingResult;
+import com.demo.upgrade.service.ReactiveBookingService;
+import com.demo.upgrade.service.Sites;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api")
+@Profile("reactive")
+public class ReactiveBookingController {
+
+    private ReactiveBookingService bookingService;
+
+    private Sites sites;
+
+    private AvailabilityFeed availabilityFeed;
+
+    private Logger logger = LoggerFactory.getLogger(ReactiveBookingController.class);
+
+    public ReactiveBookingController(ReactiveBookingService bookingService, Sites sites, AvailabilityFeed availabilityFeed) {
+        this.bookingService = bookingService;
+        this.sites = sites;
+        this.availabilityFeed = availabilityFeed;
+    }
+
+    @GetMapping("/booking/status")
+    public Mono<ResponseEntity<List<String>>> getStatus(@RequestParam(required = false) String site,
+                                                        @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate,
+                                                        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return Mono.just(new ResponseEntity<>(null, HttpStatus.NOT_FOUND));
+        }
+        LocalDate start;
+        LocalDate end;
+        try {
+            start = startDate == null ? LocalDate.now().plusDays(1) : LocalDate.parse(startDate);
+            end = endDate == null ? LocalDate.now().plusMonths(1) : LocalDate.parse(endDate);
+        } catch (Exception e) {
+            return Mono.just(error(e));
+        }
+        if (!bookingService.verifyDates(start, end, false)) {
+            return Mono.just(new ResponseEntity<>(Collections.singletonList("Start or end date is not correct"), HttpStatus.BAD_REQUEST));
+        }
+        String eTag = "\"" + bookingService.getOccupancyVersion(siteName) + "-" + siteName + "-" + start + "-" + end + "\"";
+        if (eTag.equals(ifNoneMatch)) {
+            return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build());
+        }
+        return bookingService.getAvaliableDays(siteName, start, end)
+                .map(days -> ResponseEntity.ok().eTag(eTag).body(days))
+                .onErrorResume(e -> Mono.just(error(e)));
+    }
+
+    @GetMapping(value = "/booking/status", produces = CompactAvailability.MEDIA_TYPE)
+    public Mono<ResponseEntity<CompactAvailability>> getCompactStatus(@RequestParam(required = false) String site,
+                                                                      @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate,
+                                                                      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return Mono.just(new ResponseEntity<>(null, HttpStatus.NOT_FOUND));
+        }
+        LocalDate start;
+        LocalDate end;
+        try {
+            start = startDate == null ? LocalDate.now().plusDays(1) : LocalDate.parse(startDate);
+            end = endDate == null ? LocalDate.now().plusMonths(1) : LocalDate.parse(endDate);
+        } catch (Exception e) {
+            return Mono.just(error(e));
+        }
+        if (!bookingService.verifyRange(start, end)) {
+            return Mono.just(new ResponseEntity<>(null, HttpStatus.BAD_REQUEST));
+        }
+        String eTag = "\"" + bookingService.getOccupancyVersion(siteName) + "-" + siteName + "-" + start + "-" + end + "-compact\"";
+        if (eTag.equals(ifNoneMatch)) {
+            return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build());
+        }
+        return bookingService.getRemainingCapacity(siteName, start, end)
+                .map(remaining -> ResponseEntity.ok().eTag(eTag).body(CompactAvailability.of(siteName, start, sites.getSize(siteName), remaining)))
+                .onErrorResume(e -> Mono.just(error(e)));
+    }
+
+    @GetMapping(value = "/booking/status", params = "format=compact")
+    public Mono<ResponseEntity<CompactAvailability>> getCompactStatusByParameter(@RequestParam(required = false) String site,
+                                                                                 @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate,
+                                                                                 @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return getCompactStatus(site, startDate, endDate, ifNoneMatch);
+    }
+
+    @GetMapping(value = "/booking/status/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<Flux<ServerSentEvent<Object>>> streamStatus(@RequestParam(required = false) String site,
+                                                                      @RequestParam(required = false) String startDate, @RequestParam(required = false) String endDate) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return new ResponseEntity<>(null, HttpStatus.NOT_FOUND);
+        }
+        LocalDate start;
+        LocalDate end;
+        try {
+            start = startDate == null ? LocalDate.now().plusDays(1) : LocalDate.parse(startDate);
+            end = endDate == null ? LocalDate.now().plusMonths(1) : LocalDate.parse(endDate);
+        } catch (Exception e) {
+            return error(e);
+        }
+        if (!bookingService.verifyDates(start, end, false)) {
+            return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
+        }
+        Flux<ServerSentEvent<Object>> events = Flux.create(sink -> {
+            try {
+                Runnable unsubscribe = availabilityFeed.subscribe(siteName, start, end,
+                        (event, data) -> sink.next(ServerSentEvent.builder(data).event(event).build()));
+                sink.onDispose(unsubscribe::run);
+            } catch (Exception e) {
+                sink.error(e);
+            }
+        });
+        return ResponseEntity.ok(events);
+    }
+
+    @PostMapping("/booking/reserve")
+    public Mono<ResponseEntity<String>> reserve(@RequestParam(required = false) String site, @RequestBody Reservation reservation) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return Mono.just(new ResponseEntity<>(null, HttpStatus.NOT_FOUND));
+        }
+        reservation.setSite(siteName);
+        return bookingService.reserve(reservation).map(this::toResponse).onErrorResume(e -> Mono.just(error(e)));
+    }
+
+    @PutMapping("/booking/change")
+    public Mono<ResponseEntity<String>> update(@RequestParam(required = false) String site, @RequestParam(required = true) long id, @RequestBody Reservation reservation) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return Mono.just(new ResponseEntity<>(null, HttpStatus.NOT_FOUND));
+        }
+        reservation.setSite(siteName);
+        return bookingService.update(siteName, id, reservation).map(this::toResponse).onErrorResume(e -> Mono.just(error(e)));
+    }
+
+    @PutMapping("/booking/cancel")
+    public Mono<ResponseEntity<String>> cancel(@RequestParam(required = false) String site, @RequestParam(required = true) long id) {
+        String siteName = site == null ? sites.getDefault() : site;
+        if (!sites.contains(siteName)) {
+            return Mono.just(new ResponseEntity<>(null, HttpStatus.NOT_FOUND));
+        }
+        return bookingService.cancel(siteName, id).map(this::toResponse).onErrorResume(e -> Mono.just(error(e)));
+    }
+
+    private ResponseEntity<String> toResponse(BookingResult result) {
+        switch (result.getOutcome()) {
+            case CREATED:
+                return new ResponseEntity<>(result.getId().toString(), HttpStatus.CREATED);
+            case UPDATED:
+                return new ResponseEntity<>("Reservation updated", HttpStatus.OK);
+            case CANCELLED:
+                return new ResponseEntity<>("Reservation is cancelled", HttpStatus.OK);
+            case BAD_DATES:
+                return new ResponseEntity<>("Start or end date is not correct", HttpStatus.BAD_REQUEST);
+            case UNAVAILABLE:
+                return new ResponseEntity<>("Select time range is not avaliable", HttpStatus.BAD_REQUEST);
+            default:
+                return new ResponseEntity<>("Not found the reservation", HttpStatus.NOT_FOUND);
+        }
+    }
+
+    private <T> ResponseEntity<T> error(Throwable e) {
+        logger.error(e.getMessage(), e);
+        return new ResponseEntity<>(null, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+}
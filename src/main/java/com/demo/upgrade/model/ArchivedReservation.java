@@ -0,0 +1,79 @@
+package com.demo.upgrade.model;
+
+import javax.persistence.*;
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * A reservation moved out of reservations by the archiver: a past stay or a cancelled one.
+ */
+@Entity
+@Table(name = "reservations_history")
+public class ArchivedReservation {
+
+    @Id
+    private long id;
+
+    @Column(name = "site", nullable = false, length = 32)
+    private String site;
+
+    @Column(name = "fullname")
+    private String name;
+
+    @Column(name = "email")
+    private String email;
+
+    @Column(name = "start_date")
+    private LocalDate startDate;
+
+    @Column(name = "end_date")
+    private LocalDate endDate;
+
+    @Column(name = "cancelled", nullable = false)
+    private boolean cancelled;
+
+    @Column(name = "archived_at")
+    private Instant archivedAt;
+
+    protected ArchivedReservation() {
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Instant getArchivedAt() {
+        return archivedAt;
+    }
+
+    public Reservation toReservation() {
+        Reservation reservation = new Reservation(site, name, email, startDate, endDate);
+        reservation.setId(id);
+        reservation.setCancelled(cancelled);
+        return reservation;
+    }
+}
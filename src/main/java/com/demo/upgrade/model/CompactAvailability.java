@@ -0,0 +1,128 @@
+package com.demo.upgrade.model;
+
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDate;
+import java.util.Base64;
+
+/**
+ * Remaining capacity per night from startDate on, one unsigned byte per night (capped at 255).
+ * With encoding "rle" data is a run-length list of [varint run length][byte value] pairs, used
+ * whenever it is shorter than the plain bytes; with "bytes" it is one byte per night. data is base64.
+ */
+public class CompactAvailability {
+
+    public static final String MEDIA_TYPE = "application/vnd.upgrade.availability+json";
+
+    public static final String RLE = "rle";
+
+    public static final String BYTES = "bytes";
+
+    private String site;
+
+    private LocalDate startDate;
+
+    private int nights;
+
+    private int capacity;
+
+    private String encoding;
+
+    private String data;
+
+    protected CompactAvailability() {
+    }
+
+    public CompactAvailability(String site, LocalDate startDate, int nights, int capacity, String encoding, String data) {
+        this.site = site;
+        this.startDate = startDate;
+        this.nights = nights;
+        this.capacity = capacity;
+        this.encoding = encoding;
+        this.data = data;
+    }
+
+    /**
+     * Encodes remaining capacity per night in one pass over the array.
+     */
+    public static CompactAvailability of(String site, LocalDate startDate, int capacity, int[] remaining) {
+        byte[] plain = new byte[remaining.length];
+        ByteArrayOutputStream runs = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < remaining.length) {
+            int value = Math.max(0, Math.min(remaining[i], 255));
+            int run = 1;
+            plain[i] = (byte) value;
+            while (i + run < remaining.length && Math.max(0, Math.min(remaining[i + run], 255)) == value) {
+                plain[i + run] = (byte) value;
+                run++;
+            }
+            for (int length = run; ; length >>>= 7) {
+                if (length < 0x80) {
+                    runs.write(length);
+                    break;
+                }
+                runs.write((length & 0x7f) | 0x80);
+            }
+            runs.write(value);
+            i += run;
+        }
+        boolean rle = runs.size() < plain.length;
+        byte[] data = rle ? runs.toByteArray() : plain;
+        return new CompactAvailability(site, startDate, remaining.length, capacity, rle ? RLE : BYTES, Base64.getEncoder().encodeToString(data));
+    }
+
+    /**
+     * The remaining capacity per night, as encoded.
+     */
+    public int[] decode() {
+        byte[] bytes = Base64.getDecoder().decode(data);
+        int[] remaining = new int[nights];
+        if (BYTES.equals(encoding)) {
+            for (int i = 0; i < nights; i++) {
+                remaining[i] = bytes[i] & 0xff;
+            }
+            return remaining;
+        }
+        int position = 0;
+        int night = 0;
+        while (position < bytes.length) {
+            int run = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                run |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            int value = bytes[position++] & 0xff;
+            for (int end = night + run; night < end; night++) {
+                remaining[night] = value;
+            }
+        }
+        return remaining;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public int getNights() {
+        return nights;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public String getData() {
+        return data;
+    }
+}
@@ -0,0 +1,59 @@
+package com.demo.upgrade.model;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * The response given to a request carrying an Idempotency-Key, replayed when the key is sent again.
+ */
+@Entity
+@Table(name = "idempotency_keys", indexes = @Index(name = "ix_idempotency_keys_created", columnList = "created_at"))
+public class IdempotentResponse {
+
+    @Id
+    @Column(name = "idempotency_key", length = 255)
+    private String key;
+
+    @Column(name = "fingerprint", length = 1024)
+    private String fingerprint;
+
+    @Column(name = "status")
+    private int status;
+
+    @Column(name = "body")
+    private String body;
+
+    @Column(name = "created_at")
+    private Instant createdAt;
+
+    protected IdempotentResponse() {
+    }
+
+    public IdempotentResponse(String key, String fingerprint, int status, String body, Instant createdAt) {
+        this.key = key;
+        this.fingerprint = fingerprint;
+        this.status = status;
+        this.body = body;
+        this.createdAt = createdAt;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,61 @@
+package com.demo.upgrade.model;
+
+import javax.persistence.*;
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Nights a hold has taken in night_inventory, kept until the hold is confirmed or released so a
+ * node that goes away with active holds does not keep their nights for good.
+ */
+@Entity
+@Table(name = "inventory_holds", indexes = @Index(name = "ix_inventory_holds_expires", columnList = "expires_at"))
+public class InventoryHold {
+
+    @Id
+    @Column(name = "token", length = 36)
+    private String token;
+
+    @Column(name = "site", nullable = false, length = 32)
+    private String site;
+
+    @Column(name = "start_date", nullable = false)
+    private LocalDate startDate;
+
+    @Column(name = "end_date", nullable = false)
+    private LocalDate endDate;
+
+    @Column(name = "expires_at", nullable = false)
+    private Instant expiresAt;
+
+    protected InventoryHold() {
+    }
+
+    public InventoryHold(String token, String site, LocalDate startDate, LocalDate endDate, Instant expiresAt) {
+        this.token = token;
+        this.site = site;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
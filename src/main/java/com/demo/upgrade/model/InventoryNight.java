@@ -0,0 +1,79 @@
+package com.demo.upgrade.model;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * Remaining capacity of one night of a site, shared by every node and only changed by
+ * conditional UPDATEs in NightInventory.
+ */
+@Entity
+@Table(name = "night_inventory")
+@IdClass(InventoryNight.Key.class)
+public class InventoryNight {
+
+    @Id
+    @Column(name = "site", length = 32)
+    private String site;
+
+    @Id
+    @Column(name = "night")
+    private LocalDate night;
+
+    @Column(name = "capacity", nullable = false)
+    private int capacity;
+
+    @Column(name = "remaining", nullable = false)
+    private int remaining;
+
+    protected InventoryNight() {
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public LocalDate getNight() {
+        return night;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    public static class Key implements Serializable {
+        private String site;
+        private LocalDate night;
+
+        public Key() {
+        }
+
+        public Key(String site, LocalDate night) {
+            this.site = site;
+            this.night = night;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(site, key.site) && Objects.equals(night, key.night);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(site, night);
+        }
+    }
+}
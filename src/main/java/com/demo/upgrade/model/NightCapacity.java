@@ -0,0 +1,29 @@
+package com.demo.upgrade.model;
+
+import java.time.LocalDate;
+
+/**
+ * Remaining capacity of one night, as pushed to status stream subscribers.
+ */
+public class NightCapacity {
+
+    private LocalDate night;
+
+    private int remaining;
+
+    protected NightCapacity() {
+    }
+
+    public NightCapacity(LocalDate night, int remaining) {
+        this.night = night;
+        this.remaining = remaining;
+    }
+
+    public LocalDate getNight() {
+        return night;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+}
@@ -0,0 +1,30 @@
+package com.demo.upgrade.model;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * One row the primary stamps every upgrade.replica.heartbeat-interval ms; how far behind a replica's
+ * copy is tells its replication lag.
+ */
+@Entity
+@Table(name = "replica_heartbeat")
+public class ReplicaHeartbeat {
+
+    @Id
+    private int id;
+
+    @Column(name = "beat_at")
+    private Instant beatAt;
+
+    protected ReplicaHeartbeat() {
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Instant getBeatAt() {
+        return beatAt;
+    }
+}
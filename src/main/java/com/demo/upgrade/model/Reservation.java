@@ -1,15 +1,36 @@
 package com.demo.upgrade.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import javax.persistence.*;
 import java.time.LocalDate;
 
 @Entity
-@Table(name = "reservations")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "reservations")
+@Table(name = "reservations", indexes = {
+        @Index(name = "ix_reservations_occupancy", columnList = "site, cancelled, end_date, start_date"),
+        @Index(name = "ix_reservations_end_date", columnList = "end_date, id")})
 public class Reservation {
+    /**
+     * Site of reservations made before sites existed and of requests that do not name one.
+     */
+    public static final String DEFAULT_SITE = "main";
+
+    /**
+     * Ids Hibernate's pooled optimizer takes per reservations_seq value; a caller that draws value v owns (v - ID_BLOCK_SIZE, v].
+     */
+    public static final int ID_BLOCK_SIZE = 50;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "reservations_seq")
+    @SequenceGenerator(name = "reservations_seq", sequenceName = "reservations_seq", allocationSize = ID_BLOCK_SIZE)
     private long id;
 
+    @Column(name = "site", nullable = false, length = 32, columnDefinition = "varchar(32) default 'main' not null")
+    private String site = DEFAULT_SITE;
+
     @Column(name = "fullname")
     private String name;
 
@@ -25,6 +46,9 @@ public class Reservation {
     @Column(name = "cancelled")
     private boolean cancelled;
 
+    protected Reservation() {
+    }
+
     public Reservation (String name, String email, LocalDate startDate, LocalDate endDate) {
         this.name = name;
         this.email = email;
@@ -33,6 +57,11 @@ public class Reservation {
         this.cancelled = false;
     }
 
+    public Reservation (String site, String name, String email, LocalDate startDate, LocalDate endDate) {
+        this(name, email, startDate, endDate);
+        this.site = site;
+    }
+
     public long getId() {
         return id;
     }
@@ -41,6 +70,14 @@ public class Reservation {
         this.id = id;
     }
 
+    public String getSite() {
+        return site;
+    }
+
+    public void setSite(String site) {
+        this.site = site;
+    }
+
     public String getName() {
         return name;
     }
@@ -85,6 +122,7 @@ public class Reservation {
     public String toString() {
         return "Reservation{" +
                 "id=" + id +
+                ", site='" + site + '\'' +
                 ", name='" + name + '\'' +
                 ", email='" + email + '\'' +
                 ", startDate=" + startDate +
@@ -92,4 +130,16 @@ public class Reservation {
                 ", cancelled=" + cancelled +
                 '}';
     }
-}
\ No newline at end of file
+
+    /**
+     * The ids [first, last] owned by whoever drew the reservations_seq value, or null when the value
+     * must be skipped: Hibernate reads two values when it starts on a fresh sequence and claims
+     * everything up to the second.
+     */
+    public static long[] idBlock(long sequenceValue) {
+        if (sequenceValue == 1 + ID_BLOCK_SIZE) {
+            return null;
+        }
+        return new long[]{Math.max(1, sequenceValue - ID_BLOCK_SIZE + 1), sequenceValue};
+    }
+}
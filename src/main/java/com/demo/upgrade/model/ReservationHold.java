@@ -0,0 +1,51 @@
+package com.demo.upgrade.model;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Nights held for a client until expiresAt, confirmed into a reservation with the hold id.
+ */
+public class ReservationHold {
+
+    private String holdId;
+
+    private String site;
+
+    private LocalDate startDate;
+
+    private LocalDate endDate;
+
+    private Instant expiresAt;
+
+    protected ReservationHold() {
+    }
+
+    public ReservationHold(String holdId, String site, LocalDate startDate, LocalDate endDate, Instant expiresAt) {
+        this.holdId = holdId;
+        this.site = site;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getHoldId() {
+        return holdId;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
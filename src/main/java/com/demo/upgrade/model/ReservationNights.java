@@ -0,0 +1,44 @@
+package com.demo.upgrade.model;
+
+import java.time.LocalDate;
+
+/**
+ * The id and dates of an active reservation, read without loading the entity.
+ */
+public class ReservationNights {
+
+    private long id;
+
+    private String site;
+
+    private LocalDate startDate;
+
+    private LocalDate endDate;
+
+    public ReservationNights(long id, LocalDate startDate, LocalDate endDate) {
+        this(id, Reservation.DEFAULT_SITE, startDate, endDate);
+    }
+
+    public ReservationNights(long id, String site, LocalDate startDate, LocalDate endDate) {
+        this.id = id;
+        this.site = site;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+}
@@ -0,0 +1,88 @@
+package com.demo.upgrade.model;
+
+import javax.persistence.*;
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * A request for nights that were full when it was made. reservationId is set once the allocator
+ * has booked it.
+ */
+@Entity
+@Table(name = "waitlist", indexes = @Index(name = "ix_waitlist_pending", columnList = "reservation_id, start_date"))
+public class WaitlistEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "waitlist_seq")
+    @SequenceGenerator(name = "waitlist_seq", sequenceName = "waitlist_seq", allocationSize = 50)
+    private long id;
+
+    @Column(name = "site", nullable = false, length = 32)
+    private String site;
+
+    @Column(name = "fullname")
+    private String name;
+
+    @Column(name = "email")
+    private String email;
+
+    @Column(name = "start_date")
+    private LocalDate startDate;
+
+    @Column(name = "end_date")
+    private LocalDate endDate;
+
+    @Column(name = "created_at")
+    private Instant createdAt;
+
+    @Column(name = "reservation_id")
+    private Long reservationId;
+
+    protected WaitlistEntry() {
+    }
+
+    public WaitlistEntry(String site, String name, String email, LocalDate startDate, LocalDate endDate, Instant createdAt) {
+        this.site = site;
+        this.name = name;
+        this.email = email;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.createdAt = createdAt;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Long getReservationId() {
+        return reservationId;
+    }
+
+    public void setReservationId(Long reservationId) {
+        this.reservationId = reservationId;
+    }
+}
@@ -0,0 +1,7 @@
+package com.demo.upgrade.repository;
+
+import com.demo.upgrade.model.ArchivedReservation;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface ArchivedReservationRepository extends JpaRepository<ArchivedReservation, Long> {
+}
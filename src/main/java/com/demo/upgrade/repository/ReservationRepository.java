@@ -1,13 +1,41 @@
 package com.demo.upgrade.repository;
 
 import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationNights;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 
+import javax.persistence.QueryHint;
 import java.time.LocalDate;
 import java.util.List;
 
 public interface ReservationRepository extends JpaRepository<Reservation, Long> {
-    @Query(value = "SELECT * FROM reservations WHERE end_date>=?1 and start_date<=?2 and cancelled=0", nativeQuery = true)
-    List<Reservation> findAvaliable(LocalDate startDate, LocalDate endDate);
+    @Query("SELECT new com.demo.upgrade.model.ReservationNights(r.id, r.site, r.startDate, r.endDate) FROM Reservation r WHERE r.endDate>=?1 and r.startDate<=?2 and r.cancelled=false")
+    List<ReservationNights> findOccupancy(LocalDate startDate, LocalDate endDate);
+
+    @Query("SELECT new com.demo.upgrade.model.ReservationNights(r.id, r.site, r.startDate, r.endDate) FROM Reservation r WHERE r.site=?1 and r.endDate>=?2 and r.startDate<=?3 and r.cancelled=false")
+    @QueryHints(@QueryHint(name = org.hibernate.annotations.QueryHints.CACHEABLE, value = "true"))
+    List<ReservationNights> findSiteOccupancy(String site, LocalDate startDate, LocalDate endDate);
+
+    boolean existsByIdAndSiteAndCancelledFalse(Long id, String site);
+
+    @Query("SELECT new com.demo.upgrade.model.ReservationNights(r.id, r.site, r.startDate, r.endDate) FROM Reservation r WHERE r.id=?1")
+    ReservationNights findNights(Long id);
+
+    /**
+     * Write-locks the row of an active reservation until the transaction ends, without changing it.
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("UPDATE Reservation r SET r.cancelled=false WHERE r.id=?1 and r.site=?2 and r.cancelled=false")
+    int lock(Long id, String site);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("UPDATE Reservation r SET r.name=?3, r.email=?4, r.startDate=?5, r.endDate=?6 WHERE r.id=?1 and r.site=?2 and r.cancelled=false")
+    int update(Long id, String site, String name, String email, LocalDate startDate, LocalDate endDate);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("UPDATE Reservation r SET r.cancelled=true WHERE r.id=?1 and r.site=?2 and r.cancelled=false")
+    int cancel(Long id, String site);
 }
@@ -0,0 +1,18 @@
+package com.demo.upgrade.repository;
+
+import com.demo.upgrade.model.WaitlistEntry;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public interface WaitlistRepository extends JpaRepository<WaitlistEntry, Long> {
+    @Query("SELECT w FROM WaitlistEntry w WHERE w.reservationId IS NULL and w.startDate>=?1 ORDER BY w.id")
+    List<WaitlistEntry> findPending(LocalDate startDate);
+
+    @Modifying
+    @Query("UPDATE WaitlistEntry w SET w.reservationId=?2 WHERE w.id=?1 and w.reservationId IS NULL")
+    int allocate(Long id, Long reservationId);
+}
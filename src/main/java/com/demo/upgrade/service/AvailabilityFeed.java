@@ -0,0 +1,277 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.CompactAvailability;
+import com.demo.upgrade.model.NightCapacity;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes remaining capacity to status stream subscribers: a snapshot of their range when they
+ * subscribe, then the nights that changed. Changes reported by the occupancy index are only
+ * collected as a dirty range per site; every upgrade.stream.coalesce-interval ms one scheduler
+ * thread recomputes that range once and sends each subscriber the nights whose value differs
+ * from what it was last sent, so bursts of bookings coalesce into one delta. Deltas are written by
+ * a pool of upgrade.stream.send-threads, one at a time per subscriber, so a slow client never holds
+ * up the scheduler thread; while its last delta is still being written it is skipped and gets the
+ * nights that changed meanwhile in its next one, and after upgrade.stream.send-timeout ms it is closed.
+ * With the night inventory on, bookings made on other nodes never reach this node's index, so every
+ * upgrade.stream.inventory-poll-interval ms the whole subscribed range is marked dirty and re-read.
+ */
+@Component
+public class AvailabilityFeed implements OccupancyListener {
+
+    public interface Subscriber {
+        void send(String event, Object data) throws IOException;
+
+        /**
+         * Called when the subscriber is dropped for not taking a delta in time.
+         */
+        default void close() {
+        }
+    }
+
+    @Value("${upgrade.stream.send-threads:4}")
+    private int sendThreads;
+
+    @Value("${upgrade.stream.send-queue:1000}")
+    private int sendQueue;
+
+    @Value("${upgrade.stream.send-timeout:5000}")
+    private long sendTimeout;
+
+    @Value("${upgrade.inventory.enabled:false}")
+    private boolean inventoryEnabled;
+
+    private BookingService bookingService;
+
+    private OccupancyIndex occupancyIndex;
+
+    private Sites sites;
+
+    private MeterRegistry meterRegistry;
+
+    private Logger logger = LoggerFactory.getLogger(AvailabilityFeed.class);
+
+    private Map<String, Channel> channels;
+
+    private AtomicLong deltas = new AtomicLong();
+
+    private ThreadPoolTaskExecutor senders;
+
+    private Executor sender;
+
+    public AvailabilityFeed(BookingService bookingService, OccupancyIndex occupancyIndex, Sites sites, MeterRegistry meterRegistry) {
+        this.bookingService = bookingService;
+        this.occupancyIndex = occupancyIndex;
+        this.sites = sites;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        Map<String, Channel> bySite = new HashMap<>();
+        for (String site : sites.getNames()) {
+            Channel channel = new Channel();
+            Gauge.builder("booking.stream.subscribers", channel.subscriptions, List::size)
+                    .tag("site", site)
+                    .register(meterRegistry);
+            bySite.put(site, channel);
+        }
+        channels = Collections.unmodifiableMap(bySite);
+        FunctionCounter.builder("booking.stream.deltas", deltas, AtomicLong::get).register(meterRegistry);
+        senders = new ThreadPoolTaskExecutor();
+        senders.setThreadNamePrefix("booking-stream-");
+        senders.setCorePoolSize(sendThreads);
+        senders.setMaxPoolSize(sendThreads);
+        senders.setQueueCapacity(sendQueue);
+        senders.initialize();
+        sender = senders;
+        occupancyIndex.addListener(this);
+    }
+
+    @PreDestroy
+    public void stop() {
+        senders.shutdown();
+    }
+
+    /**
+     * Sends the snapshot of [startDate, endDate) and registers the subscriber for deltas. The
+     * returned handle unsubscribes.
+     */
+    public Runnable subscribe(String site, LocalDate startDate, LocalDate endDate, Subscriber subscriber) throws IOException {
+        Channel channel = channel(site);
+        Subscription subscription = new Subscription(startDate.toEpochDay(), subscriber);
+        synchronized (channel) {
+            // listed before the snapshot is read, so a change made meanwhile still marks its nights dirty
+            channel.subscriptions.add(subscription);
+            try {
+                subscription.sent = bookingService.getRemainingCapacity(site, startDate, endDate);
+                subscriber.send("snapshot", CompactAvailability.of(site, startDate, sites.getSize(site), subscription.sent.clone()));
+            } catch (IOException | RuntimeException e) {
+                channel.subscriptions.remove(subscription);
+                throw e;
+            }
+        }
+        return () -> channel.subscriptions.remove(subscription);
+    }
+
+    public int getSubscribers(String site) {
+        return channel(site).subscriptions.size();
+    }
+
+    @Override
+    public void occupancyChanged(String site, long firstDay, long endDay) {
+        Channel channel = channels.get(site);
+        if (channel == null || channel.subscriptions.isEmpty()) {
+            return;
+        }
+        synchronized (channel.dirtyLock) {
+            channel.dirtyFirst = Math.min(channel.dirtyFirst, firstDay);
+            channel.dirtyEnd = Math.max(channel.dirtyEnd, endDay);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${upgrade.stream.inventory-poll-interval:5000}", fixedDelayString = "${upgrade.stream.inventory-poll-interval:5000}")
+    public void pollInventory() {
+        if (!inventoryEnabled) {
+            return;
+        }
+        // flush clamps this to the ranges actually subscribed
+        channels.keySet().forEach(site -> occupancyChanged(site, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Scheduled(initialDelayString = "${upgrade.stream.coalesce-interval:250}", fixedDelayString = "${upgrade.stream.coalesce-interval:250}")
+    public void flush() {
+        channels.forEach(this::flush);
+    }
+
+    private void flush(String site, Channel channel) {
+        long dirtyFirst;
+        long dirtyEnd;
+        synchronized (channel.dirtyLock) {
+            dirtyFirst = channel.dirtyFirst;
+            dirtyEnd = channel.dirtyEnd;
+            channel.dirtyFirst = Long.MAX_VALUE;
+            channel.dirtyEnd = Long.MIN_VALUE;
+        }
+        if (dirtyFirst >= dirtyEnd) {
+            return;
+        }
+        synchronized (channel) {
+            long first = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+            for (Subscription subscription : channel.subscriptions) {
+                first = Math.min(first, subscription.firstDay);
+                end = Math.max(end, subscription.firstDay + subscription.sent.length);
+            }
+            first = Math.max(first, dirtyFirst);
+            end = Math.min(end, dirtyEnd);
+            if (first >= end) {
+                return;
+            }
+            int[] current = bookingService.getRemainingCapacity(site, LocalDate.ofEpochDay(first), LocalDate.ofEpochDay(end));
+            long now = System.currentTimeMillis();
+            boolean skipped = false;
+            for (Subscription subscription : channel.subscriptions) {
+                long sendingSince = subscription.sendingSince;
+                if (sendingSince != 0) {
+                    if (now - sendingSince > sendTimeout) {
+                        logger.debug("Dropping status stream subscriber that took no delta for " + (now - sendingSince) + " ms");
+                        channel.subscriptions.remove(subscription);
+                        subscription.subscriber.close();
+                    } else {
+                        skipped = true;
+                    }
+                    continue;
+                }
+                List<NightCapacity> changed = new ArrayList<>();
+                long last = Math.min(end, subscription.firstDay + subscription.sent.length);
+                for (long day = Math.max(first, subscription.firstDay); day < last; day++) {
+                    int remaining = current[(int) (day - first)];
+                    int index = (int) (day - subscription.firstDay);
+                    if (subscription.sent[index] != remaining) {
+                        subscription.sent[index] = remaining;
+                        changed.add(new NightCapacity(LocalDate.ofEpochDay(day), remaining));
+                    }
+                }
+                if (changed.isEmpty()) {
+                    continue;
+                }
+                subscription.sendingSince = now;
+                try {
+                    sender.execute(() -> send(channel, subscription, changed));
+                } catch (RejectedExecutionException e) {
+                    subscription.sendingSince = 0;
+                    logger.debug("Dropping status stream subscriber: no send thread free");
+                    channel.subscriptions.remove(subscription);
+                    subscription.subscriber.close();
+                }
+            }
+            if (skipped) {
+                // the busy subscribers were not sent these nights yet
+                occupancyChanged(site, first, end);
+            }
+        }
+    }
+
+    private void send(Channel channel, Subscription subscription, List<NightCapacity> changed) {
+        try {
+            subscription.subscriber.send("delta", changed);
+            deltas.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Dropping status stream subscriber: " + e.getMessage());
+            channel.subscriptions.remove(subscription);
+        } finally {
+            subscription.sendingSince = 0;
+        }
+    }
+
+    private Channel channel(String site) {
+        Channel channel = channels.get(site);
+        if (channel == null) {
+            throw new IllegalArgumentException("Unknown site " + site);
+        }
+        return channel;
+    }
+
+    private static class Channel {
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private final Object dirtyLock = new Object();
+        private long dirtyFirst = Long.MAX_VALUE;
+        private long dirtyEnd = Long.MIN_VALUE;
+    }
+
+    private static class Subscription {
+        private final long firstDay;
+        private final Subscriber subscriber;
+        private int[] sent;
+        // when the delta being written was handed over, 0 when none is
+        private volatile long sendingSince;
+
+        Subscription(long firstDay, Subscriber subscriber) {
+            this.firstDay = firstDay;
+            this.subscriber = subscriber;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.demo.upgrade.service;
+
+public enum BookingOutcome {
+    CREATED,
+    UPDATED,
+    CANCELLED,
+    BAD_DATES,
+    UNAVAILABLE,
+    NOT_FOUND
+}
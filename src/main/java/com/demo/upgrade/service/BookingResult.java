@@ -0,0 +1,33 @@
+package com.demo.upgrade.service;
+
+public class BookingResult {
+
+    private BookingOutcome outcome;
+
+    private Long id;
+
+    public BookingResult(BookingOutcome outcome, Long id) {
+        this.outcome = outcome;
+        this.id = id;
+    }
+
+    public static BookingResult of(BookingOutcome outcome) {
+        return new BookingResult(outcome, null);
+    }
+
+    public BookingOutcome getOutcome() {
+        return outcome;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "BookingResult{" +
+                "outcome=" + outcome +
+                ", id=" + id +
+                '}';
+    }
+}
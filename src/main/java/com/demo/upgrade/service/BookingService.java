@@ -6,17 +6,27 @@ import java.time.LocalDate;
 import java.util.List;
 
 public interface BookingService {
-    List<String> getAvaliableDays(LocalDate startDate, LocalDate endDate);
+    List<String> getAvaliableDays(String site, LocalDate startDate, LocalDate endDate);
 
-    Boolean isAvaliable(LocalDate startDate, LocalDate endDate, Long id);
+    int[] getRemainingCapacity(String site, LocalDate startDate, LocalDate endDate);
+
+    long getOccupancyVersion(String site, LocalDate startDate, LocalDate endDate);
+
+    Boolean isAvaliable(String site, LocalDate startDate, LocalDate endDate, Long id);
 
     Long reserve(Reservation reservation);
 
+    List<BookingResult> reserveAll(List<Reservation> reservations);
+
+    Long reserveHeld(long holdId, String holdToken, Reservation reservation);
+
     Reservation getReservation(Long id);
 
-    Reservation update(Long id, Reservation reservation);
+    BookingResult change(String site, Long id, Reservation reservation);
 
-    void cancel(Long id);
+    BookingResult cancel(String site, Long id);
 
     boolean verifyDates(LocalDate start, LocalDate end, boolean isReserve);
+
+    boolean verifyRange(LocalDate start, LocalDate end);
 }
@@ -1,9 +1,15 @@
 package com.demo.upgrade.service;
 
+import com.demo.upgrade.config.ReadReplica;
+import com.demo.upgrade.model.ArchivedReservation;
 import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationNights;
+import com.demo.upgrade.repository.ArchivedReservationRepository;
 import com.demo.upgrade.repository.ReservationRepository;
+import io.micrometer.core.annotation.Timed;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDate;
 import java.util.*;
@@ -11,18 +17,103 @@ import java.util.*;
 @Service
 public class BookingServiceImpl implements BookingService {
 
-    @Value("${upgrade.reservation.size}")
-    private int size;
+    @Value("${upgrade.status.max-range-days:366}")
+    private int maxRangeDays;
 
     private ReservationRepository reservationRepository;
 
-    public BookingServiceImpl(ReservationRepository reservationRepository) {
+    private ArchivedReservationRepository archivedReservationRepository;
+
+    private OccupancyIndex occupancyIndex;
+
+    private StatusCache statusCache;
+
+    private Sites sites;
+
+    private NightInventory nightInventory;
+
+    public BookingServiceImpl(ReservationRepository reservationRepository, ArchivedReservationRepository archivedReservationRepository,
+                              OccupancyIndex occupancyIndex, StatusCache statusCache, Sites sites, NightInventory nightInventory) {
         this.reservationRepository = reservationRepository;
+        this.archivedReservationRepository = archivedReservationRepository;
+        this.occupancyIndex = occupancyIndex;
+        this.statusCache = statusCache;
+        this.sites = sites;
+        this.nightInventory = nightInventory;
+    }
+
+    @Timed(value = "booking.service", histogram = true)
+    @ReadReplica
+    public List<String> getAvaliableDays(String site, LocalDate startDate, LocalDate endDate) {
+        int[] remaining = getInventory(site, startDate, endDate);
+        if (remaining != null) {
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < remaining.length; i++) {
+                if (remaining[i] > 0) {
+                    result.add(startDate.plusDays(i).toString());
+                }
+            }
+            return result;
+        }
+        List<String> cached = statusCache.get(site, startDate, endDate);
+        if (cached != null) {
+            return cached;
+        }
+        long version = occupancyIndex.getVersion(site);
+        List<String> result = Collections.unmodifiableList(findAvaliableDays(site, startDate, endDate));
+        statusCache.put(site, startDate, endDate, result, version);
+        return result;
+    }
+
+    /**
+     * Remaining capacity of each night in [startDate, endDate). Ranges past the occupancy index
+     * window are counted from one query, in one pass over the reservations.
+     */
+    @Timed(value = "booking.service", histogram = true)
+    public int[] getRemainingCapacity(String site, LocalDate startDate, LocalDate endDate) {
+        int[] remaining = getInventory(site, startDate, endDate);
+        if (remaining != null) {
+            return remaining;
+        }
+        int size = sites.getSize(site);
+        int[] nights = bookedNights(site, startDate, endDate);
+        for (int i = 0; i < nights.length; i++) {
+            nights[i] = Math.max(size - nights[i], 0);
+        }
+        return nights;
+    }
+
+    /**
+     * With the night inventory on, a hash of the range's remaining nights, since bookings made on
+     * other nodes change those rows but never this node's occupancy index.
+     */
+    public long getOccupancyVersion(String site, LocalDate startDate, LocalDate endDate) {
+        int[] remaining = getInventory(site, startDate, endDate);
+        if (remaining == null) {
+            return occupancyIndex.getVersion(site);
+        }
+        long version = 1125899906842597L;
+        for (int night : remaining) {
+            version = 31 * version + night;
+        }
+        return version;
     }
 
-    public List<String> getAvaliableDays(LocalDate startDate, LocalDate endDate) {
+    private List<String> findAvaliableDays(String site, LocalDate startDate, LocalDate endDate) {
+        int size = sites.getSize(site);
         List<String> result = new ArrayList<>();
-        List<Reservation> resList = reservationRepository.findAvaliable(startDate, endDate);
+        int[] booked = occupancyIndex.bookedNights(site, startDate, endDate);
+        if (booked != null) {
+            LocalDate date = startDate;
+            for (int night : booked) {
+                if (night < size) {
+                    result.add(date.toString());
+                }
+                date = date.plusDays(1);
+            }
+            return result;
+        }
+        List<ReservationNights> resList = reservationRepository.findSiteOccupancy(site, startDate, endDate);
         Map<String, Integer> bookedMap = getBookedMap(resList);
         for(LocalDate date = startDate; date.isBefore(endDate); date = date.plusDays(1)) {
             if(bookedMap.isEmpty() || !bookedMap.containsKey(date.toString()) || bookedMap.get(date.toString()) < size) {
@@ -32,8 +123,18 @@ public class BookingServiceImpl implements BookingService {
         return result;
     }
 
-    public Boolean isAvaliable(LocalDate startDate, LocalDate endDate, Long id) {
-        List<Reservation> resList = reservationRepository.findAvaliable(startDate, endDate);
+    @Timed(value = "booking.service", histogram = true)
+    public Boolean isAvaliable(String site, LocalDate startDate, LocalDate endDate, Long id) {
+        int[] remaining = id == null ? getInventory(site, startDate, endDate) : null;
+        if (remaining != null) {
+            return Arrays.stream(remaining).allMatch(night -> night > 0);
+        }
+        int size = sites.getSize(site);
+        Boolean avaliable = occupancyIndex.isAvailable(site, startDate, endDate, id, size);
+        if (avaliable != null) {
+            return avaliable;
+        }
+        List<ReservationNights> resList = reservationRepository.findSiteOccupancy(site, startDate, endDate);
         if (id != null) {
             resList.removeIf(reservation -> reservation.getId() == id);
         }
@@ -46,41 +147,134 @@ public class BookingServiceImpl implements BookingService {
         return true;
     }
 
+    /**
+     * With the night inventory on, the nights are claimed first; returns null when one is full.
+     */
+    @Timed(value = "booking.service", histogram = true)
+    @Transactional
     public Long reserve(Reservation reservation) {
+        if (!claimInventory(reservation)) {
+            return null;
+        }
+        Reservation res = reservationRepository.save(reservation);
+        occupancyIndex.add(res.getSite(), res.getId(), res.getStartDate(), res.getEndDate());
+        return res.getId();
+    }
+
+    /**
+     * Saves a reservation for the nights of a hold, handing them over from the hold in the index
+     * so they are never free in between. The nights the hold took in the night inventory are
+     * handed over too; when the refresh has given them back meanwhile they are claimed again, and
+     * null is returned when one is full.
+     */
+    @Timed(value = "booking.service", histogram = true)
+    @Transactional
+    public Long reserveHeld(long holdId, String holdToken, Reservation reservation) {
+        if (nightInventory.isEnabled() && !nightInventory.handOver(holdToken) && !claimInventory(reservation)) {
+            return null;
+        }
         Reservation res = reservationRepository.save(reservation);
+        if (!occupancyIndex.confirmHold(res.getSite(), holdId, res.getId())) {
+            occupancyIndex.add(res.getSite(), res.getId(), res.getStartDate(), res.getEndDate());
+        }
         return res.getId();
     }
 
+    /**
+     * Checks all reservations against the capacity of their site together, in list order, and
+     * inserts the accepted ones in one JDBC batch.
+     */
+    @Timed(value = "booking.service", histogram = true)
+    @Transactional
+    public List<BookingResult> reserveAll(List<Reservation> reservations) {
+        BookingResult[] results = new BookingResult[reservations.size()];
+        List<Reservation> accepted = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        LocalDate windowStart = LocalDate.now().plusDays(1);
+        LocalDate windowEnd = LocalDate.now().plusMonths(1).plusDays(1);
+        Map<String, int[]> booked = new HashMap<>();
+        for (int i = 0; i < reservations.size(); i++) {
+            Reservation reservation = reservations.get(i);
+            if (!verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+                results[i] = BookingResult.of(BookingOutcome.BAD_DATES);
+            } else if (nightInventory.isEnabled() ? !claimInventory(reservation) : !claim(booked.computeIfAbsent(reservation.getSite(),
+                    site -> bookedNights(site, windowStart, windowEnd)), windowStart, reservation)) {
+                results[i] = BookingResult.of(BookingOutcome.UNAVAILABLE);
+            } else {
+                accepted.add(reservation);
+                positions.add(i);
+            }
+        }
+        List<Reservation> saved = reservationRepository.saveAll(accepted);
+        for (int i = 0; i < saved.size(); i++) {
+            Reservation res = saved.get(i);
+            occupancyIndex.add(res.getSite(), res.getId(), res.getStartDate(), res.getEndDate());
+            results[positions.get(i)] = new BookingResult(BookingOutcome.CREATED, res.getId());
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Falls back to reservations_history, so past stays are still found once archived.
+     */
+    @Timed(value = "booking.service", histogram = true)
+    @ReadReplica
     public Reservation getReservation(Long id) {
         Optional<Reservation> result = reservationRepository.findById(id);
+        if (!result.isPresent()) {
+            result = archivedReservationRepository.findById(id).map(ArchivedReservation::toReservation);
+        }
         if(result.isPresent() && !result.get().isCancelled()) {
             return result.get();
         }
         return null;
     }
 
-    public Reservation update(Long id, Reservation reservation) {
-        Optional<Reservation> result = reservationRepository.findById(id);
-        if(result.isPresent()) {
-            Reservation res = result.get();
-            res.setName(reservation.getName());
-            res.setEmail(reservation.getEmail());
-            res.setStartDate(reservation.getStartDate());
-            res.setEndDate(reservation.getEndDate());
-            return reservationRepository.save(res);
+    /**
+     * Looks the reservation up, checks the new dates and writes them with one conditional UPDATE,
+     * all in one transaction: two statements while the dates are inside the occupancy index.
+     */
+    @Timed(value = "booking.service", histogram = true)
+    @Transactional
+    public BookingResult change(String site, Long id, Reservation reservation) {
+        if (nightInventory.isEnabled()) {
+            return changeInventory(site, id, reservation);
         }
-        return null;
+        if (!reservationRepository.existsByIdAndSiteAndCancelledFalse(id, site)) {
+            return BookingResult.of(BookingOutcome.NOT_FOUND);
+        }
+        if (!verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+            return BookingResult.of(BookingOutcome.BAD_DATES);
+        }
+        if (!isAvaliable(site, reservation.getStartDate(), reservation.getEndDate(), id)) {
+            return BookingResult.of(BookingOutcome.UNAVAILABLE);
+        }
+        if (reservationRepository.update(id, site, reservation.getName(), reservation.getEmail(), reservation.getStartDate(), reservation.getEndDate()) == 0) {
+            return BookingResult.of(BookingOutcome.NOT_FOUND);
+        }
+        occupancyIndex.add(site, id, reservation.getStartDate(), reservation.getEndDate());
+        return new BookingResult(BookingOutcome.UPDATED, id);
     }
 
-    public void cancel(Long id) {
-        Optional<Reservation> result = reservationRepository.findById(id);
-        if(result.isPresent()) {
-            Reservation res = result.get();
-            res.setCancelled(true);
-            reservationRepository.save(res);
+    /**
+     * One conditional UPDATE; a reservation that is missing, at another site or already cancelled is not found.
+     * With the night inventory on, its nights are then given back.
+     */
+    @Timed(value = "booking.service", histogram = true)
+    @Transactional
+    public BookingResult cancel(String site, Long id) {
+        if (reservationRepository.cancel(id, site) == 0) {
+            return BookingResult.of(BookingOutcome.NOT_FOUND);
         }
+        if (nightInventory.isEnabled()) {
+            ReservationNights nights = reservationRepository.findNights(id);
+            nightInventory.release(site, nights.getStartDate(), nights.getEndDate());
+        }
+        occupancyIndex.remove(site, id);
+        return new BookingResult(BookingOutcome.CANCELLED, id);
     }
 
+    @Timed(value = "booking.service", histogram = true)
     public boolean verifyDates(LocalDate start, LocalDate end, boolean isReserve) {
         LocalDate now = LocalDate.now();
         if(start.compareTo(now.plusDays(1)) < 0 || start.compareTo(now.plusMonths(1)) > 0)
@@ -92,9 +286,94 @@ public class BookingServiceImpl implements BookingService {
         return !isReserve || start.compareTo(end.minusDays(4)) > 0;
     }
 
-    private Map<String, Integer> getBookedMap(List<Reservation> resList) {
+    /**
+     * Checks a status range that may be longer than the one month reservations are limited to.
+     */
+    public boolean verifyRange(LocalDate start, LocalDate end) {
+        return !start.isBefore(LocalDate.now().plusDays(1)) && !end.isBefore(start)
+                && end.toEpochDay() - start.toEpochDay() <= maxRangeDays;
+    }
+
+    /**
+     * Locks the reservation row, so its dates cannot change under us, then gives its nights back
+     * and claims the new ones. When they are full the old nights are claimed again; they cannot
+     * have been taken meanwhile, since their rows stay locked by this transaction.
+     */
+    private BookingResult changeInventory(String site, Long id, Reservation reservation) {
+        if (reservationRepository.lock(id, site) == 0) {
+            return BookingResult.of(BookingOutcome.NOT_FOUND);
+        }
+        if (!verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+            return BookingResult.of(BookingOutcome.BAD_DATES);
+        }
+        ReservationNights current = reservationRepository.findNights(id);
+        nightInventory.release(site, current.getStartDate(), current.getEndDate());
+        if (!nightInventory.claim(site, reservation.getStartDate(), reservation.getEndDate())) {
+            nightInventory.claim(site, current.getStartDate(), current.getEndDate());
+            return BookingResult.of(BookingOutcome.UNAVAILABLE);
+        }
+        reservationRepository.update(id, site, reservation.getName(), reservation.getEmail(), reservation.getStartDate(), reservation.getEndDate());
+        occupancyIndex.add(site, id, reservation.getStartDate(), reservation.getEndDate());
+        return new BookingResult(BookingOutcome.UPDATED, id);
+    }
+
+    private boolean claimInventory(Reservation reservation) {
+        return !nightInventory.isEnabled() || nightInventory.claim(reservation.getSite(), reservation.getStartDate(), reservation.getEndDate());
+    }
+
+    private int[] getInventory(String site, LocalDate startDate, LocalDate endDate) {
+        return nightInventory.isEnabled() ? nightInventory.getRemaining(site, startDate, endDate) : null;
+    }
+
+    private boolean claim(int[] booked, LocalDate windowStart, Reservation reservation) {
+        int size = sites.getSize(reservation.getSite());
+        int first = (int) (reservation.getStartDate().toEpochDay() - windowStart.toEpochDay());
+        int last = (int) (reservation.getEndDate().toEpochDay() - windowStart.toEpochDay());
+        for (int night = first; night < last; night++) {
+            if (booked[night] >= size) {
+                return false;
+            }
+        }
+        for (int night = first; night < last; night++) {
+            booked[night]++;
+        }
+        return true;
+    }
+
+    /**
+     * Booked count per night of [startDate, endDate), from the occupancy index or, when the range is
+     * outside it, from one query.
+     */
+    private int[] bookedNights(String site, LocalDate startDate, LocalDate endDate) {
+        int[] nights = occupancyIndex.bookedNights(site, startDate, endDate);
+        return nights != null ? nights : countNights(reservationRepository.findSiteOccupancy(site, startDate, endDate), startDate, endDate);
+    }
+
+    /**
+     * Booked count per night of [startDate, endDate): +1 where a reservation starts, -1 where it
+     * ends, then a running sum.
+     */
+    static int[] countNights(List<ReservationNights> resList, LocalDate startDate, LocalDate endDate) {
+        long first = startDate.toEpochDay();
+        int length = (int) Math.max(endDate.toEpochDay() - first, 0);
+        int[] counts = new int[length + 1];
+        for (ReservationNights res : resList) {
+            int from = (int) Math.max(res.getStartDate().toEpochDay() - first, 0);
+            int to = (int) Math.min(res.getEndDate().toEpochDay() - first, length);
+            if (from < to) {
+                counts[from]++;
+                counts[to]--;
+            }
+        }
+        for (int i = 1; i < length; i++) {
+            counts[i] += counts[i - 1];
+        }
+        return Arrays.copyOf(counts, length);
+    }
+
+    Map<String, Integer> getBookedMap(List<ReservationNights> resList) {
         Map<String, Integer> bookedMap = new HashMap<>();
-        for (Reservation res : resList) {
+        for (ReservationNights res : resList) {
             for (LocalDate i = res.getStartDate(); i.isBefore(res.getEndDate()); i = i.plusDays(1)) {
                 if (bookedMap.containsKey(i.toString())) {
                     bookedMap.replace(i.toString(), bookedMap.get(i.toString())+1 );
@@ -0,0 +1,204 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationHold;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Nights held for upgrade.hold.ttl ms while a client fills in its details. A hold takes capacity in
+ * the occupancy index at once, so every availability check counts it, and in the night inventory
+ * when that is on. It is either confirmed into a reservation or released. Expiry is kept in memory on a timing wheel advanced every
+ * upgrade.hold.tick ms, so neither holding nor expiring touches the database.
+ */
+@Component
+public class HoldManager {
+
+    private enum State { HELD, CONFIRMING, DONE }
+
+    @Value("${upgrade.hold.ttl:600000}")
+    private long ttl;
+
+    @Value("${upgrade.hold.tick:1000}")
+    private long tick;
+
+    private BookingService bookingService;
+
+    private OccupancyIndex occupancyIndex;
+
+    private Sites sites;
+
+    private NightInventory nightInventory;
+
+    private MeterRegistry meterRegistry;
+
+    private Map<String, Hold> holds = new ConcurrentHashMap<>();
+
+    private TimingWheel<Hold> wheel;
+
+    private AtomicLong holdIds = new AtomicLong();
+
+    private AtomicLong expired = new AtomicLong();
+
+    private LongSupplier clock = System::currentTimeMillis;
+
+    public HoldManager(BookingService bookingService, OccupancyIndex occupancyIndex, Sites sites, NightInventory nightInventory,
+                       MeterRegistry meterRegistry) {
+        this.bookingService = bookingService;
+        this.occupancyIndex = occupancyIndex;
+        this.sites = sites;
+        this.nightInventory = nightInventory;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        wheel = new TimingWheel<>(tick, clock.getAsLong());
+        Gauge.builder("booking.hold.active", holds, Map::size).register(meterRegistry);
+        FunctionCounter.builder("booking.hold.expired", expired, AtomicLong::get).register(meterRegistry);
+    }
+
+    /**
+     * Holds [startDate, endDate) at the site, or returns null when a night is full.
+     */
+    public ReservationHold hold(String site, LocalDate startDate, LocalDate endDate) {
+        long id = holdIds.incrementAndGet();
+        if (!Boolean.TRUE.equals(occupancyIndex.tryHold(site, id, startDate, endDate, sites.getSize(site)))) {
+            return null;
+        }
+        String token = UUID.randomUUID().toString();
+        long expiresAt = clock.getAsLong() + ttl;
+        if (nightInventory.isEnabled() && !nightInventory.hold(token, site, startDate, endDate, Instant.ofEpochMilli(expiresAt))) {
+            occupancyIndex.releaseHold(site, id);
+            return null;
+        }
+        Hold hold = new Hold(token, id, site, startDate, endDate, expiresAt);
+        holds.put(hold.token, hold);
+        synchronized (wheel) {
+            wheel.schedule(expiresAt, hold);
+        }
+        return new ReservationHold(hold.token, site, startDate, endDate, Instant.ofEpochMilli(expiresAt));
+    }
+
+    /**
+     * Turns the hold into a reservation for name and email. A hold that is unknown, released or
+     * expired is not found. It is unavailable when the night inventory gave its nights back as
+     * expired and one has been booked since.
+     */
+    public BookingResult confirm(String holdId, String name, String email) {
+        Hold hold = holds.get(holdId);
+        if (hold == null || !hold.state.compareAndSet(State.HELD, State.CONFIRMING)) {
+            return BookingResult.of(BookingOutcome.NOT_FOUND);
+        }
+        if (clock.getAsLong() >= hold.expiresAt) {
+            finish(hold);
+            expired.incrementAndGet();
+            return BookingResult.of(BookingOutcome.NOT_FOUND);
+        }
+        Long id;
+        try {
+            id = bookingService.reserveHeld(hold.id, hold.token, new Reservation(hold.site, name, email, hold.startDate, hold.endDate));
+        } catch (RuntimeException e) {
+            finish(hold);
+            throw e;
+        }
+        if (id == null) {
+            finish(hold);
+            return BookingResult.of(BookingOutcome.UNAVAILABLE);
+        }
+        hold.state.set(State.DONE);
+        holds.remove(hold.token);
+        return new BookingResult(BookingOutcome.CREATED, id);
+    }
+
+    /**
+     * Gives the nights back before the hold expires. Returns false when there is no such hold.
+     */
+    public boolean release(String holdId) {
+        Hold hold = holds.get(holdId);
+        if (hold == null || !hold.state.compareAndSet(State.HELD, State.DONE)) {
+            return false;
+        }
+        finish(hold);
+        return true;
+    }
+
+    public int getActive() {
+        return holds.size();
+    }
+
+    /**
+     * Releases the holds whose time is up. Confirmed and released holds stay on the wheel until
+     * their slot comes round and are skipped then.
+     */
+    @Scheduled(initialDelayString = "${upgrade.hold.tick:1000}", fixedRateString = "${upgrade.hold.tick:1000}")
+    public void expire() {
+        List<Hold> due;
+        synchronized (wheel) {
+            due = wheel.advance(clock.getAsLong());
+        }
+        for (Hold hold : due) {
+            if (hold.state.compareAndSet(State.HELD, State.DONE)) {
+                finish(hold);
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Releases the active holds when the node stops, so their nights in the night inventory are
+     * free at once rather than when the refresh finds them expired.
+     */
+    @PreDestroy
+    public void releaseAll() {
+        for (Hold hold : holds.values()) {
+            if (hold.state.compareAndSet(State.HELD, State.DONE)) {
+                finish(hold);
+            }
+        }
+    }
+
+    private void finish(Hold hold) {
+        hold.state.set(State.DONE);
+        occupancyIndex.releaseHold(hold.site, hold.id);
+        if (nightInventory.isEnabled()) {
+            nightInventory.releaseHold(hold.token, hold.site, hold.startDate, hold.endDate);
+        }
+        holds.remove(hold.token);
+    }
+
+    private static class Hold {
+        private final String token;
+        private final long id;
+        private final String site;
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+        private final long expiresAt;
+        private final AtomicReference<State> state = new AtomicReference<>(State.HELD);
+
+        Hold(String token, long id, String site, LocalDate startDate, LocalDate endDate, long expiresAt) {
+            this.token = token;
+            this.id = id;
+            this.site = site;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
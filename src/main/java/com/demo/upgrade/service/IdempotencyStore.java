@@ -0,0 +1,221 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.IdempotentResponse;
+import com.demo.upgrade.repository.IdempotentResponseRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Responses of requests sent with an Idempotency-Key, bounded by upgrade.idempotency.max-size
+ * entries and upgrade.idempotency.ttl ms. The first request with a key runs; a repeat gets the
+ * stored response, and one that arrives while the first is still running waits for it. With
+ * upgrade.idempotency.persist the responses are also written to idempotency_keys, so keys
+ * survive a restart. Only finished entries are evicted: while a request runs its key stays, even
+ * past max-size, so a retry cannot run it a second time.
+ */
+@Component
+public class IdempotencyStore {
+
+    @Value("${upgrade.idempotency.max-size:10000}")
+    private int maxSize;
+
+    @Value("${upgrade.idempotency.ttl:86400000}")
+    private long ttl;
+
+    @Value("${upgrade.idempotency.persist:false}")
+    private boolean persist;
+
+    private IdempotentResponseRepository repository;
+
+    private MeterRegistry meterRegistry;
+
+    private Logger logger = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    // insertion ordered, so the eldest entry is also the first to expire
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            Iterator<Entry> iterator = values().iterator();
+            while (size() > maxSize && iterator.hasNext()) {
+                if (iterator.next().response.isDone()) {
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+            return false;
+        }
+    };
+
+    private AtomicLong replays = new AtomicLong();
+
+    private AtomicLong evictions = new AtomicLong();
+
+    public IdempotencyStore(IdempotentResponseRepository repository, MeterRegistry meterRegistry) {
+        this.repository = repository;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("booking.idempotency.keys", this, IdempotencyStore::size).register(meterRegistry);
+        FunctionCounter.builder("booking.idempotency.replays", replays, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("booking.idempotency.evictions", evictions, AtomicLong::get).register(meterRegistry);
+    }
+
+    /**
+     * Claims the key for a request with the given fingerprint. When the claim is the first the
+     * caller must run the request and then complete() it; otherwise its response is the one of the
+     * first request, which may still be running. Throws IllegalArgumentException when the key was
+     * used for a different request.
+     */
+    public Claim begin(String key, String fingerprint) {
+        Entry entry;
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            expire(now);
+            Entry previous = entries.get(key);
+            if (previous != null) {
+                replays.incrementAndGet();
+                return new Claim(key, null, check(previous, fingerprint));
+            }
+            entry = new Entry(fingerprint, now);
+            entries.put(key, entry);
+        }
+        if (persist) {
+            Optional<IdempotentResponse> stored;
+            try {
+                stored = repository.findById(key);
+            } catch (RuntimeException e) {
+                forget(key, entry);
+                throw e;
+            }
+            if (stored.isPresent() && stored.get().getCreatedAt().toEpochMilli() > now - ttl) {
+                replays.incrementAndGet();
+                entry.fingerprint = stored.get().getFingerprint();
+                entry.response.complete(stored.get());
+                return new Claim(key, null, check(entry, fingerprint));
+            }
+        }
+        return new Claim(key, entry, entry.response);
+    }
+
+    /**
+     * Publishes the response of the request that made the first claim to the requests waiting on
+     * it. Only stored responses are replayed later; the others, such as 5xx, let a retry run again.
+     */
+    public void complete(Claim claim, int status, String body, boolean store) {
+        Entry entry = claim.entry;
+        if (entry == null || entry.response.isDone()) {
+            return;
+        }
+        String key = claim.key;
+        IdempotentResponse response = new IdempotentResponse(key, entry.fingerprint, status, body, Instant.ofEpochMilli(entry.createdAt));
+        if (!store) {
+            forget(key, entry);
+        } else if (persist) {
+            try {
+                repository.save(response);
+            } catch (RuntimeException e) {
+                logger.warn("Could not store the response for idempotency key " + key + ": " + e.getMessage());
+            }
+        }
+        entry.response.complete(response);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getReplays() {
+        return replays.get();
+    }
+
+    @Scheduled(initialDelayString = "${upgrade.idempotency.purge-interval:600000}", fixedDelayString = "${upgrade.idempotency.purge-interval:600000}")
+    public void purge() {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            expire(now);
+        }
+        if (persist) {
+            int deleted = repository.deleteCreatedBefore(Instant.ofEpochMilli(now - ttl));
+            logger.debug("Purged " + deleted + " expired idempotency keys");
+        }
+    }
+
+    private CompletableFuture<IdempotentResponse> check(Entry entry, String fingerprint) {
+        if (entry.fingerprint != null && !entry.fingerprint.equals(fingerprint)) {
+            throw new IllegalArgumentException("Idempotency key was used for a different request");
+        }
+        return entry.response;
+    }
+
+    private void forget(String key, Entry entry) {
+        synchronized (entries) {
+            entries.remove(key, entry);
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.createdAt > now - ttl) {
+                return;
+            }
+            if (entry.response.isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public static class Claim {
+        private final String key;
+        private final Entry entry;
+        private final CompletableFuture<IdempotentResponse> response;
+
+        private Claim(String key, Entry entry, CompletableFuture<IdempotentResponse> response) {
+            this.key = key;
+            this.entry = entry;
+            this.response = response;
+        }
+
+        /**
+         * True for the request that has to run; false for a repeat of it.
+         */
+        public boolean isFirst() {
+            return entry != null;
+        }
+
+        public CompletableFuture<IdempotentResponse> getResponse() {
+            return response;
+        }
+    }
+
+    private static class Entry {
+        private final CompletableFuture<IdempotentResponse> response = new CompletableFuture<>();
+        private final long createdAt;
+        private volatile String fingerprint;
+
+        Entry(String fingerprint, long createdAt) {
+            this.fingerprint = fingerprint;
+            this.createdAt = createdAt;
+        }
+    }
+}
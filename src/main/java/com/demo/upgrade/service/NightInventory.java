@@ -0,0 +1,276 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.InventoryHold;
+import com.demo.upgrade.model.ReservationNights;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remaining capacity per site and night in night_inventory, the one place every node checks
+ * before it books (upgrade.inventory.enabled). A night is taken with a conditional UPDATE that
+ * only matches while remaining &gt; 0, so two nodes racing for the last room cannot both get it and
+ * no lock is held past the statement's transaction. Rows are created on first use from the
+ * reservations already booked, and every upgrade.inventory.refresh-interval ms for the bookable
+ * month, when past nights are dropped and a changed site size is applied. Holds keep a row in
+ * inventory_holds while they have nights taken; the refresh gives back the nights of rows past
+ * their expiry, which a node that stopped without releasing its holds leaves behind. The journal and the
+ * reactive stack book without it, so startup fails when either is combined with it.
+ */
+@Component
+public class NightInventory {
+
+    private static final String TAKE = "UPDATE night_inventory SET remaining = remaining - 1 WHERE site = ? AND night = ? AND remaining > 0";
+
+    private static final String GIVE_BACK = "UPDATE night_inventory SET remaining = remaining + 1 WHERE site = ? AND night = ?";
+
+    @Value("${upgrade.inventory.enabled:false}")
+    private boolean enabled;
+
+    @Value("${upgrade.journal.enabled:false}")
+    private boolean journalEnabled;
+
+    @Value("${spring.main.web-application-type:servlet}")
+    private String webApplicationType;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private Sites sites;
+
+    private MeterRegistry meterRegistry;
+
+    private TransactionTemplate transactionTemplate;
+
+    private Logger logger = LoggerFactory.getLogger(NightInventory.class);
+
+    private Counter rejected;
+
+    public NightInventory(JdbcTemplate jdbcTemplate, Sites sites, PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.sites = sites;
+        this.meterRegistry = meterRegistry;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void init() {
+        rejected = meterRegistry.counter("booking.inventory.rejected");
+        if (enabled && journalEnabled) {
+            throw new IllegalStateException("upgrade.inventory.enabled cannot be combined with upgrade.journal.enabled, which accepts reservations before they reach night_inventory");
+        }
+        if (enabled && "reactive".equalsIgnoreCase(webApplicationType)) {
+            throw new IllegalStateException("upgrade.inventory.enabled cannot be combined with the reactive profile, which books without night_inventory");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Takes one room on each night of [startDate, endDate), all or none. The nights are taken in
+     * one JDBC batch of conditional UPDATEs; when one of them is full, the ones already taken are
+     * given back and false is returned.
+     */
+    public boolean claim(String site, LocalDate startDate, LocalDate endDate) {
+        List<LocalDate> nights = nights(startDate, endDate);
+        boolean[] taken = new boolean[nights.size()];
+        if (!take(site, nights, taken) && seed(site, startDate, endDate) > 0) {
+            take(site, nights, taken);
+        }
+        for (boolean night : taken) {
+            if (!night) {
+                giveBack(site, nights, taken);
+                rejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives back one room on each night of [startDate, endDate), in one range UPDATE.
+     */
+    public void release(String site, LocalDate startDate, LocalDate endDate) {
+        jdbcTemplate.update("UPDATE night_inventory SET remaining = remaining + 1 WHERE site = ? AND night >= ? AND night < ? AND remaining < capacity",
+                site, Date.valueOf(startDate), Date.valueOf(endDate));
+    }
+
+    /**
+     * Claims [startDate, endDate) for a hold and records it in inventory_holds, in one transaction.
+     * Returns false when a night is full.
+     */
+    public boolean hold(String token, String site, LocalDate startDate, LocalDate endDate, Instant expiresAt) {
+        return transactionTemplate.execute(status -> {
+            if (!claim(site, startDate, endDate)) {
+                return false;
+            }
+            jdbcTemplate.update("INSERT INTO inventory_holds (token, site, start_date, end_date, expires_at) VALUES (?, ?, ?, ?, ?)",
+                    token, site, Date.valueOf(startDate), Date.valueOf(endDate), Timestamp.from(expiresAt));
+            return true;
+        });
+    }
+
+    /**
+     * Gives back the nights of a hold, unless its row is already gone because it was handed over
+     * or given back by the refresh.
+     */
+    public void releaseHold(String token, String site, LocalDate startDate, LocalDate endDate) {
+        transactionTemplate.execute(status -> {
+            if (jdbcTemplate.update("DELETE FROM inventory_holds WHERE token = ?", token) > 0) {
+                release(site, startDate, endDate);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Hands the nights of a hold over to the reservation saved in the caller's transaction.
+     * Returns false when the hold's row is gone, so its nights are no longer taken for it.
+     */
+    public boolean handOver(String token) {
+        return jdbcTemplate.update("DELETE FROM inventory_holds WHERE token = ?", token) > 0;
+    }
+
+    /**
+     * Remaining capacity of each night of [startDate, endDate) in one range read, or null when
+     * some of the nights have no row yet.
+     */
+    public int[] getRemaining(String site, LocalDate startDate, LocalDate endDate) {
+        List<Integer> rows = jdbcTemplate.queryForList("SELECT remaining FROM night_inventory WHERE site = ? AND night >= ? AND night < ? ORDER BY night",
+                Integer.class, site, Date.valueOf(startDate), Date.valueOf(endDate));
+        if (rows.size() != Math.max(endDate.toEpochDay() - startDate.toEpochDay(), 0)) {
+            return null;
+        }
+        int[] remaining = new int[rows.size()];
+        for (int i = 0; i < remaining.length; i++) {
+            remaining[i] = Math.max(rows.get(i), 0);
+        }
+        return remaining;
+    }
+
+    /**
+     * Creates the missing rows of [startDate, endDate), counting the reservations already on each
+     * night. Returns how many were created; a row another node created first is left as it is.
+     */
+    public int seed(String site, LocalDate startDate, LocalDate endDate) {
+        Set<LocalDate> present = new HashSet<>(jdbcTemplate.query("SELECT night FROM night_inventory WHERE site = ? AND night >= ? AND night < ?",
+                (rs, row) -> rs.getDate(1).toLocalDate(), site, Date.valueOf(startDate), Date.valueOf(endDate)));
+        List<LocalDate> nights = nights(startDate, endDate);
+        if (present.size() == nights.size()) {
+            return 0;
+        }
+        int capacity = sites.getSize(site);
+        List<ReservationNights> resList = jdbcTemplate.query("SELECT id, start_date, end_date FROM reservations WHERE site = ? AND end_date > ? AND start_date < ? AND cancelled = 0",
+                (rs, row) -> new ReservationNights(rs.getLong(1), rs.getDate(2).toLocalDate(), rs.getDate(3).toLocalDate()),
+                site, Date.valueOf(startDate), Date.valueOf(endDate));
+        int[] booked = BookingServiceImpl.countNights(resList, startDate, endDate);
+        int created = 0;
+        for (int i = 0; i < nights.size(); i++) {
+            if (present.contains(nights.get(i))) {
+                continue;
+            }
+            try {
+                jdbcTemplate.update("INSERT INTO night_inventory (site, night, capacity, remaining) VALUES (?, ?, ?, ?)",
+                        site, Date.valueOf(nights.get(i)), capacity, Math.max(capacity - booked[i], 0));
+                created++;
+            } catch (DuplicateKeyException e) {
+                // seeded by another node meanwhile
+            }
+        }
+        return created;
+    }
+
+    @Scheduled(fixedDelayString = "${upgrade.inventory.refresh-interval:3600000}")
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        List<InventoryHold> expiredHolds = jdbcTemplate.query("SELECT token, site, start_date, end_date, expires_at FROM inventory_holds WHERE expires_at < ?",
+                (rs, row) -> new InventoryHold(rs.getString(1), rs.getString(2), rs.getDate(3).toLocalDate(), rs.getDate(4).toLocalDate(), rs.getTimestamp(5).toInstant()),
+                Timestamp.from(Instant.now()));
+        for (InventoryHold hold : expiredHolds) {
+            releaseHold(hold.getToken(), hold.getSite(), hold.getStartDate(), hold.getEndDate());
+        }
+        if (!expiredHolds.isEmpty()) {
+            logger.info("Gave back the nights of " + expiredHolds.size() + " expired holds");
+        }
+        LocalDate first = LocalDate.now().plusDays(1);
+        LocalDate end = LocalDate.now().plusMonths(1).plusDays(1);
+        int created = 0;
+        for (String site : sites.getNames()) {
+            int capacity = sites.getSize(site);
+            int resized = jdbcTemplate.update("UPDATE night_inventory SET remaining = remaining + ? - capacity, capacity = ? WHERE site = ? AND capacity <> ?",
+                    capacity, capacity, site, capacity);
+            if (resized > 0) {
+                logger.info("Applied size " + capacity + " of site " + site + " to " + resized + " nights");
+            }
+            created += seed(site, first, end);
+        }
+        int pruned = jdbcTemplate.update("DELETE FROM night_inventory WHERE night < ?", Date.valueOf(LocalDate.now()));
+        logger.debug("Night inventory refreshed: " + created + " nights created, " + pruned + " past nights dropped");
+    }
+
+    /**
+     * Runs TAKE for the nights not taken yet and marks the ones it took. Returns true when every
+     * night is taken.
+     */
+    private boolean take(String site, List<LocalDate> nights, boolean[] taken) {
+        List<Object[]> args = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < nights.size(); i++) {
+            if (!taken[i]) {
+                args.add(new Object[]{site, Date.valueOf(nights.get(i))});
+                positions.add(i);
+            }
+        }
+        if (args.isEmpty()) {
+            return true;
+        }
+        int[] counts = jdbcTemplate.batchUpdate(TAKE, args);
+        boolean all = true;
+        for (int i = 0; i < counts.length; i++) {
+            taken[positions.get(i)] = counts[i] > 0;
+            all &= counts[i] > 0;
+        }
+        return all;
+    }
+
+    private void giveBack(String site, List<LocalDate> nights, boolean[] taken) {
+        List<Object[]> args = new ArrayList<>();
+        for (int i = 0; i < nights.size(); i++) {
+            if (taken[i]) {
+                args.add(new Object[]{site, Date.valueOf(nights.get(i))});
+            }
+        }
+        if (!args.isEmpty()) {
+            jdbcTemplate.batchUpdate(GIVE_BACK, args);
+        }
+    }
+
+    private static List<LocalDate> nights(LocalDate startDate, LocalDate endDate) {
+        List<LocalDate> nights = new ArrayList<>();
+        for (LocalDate night = startDate; night.isBefore(endDate); night = night.plusDays(1)) {
+            nights.add(night);
+        }
+        return nights;
+    }
+}
@@ -0,0 +1,537 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.ReservationNights;
+import com.demo.upgrade.repository.ReservationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Booked nights per site and epoch day over the bookable window, kept in memory so availability
+ * checks do not need to query the reservations table. Every site has its own partition and lock,
+ * so a write on one site never waits for another. Holds count as booked nights too; they only
+ * live here and are carried over when the window is rebuilt from the table.
+ * Changes made inside a transaction are applied at once, so later checks in the same transaction
+ * see them, but are undone if it rolls back, and listeners only hear of them once it completes.
+ */
+@Component
+public class OccupancyIndex {
+
+    @Value("${upgrade.index.days:64}")
+    private int days;
+
+    private ReservationRepository reservationRepository;
+
+    private Logger logger = LoggerFactory.getLogger(OccupancyIndex.class);
+
+    private final Map<String, Partition> partitions;
+
+    private List<OccupancyListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile BooleanSupplier pendingWrites = () -> false;
+
+    public OccupancyIndex(ReservationRepository reservationRepository, Sites sites) {
+        this.reservationRepository = reservationRepository;
+        Map<String, Partition> bySite = new HashMap<>();
+        for (String site : sites.getNames()) {
+            bySite.put(site, new Partition());
+        }
+        this.partitions = Collections.unmodifiableMap(bySite);
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        long today = LocalDate.now().toEpochDay();
+        Map<String, Partition> loaded = load(today);
+        for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+            Partition partition = entry.getValue();
+            Partition fresh = loaded.get(entry.getKey());
+            long stamp = partition.lock.writeLock();
+            try {
+                partition.roll(today);
+                fresh.holds = partition.holds;
+                fresh.holds.values().forEach(nights -> fresh.apply(nights, 1));
+                partition.booked = fresh.booked;
+                partition.active = fresh.active;
+                partition.baseDay = today;
+                partition.version++;
+            } finally {
+                partition.lock.unlockWrite(stamp);
+            }
+            notifyListeners(entry.getKey(), Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Recomputes the window from the reservations table and replaces the partitions that have
+     * drifted. A partition written to while the table was read is left for the next run.
+     * Returns the number of nights that did not match.
+     */
+    @Scheduled(initialDelayString = "${upgrade.index.verify-interval:300000}", fixedDelayString = "${upgrade.index.verify-interval:300000}")
+    public int verify() {
+        if (pendingWrites.getAsBoolean()) {
+            logger.debug("Skipping occupancy verification while writes are pending");
+            return 0;
+        }
+        Map<String, Long> versions = new HashMap<>();
+        partitions.forEach((site, partition) -> versions.put(site, partition.version));
+        long today = LocalDate.now().toEpochDay();
+        Map<String, Partition> loaded = load(today);
+        int total = 0;
+        for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+            Partition partition = entry.getValue();
+            Partition fresh = loaded.get(entry.getKey());
+            int mismatches = 0;
+            boolean drifted = false;
+            long stamp = partition.lock.writeLock();
+            try {
+                partition.roll(today);
+                // an open transaction may have changed the index without its rows being in what was read
+                if (partition.open > 0 || partition.version != versions.get(entry.getKey()) || partition.baseDay != today) {
+                    continue;
+                }
+                partition.holds.values().forEach(nights -> fresh.apply(nights, 1));
+                for (int i = 0; i < days; i++) {
+                    if (fresh.booked[i] != partition.booked[i]) {
+                        mismatches++;
+                    }
+                }
+                drifted = mismatches > 0 || !fresh.active.equals(partition.active);
+                if (drifted) {
+                    logger.warn("Occupancy index of site " + entry.getKey() + " drifted on " + mismatches + " nights, rebuilt from reservations");
+                    partition.booked = fresh.booked;
+                    partition.active = fresh.active;
+                    partition.version++;
+                }
+            } finally {
+                partition.lock.unlockWrite(stamp);
+            }
+            if (drifted) {
+                notifyListeners(entry.getKey(), Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+            total += mismatches;
+        }
+        return total;
+    }
+
+    /**
+     * Incremented on every change to the booked counts of the site.
+     */
+    public long getVersion(String site) {
+        return partition(site).version;
+    }
+
+    public void addListener(OccupancyListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Tells verify() that the index is ahead of the reservations table, so it must not replace it.
+     */
+    public void setPendingWrites(BooleanSupplier pendingWrites) {
+        this.pendingWrites = pendingWrites;
+    }
+
+    /**
+     * Whether the reservation is active at the site and ends after today.
+     */
+    public boolean contains(String site, long id) {
+        Partition partition = partition(site);
+        long stamp = partition.lock.readLock();
+        try {
+            return partition.active.containsKey(id);
+        } finally {
+            partition.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies the booked count of each night in [startDate, endDate) into a new array, or returns
+     * null when the range is outside the window.
+     */
+    public int[] bookedNights(String site, LocalDate startDate, LocalDate endDate) {
+        Partition partition = partition(site);
+        int[] result = new int[(int) Math.max(endDate.toEpochDay() - startDate.toEpochDay(), 0)];
+        long stamp = partition.lock.tryOptimisticRead();
+        boolean covered = partition.copy(startDate.toEpochDay(), result);
+        if (!partition.lock.validate(stamp)) {
+            stamp = partition.lock.readLock();
+            try {
+                covered = partition.copy(startDate.toEpochDay(), result);
+            } finally {
+                partition.lock.unlockRead(stamp);
+            }
+        }
+        return covered ? result : null;
+    }
+
+    /**
+     * Whether every night in [startDate, endDate) has fewer than size bookings at the site, not
+     * counting the reservation with the given id. Returns null when the range is outside the window.
+     */
+    public Boolean isAvailable(String site, LocalDate startDate, LocalDate endDate, Long excludeId, int size) {
+        Partition partition = partition(site);
+        long first = startDate.toEpochDay();
+        long last = endDate.toEpochDay();
+        long stamp = partition.lock.readLock();
+        try {
+            int[] booked = partition.booked;
+            long baseDay = partition.baseDay;
+            if (first < baseDay || last > baseDay + booked.length) {
+                return null;
+            }
+            long excluded = excludeId == null ? 0 : partition.active.getOrDefault(excludeId, 0L);
+            long excludedStart = excluded >> 32;
+            long excludedEnd = (int) excluded;
+            for (long day = first; day < last; day++) {
+                int count = booked[(int) (day - baseDay)];
+                if (day >= excludedStart && day < excludedEnd) {
+                    count--;
+                }
+                if (count >= size) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            partition.lock.unlockRead(stamp);
+        }
+    }
+
+    public void add(String site, long id, LocalDate startDate, LocalDate endDate) {
+        Partition partition = partition(site);
+        long nights = pack(startDate.toEpochDay(), endDate.toEpochDay());
+        TransactionChanges changes = transactionChanges();
+        Long previous;
+        long stamp = partition.lock.writeLock();
+        try {
+            partition.roll(LocalDate.now().toEpochDay());
+            previous = partition.active.remove(id);
+            if (previous != null) {
+                partition.apply(previous, -1);
+            }
+            partition.apply(nights, 1);
+            partition.active.put(id, nights);
+            partition.version++;
+            open(partition, site, changes);
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+        if (changes != null) {
+            changes.undo.push(() -> restore(site, id, previous));
+        }
+        if (previous != null) {
+            changed(changes, site, previous);
+        }
+        changed(changes, site, nights);
+    }
+
+    public void remove(String site, long id) {
+        Partition partition = partition(site);
+        TransactionChanges changes = transactionChanges();
+        Long previous;
+        long stamp = partition.lock.writeLock();
+        try {
+            partition.roll(LocalDate.now().toEpochDay());
+            previous = partition.active.remove(id);
+            if (previous != null) {
+                partition.apply(previous, -1);
+                partition.version++;
+                open(partition, site, changes);
+            }
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+        if (previous != null) {
+            if (changes != null) {
+                changes.undo.push(() -> restore(site, id, previous));
+            }
+            changed(changes, site, previous);
+        }
+    }
+
+    /**
+     * Holds [startDate, endDate) under the given hold id when every night has fewer than size
+     * bookings, checked and applied under the partition lock. Returns null when the range is
+     * outside the window.
+     */
+    public Boolean tryHold(String site, long holdId, LocalDate startDate, LocalDate endDate, int size) {
+        Partition partition = partition(site);
+        long nights = pack(startDate.toEpochDay(), endDate.toEpochDay());
+        long stamp = partition.lock.writeLock();
+        try {
+            partition.roll(LocalDate.now().toEpochDay());
+            long baseDay = partition.baseDay;
+            if (startDate.toEpochDay() < baseDay || endDate.toEpochDay() > baseDay + partition.booked.length) {
+                return null;
+            }
+            for (long day = startDate.toEpochDay(); day < endDate.toEpochDay(); day++) {
+                if (partition.booked[(int) (day - baseDay)] >= size) {
+                    return false;
+                }
+            }
+            partition.apply(nights, 1);
+            partition.holds.put(holdId, nights);
+            partition.version++;
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+        notifyListeners(site, nights >> 32, (int) nights);
+        return true;
+    }
+
+    /**
+     * Gives the nights of a hold back. Returns false when the hold is not there.
+     */
+    public boolean releaseHold(String site, long holdId) {
+        Partition partition = partition(site);
+        Long nights;
+        long stamp = partition.lock.writeLock();
+        try {
+            partition.roll(LocalDate.now().toEpochDay());
+            nights = partition.holds.remove(holdId);
+            if (nights != null) {
+                partition.apply(nights, -1);
+                partition.version++;
+            }
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+        if (nights != null) {
+            notifyListeners(site, nights >> 32, (int) nights.longValue());
+        }
+        return nights != null;
+    }
+
+    /**
+     * Turns a hold into the active reservation with the given id without freeing its nights in
+     * between. Returns false when the hold is not there.
+     */
+    public boolean confirmHold(String site, long holdId, long id) {
+        Partition partition = partition(site);
+        TransactionChanges changes = transactionChanges();
+        long stamp = partition.lock.writeLock();
+        try {
+            Long nights = partition.holds.remove(holdId);
+            if (nights == null) {
+                return false;
+            }
+            partition.active.put(id, nights);
+            open(partition, site, changes);
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+        if (changes != null) {
+            changes.undo.push(() -> unconfirm(site, holdId, id));
+        }
+        return true;
+    }
+
+    /**
+     * Puts the reservation back to the nights it had before a rolled back change, or drops it when it had none.
+     */
+    private void restore(String site, long id, Long nights) {
+        Partition partition = partition(site);
+        long stamp = partition.lock.writeLock();
+        try {
+            Long current = partition.active.remove(id);
+            if (current != null) {
+                partition.apply(current, -1);
+            }
+            if (nights != null) {
+                partition.apply(nights, 1);
+                partition.active.put(id, nights);
+            }
+            partition.version++;
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+    }
+
+    private void unconfirm(String site, long holdId, long id) {
+        Partition partition = partition(site);
+        long stamp = partition.lock.writeLock();
+        try {
+            Long nights = partition.active.remove(id);
+            if (nights != null) {
+                partition.holds.put(holdId, nights);
+            }
+        } finally {
+            partition.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The changes the current transaction made so far, or null outside a transaction.
+     */
+    private TransactionChanges transactionChanges() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof TransactionChanges && ((TransactionChanges) synchronization).owner() == this) {
+                return (TransactionChanges) synchronization;
+            }
+        }
+        TransactionChanges changes = new TransactionChanges();
+        TransactionSynchronizationManager.registerSynchronization(changes);
+        return changes;
+    }
+
+    /**
+     * Counts the transaction as open on the partition until it completes; called under the write lock.
+     */
+    private void open(Partition partition, String site, TransactionChanges changes) {
+        if (changes != null && changes.sites.add(site)) {
+            partition.open++;
+        }
+    }
+
+    private void changed(TransactionChanges changes, String site, long nights) {
+        if (changes != null) {
+            changes.notifications.add(() -> notifyListeners(site, nights >> 32, (int) nights));
+        } else {
+            notifyListeners(site, nights >> 32, (int) nights);
+        }
+    }
+
+    private Partition partition(String site) {
+        Partition partition = partitions.get(site);
+        if (partition == null) {
+            throw new IllegalArgumentException("Unknown site " + site);
+        }
+        return partition;
+    }
+
+    private void notifyListeners(String site, long firstDay, long endDay) {
+        for (OccupancyListener listener : listeners) {
+            listener.occupancyChanged(site, firstDay, endDay);
+        }
+    }
+
+    /**
+     * Reads the window starting at firstDay for all sites with one query.
+     */
+    private Map<String, Partition> load(long firstDay) {
+        Map<String, Partition> loaded = new HashMap<>();
+        for (String site : partitions.keySet()) {
+            Partition partition = new Partition();
+            partition.booked = new int[days];
+            partition.baseDay = firstDay;
+            loaded.put(site, partition);
+        }
+        int unknown = 0;
+        List<ReservationNights> resList = reservationRepository.findOccupancy(LocalDate.ofEpochDay(firstDay), LocalDate.ofEpochDay(firstDay + days));
+        for (ReservationNights res : resList) {
+            Partition partition = loaded.get(res.getSite());
+            if (partition == null) {
+                unknown++;
+                continue;
+            }
+            long nights = pack(res.getStartDate().toEpochDay(), res.getEndDate().toEpochDay());
+            if ((int) nights <= firstDay) {
+                continue;
+            }
+            partition.active.put(res.getId(), nights);
+            partition.apply(nights, 1);
+        }
+        if (unknown > 0) {
+            logger.warn(unknown + " active reservations belong to sites missing from upgrade.sites");
+        }
+        return loaded;
+    }
+
+    private static long pack(long startDay, long endDay) {
+        return startDay << 32 | endDay;
+    }
+
+    private class TransactionChanges extends TransactionSynchronizationAdapter {
+        private final Deque<Runnable> undo = new ArrayDeque<>();
+        private final List<Runnable> notifications = new ArrayList<>();
+        private final Set<String> sites = new HashSet<>();
+
+        private OccupancyIndex owner() {
+            return OccupancyIndex.this;
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status != STATUS_COMMITTED) {
+                undo.forEach(Runnable::run);
+            }
+            for (String site : sites) {
+                Partition partition = partition(site);
+                long stamp = partition.lock.writeLock();
+                try {
+                    partition.open--;
+                    // a verify() that read the table before the commit must not replace the partition
+                    partition.version++;
+                } finally {
+                    partition.lock.unlockWrite(stamp);
+                }
+            }
+            notifications.forEach(Runnable::run);
+        }
+    }
+
+    private static class Partition {
+        private final StampedLock lock = new StampedLock();
+        private int[] booked = new int[0];
+        private long baseDay;
+        private Map<Long, Long> active = new HashMap<>();
+        private Map<Long, Long> holds = new HashMap<>();
+        private volatile long version;
+        private int open;
+
+        private boolean copy(long firstDay, int[] result) {
+            int[] counts = booked;
+            long offset = firstDay - baseDay;
+            if (offset < 0 || offset + result.length > counts.length) {
+                return false;
+            }
+            System.arraycopy(counts, (int) offset, result, 0, result.length);
+            return true;
+        }
+
+        private void apply(long nights, int delta) {
+            long last = Math.min((int) nights, baseDay + booked.length);
+            for (long day = Math.max(nights >> 32, baseDay); day < last; day++) {
+                booked[(int) (day - baseDay)] += delta;
+            }
+        }
+
+        private void roll(long today) {
+            int shift = (int) Math.min(today - baseDay, booked.length);
+            if (shift <= 0) {
+                return;
+            }
+            System.arraycopy(booked, shift, booked, 0, booked.length - shift);
+            for (int i = booked.length - shift; i < booked.length; i++) {
+                booked[i] = 0;
+            }
+            baseDay = today;
+            active.values().removeIf(nights -> (int) nights.longValue() <= today);
+            holds.values().removeIf(nights -> (int) nights.longValue() <= today);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.demo.upgrade.service;
+
+/**
+ * Notified after the booked count of any night in [firstDay, endDay) changed at the site. Days are epoch days.
+ */
+public interface OccupancyListener {
+    void occupancyChanged(String site, long firstDay, long endDay);
+}
@@ -0,0 +1,124 @@
+package com.demo.upgrade.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets per client key (ip, api_key or email), with separate limits for reads and writes:
+ * upgrade.ratelimit.&lt;read|write&gt;.capacity tokens, refilled at .per-second. Each bucket is a single
+ * AtomicLong holding the time its bucket is full again (the generic cell rate form of a token
+ * bucket), updated by compare-and-set, so admitting a request takes no lock. Full buckets are
+ * indistinguishable from new ones and are evicted every upgrade.ratelimit.evict-interval ms.
+ */
+@Component
+public class RateLimiter {
+
+    public static final String IP = "ip";
+
+    public static final String API_KEY = "api_key";
+
+    public static final String EMAIL = "email";
+
+    @Value("${upgrade.ratelimit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${upgrade.ratelimit.read.capacity:100}")
+    private int readCapacity;
+
+    @Value("${upgrade.ratelimit.read.per-second:20}")
+    private double readPerSecond;
+
+    @Value("${upgrade.ratelimit.write.capacity:10}")
+    private int writeCapacity;
+
+    @Value("${upgrade.ratelimit.write.per-second:1}")
+    private double writePerSecond;
+
+    private MeterRegistry meterRegistry;
+
+    private Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    private Limit read;
+
+    private Limit write;
+
+    private LongSupplier clock = System::nanoTime;
+
+    public RateLimiter(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        read = new Limit("read", readCapacity, readPerSecond);
+        write = new Limit("write", writeCapacity, writePerSecond);
+        Gauge.builder("booking.ratelimit.buckets", buckets, Map::size).register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Takes a token from the bucket of the key. Returns 0 when the request is admitted, otherwise
+     * the milliseconds until the bucket has a token again.
+     */
+    public long acquire(boolean isWrite, String dimension, String key) {
+        if (!enabled || key == null) {
+            return 0;
+        }
+        Limit limit = isWrite ? write : read;
+        AtomicLong bucket = buckets.computeIfAbsent(limit.name + "|" + dimension + "|" + key, k -> new AtomicLong(clock.getAsLong()));
+        while (true) {
+            long now = clock.getAsLong();
+            long fullAt = bucket.get();
+            long next = (fullAt - now > 0 ? fullAt : now) + limit.interval;
+            long excess = next - now - limit.burst;
+            if (excess > 0) {
+                meterRegistry.counter("booking.ratelimit.rejected", "access", limit.name, "key", dimension).increment();
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(excess));
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    public int getBuckets() {
+        return buckets.size();
+    }
+
+    public double getRejected(boolean isWrite, String dimension) {
+        Counter counter = meterRegistry.find("booking.ratelimit.rejected").tags("access", isWrite ? "write" : "read", "key", dimension).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    @Scheduled(initialDelayString = "${upgrade.ratelimit.evict-interval:60000}", fixedDelayString = "${upgrade.ratelimit.evict-interval:60000}")
+    public void evictIdle() {
+        long now = clock.getAsLong();
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    private static class Limit {
+        private final String name;
+        private final long interval;
+        private final long burst;
+
+        Limit(String name, int capacity, double perSecond) {
+            this.name = name;
+            this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+            this.burst = interval * capacity;
+        }
+    }
+}
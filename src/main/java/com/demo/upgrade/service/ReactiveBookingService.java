@@ -0,0 +1,283 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationNights;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Non-blocking counterpart of {@link BookingServiceImpl} for the reactive profile. Availability is
+ * answered from the shared occupancy index and writes go through R2DBC against the same
+ * reservations table and id sequence. Ids are taken from reservations_seq a block at a time, like
+ * Hibernate and the journal do. Index updates and the listeners they notify run on a bounded pool of
+ * upgrade.reactive.index-threads rather than on the Netty event loop.
+ */
+@Service
+@Profile("reactive")
+public class ReactiveBookingService {
+
+    @Value("${upgrade.reactive.index-threads:2}")
+    private int indexThreads;
+
+    @Value("${upgrade.reactive.index-queue:10000}")
+    private int indexQueue;
+
+    private DatabaseClient databaseClient;
+
+    private BookingService bookingService;
+
+    private OccupancyIndex occupancyIndex;
+
+    private StatusCache statusCache;
+
+    private Sites sites;
+
+    private ReservationCache reservationCache;
+
+    private final Deque<long[]> ids = new ArrayDeque<>();
+
+    private Scheduler indexScheduler;
+
+    public ReactiveBookingService(DatabaseClient databaseClient, BookingService bookingService, OccupancyIndex occupancyIndex, StatusCache statusCache, Sites sites,
+                                  ReservationCache reservationCache) {
+        this.databaseClient = databaseClient;
+        this.bookingService = bookingService;
+        this.occupancyIndex = occupancyIndex;
+        this.statusCache = statusCache;
+        this.sites = sites;
+        this.reservationCache = reservationCache;
+    }
+
+    @PostConstruct
+    public void init() {
+        indexScheduler = Schedulers.newBoundedElastic(indexThreads, indexQueue, "reactive-index");
+    }
+
+    @PreDestroy
+    public void stop() {
+        indexScheduler.dispose();
+    }
+
+    public boolean verifyDates(LocalDate start, LocalDate end, boolean isReserve) {
+        return bookingService.verifyDates(start, end, isReserve);
+    }
+
+    public boolean verifyRange(LocalDate start, LocalDate end) {
+        return bookingService.verifyRange(start, end);
+    }
+
+    public Mono<int[]> getRemainingCapacity(String site, LocalDate startDate, LocalDate endDate) {
+        int size = sites.getSize(site);
+        int[] booked = occupancyIndex.bookedNights(site, startDate, endDate);
+        Mono<int[]> nights = booked != null ? Mono.just(booked) : countNights(site, startDate, endDate);
+        return nights.map(counts -> {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = Math.max(size - counts[i], 0);
+            }
+            return counts;
+        });
+    }
+
+    public long getOccupancyVersion(String site) {
+        return occupancyIndex.getVersion(site);
+    }
+
+    public Mono<List<String>> getAvaliableDays(String site, LocalDate startDate, LocalDate endDate) {
+        List<String> cached = statusCache.get(site, startDate, endDate);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        int size = sites.getSize(site);
+        long version = occupancyIndex.getVersion(site);
+        int[] booked = occupancyIndex.bookedNights(site, startDate, endDate);
+        Mono<int[]> nights = booked != null ? Mono.just(booked) : countNights(site, startDate, endDate);
+        return nights.map(counts -> {
+            List<String> result = new ArrayList<>();
+            LocalDate date = startDate;
+            for (int night : counts) {
+                if (night < size) {
+                    result.add(date.toString());
+                }
+                date = date.plusDays(1);
+            }
+            result = Collections.unmodifiableList(result);
+            statusCache.put(site, startDate, endDate, result, version);
+            return result;
+        });
+    }
+
+    public Mono<BookingResult> reserve(Reservation reservation) {
+        if (!verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+            return Mono.just(BookingResult.of(BookingOutcome.BAD_DATES));
+        }
+        String site = reservation.getSite();
+        return isAvaliable(site, reservation.getStartDate(), reservation.getEndDate(), null).flatMap(avaliable -> {
+            if (!avaliable) {
+                return Mono.just(BookingResult.of(BookingOutcome.UNAVAILABLE));
+            }
+            return nextId()
+                    .flatMap(id -> databaseClient.execute("INSERT INTO reservations (id, site, fullname, email, start_date, end_date, cancelled) " +
+                            "VALUES (:id, :site, :name, :email, :start, :end, 0)")
+                            .bind("id", id)
+                            .bind("site", site)
+                            .bind("name", reservation.getName())
+                            .bind("email", reservation.getEmail())
+                            .bind("start", reservation.getStartDate())
+                            .bind("end", reservation.getEndDate())
+                            .fetch().rowsUpdated()
+                            .publishOn(indexScheduler)
+                            .map(rows -> {
+                                occupancyIndex.add(site, id, reservation.getStartDate(), reservation.getEndDate());
+                                reservationCache.evict(id);
+                                return new BookingResult(BookingOutcome.CREATED, id);
+                            }));
+        });
+    }
+
+    public Mono<BookingResult> update(String site, long id, Reservation reservation) {
+        return exists(site, id).flatMap(found -> {
+            if (!found) {
+                return Mono.just(BookingResult.of(BookingOutcome.NOT_FOUND));
+            }
+            if (!verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+                return Mono.just(BookingResult.of(BookingOutcome.BAD_DATES));
+            }
+            return isAvaliable(site, reservation.getStartDate(), reservation.getEndDate(), id).flatMap(avaliable -> {
+                if (!avaliable) {
+                    return Mono.just(BookingResult.of(BookingOutcome.UNAVAILABLE));
+                }
+                return databaseClient.execute("UPDATE reservations SET fullname = :name, email = :email, start_date = :start, end_date = :end " +
+                        "WHERE id = :id AND site = :site AND cancelled = 0")
+                        .bind("name", reservation.getName())
+                        .bind("email", reservation.getEmail())
+                        .bind("start", reservation.getStartDate())
+                        .bind("end", reservation.getEndDate())
+                        .bind("id", id)
+                        .bind("site", site)
+                        .fetch().rowsUpdated()
+                        .publishOn(indexScheduler)
+                        .map(rows -> {
+                            if (rows == 0) {
+                                return BookingResult.of(BookingOutcome.NOT_FOUND);
+                            }
+                            occupancyIndex.add(site, id, reservation.getStartDate(), reservation.getEndDate());
+                            reservationCache.evict(id);
+                            return new BookingResult(BookingOutcome.UPDATED, id);
+                        });
+            });
+        });
+    }
+
+    public Mono<BookingResult> cancel(String site, long id) {
+        return databaseClient.execute("UPDATE reservations SET cancelled = 1 WHERE id = :id AND site = :site AND cancelled = 0")
+                .bind("id", id)
+                .bind("site", site)
+                .fetch().rowsUpdated()
+                .publishOn(indexScheduler)
+                .map(rows -> {
+                    if (rows == 0) {
+                        return BookingResult.of(BookingOutcome.NOT_FOUND);
+                    }
+                    occupancyIndex.remove(site, id);
+                    reservationCache.evict(id);
+                    return new BookingResult(BookingOutcome.CANCELLED, id);
+                });
+    }
+
+    /**
+     * Takes the next id of the current block, drawing a new block from reservations_seq when it is used up.
+     */
+    private Mono<Long> nextId() {
+        synchronized (ids) {
+            long[] block = ids.peekFirst();
+            if (block != null) {
+                long id = block[0]++;
+                if (block[0] > block[1]) {
+                    ids.pollFirst();
+                }
+                return Mono.just(id);
+            }
+        }
+        return databaseClient.execute("SELECT NEXT VALUE FOR reservations_seq")
+                .map(row -> ((Number) row.get(0)).longValue())
+                .one()
+                .flatMap(value -> {
+                    long[] block = Reservation.idBlock(value);
+                    if (block != null) {
+                        synchronized (ids) {
+                            ids.addLast(block);
+                        }
+                    }
+                    return nextId();
+                });
+    }
+
+    private Mono<Boolean> exists(String site, long id) {
+        return databaseClient.execute("SELECT id FROM reservations WHERE id = :id AND site = :site AND cancelled = 0")
+                .bind("id", id)
+                .bind("site", site)
+                .map(row -> true)
+                .first()
+                .defaultIfEmpty(false);
+    }
+
+    private Mono<Boolean> isAvaliable(String site, LocalDate startDate, LocalDate endDate, Long id) {
+        int size = sites.getSize(site);
+        Boolean avaliable = occupancyIndex.isAvailable(site, startDate, endDate, id, size);
+        if (avaliable != null) {
+            return Mono.just(avaliable);
+        }
+        return findOccupancy(site, startDate, endDate)
+                .filter(res -> id == null || res.getId() != id)
+                .collectList()
+                .map(resList -> {
+                    int[] counts = count(resList, startDate, endDate);
+                    for (int night : counts) {
+                        if (night >= size) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+    }
+
+    private Mono<int[]> countNights(String site, LocalDate startDate, LocalDate endDate) {
+        return findOccupancy(site, startDate, endDate).collectList().map(resList -> count(resList, startDate, endDate));
+    }
+
+    private Flux<ReservationNights> findOccupancy(String site, LocalDate startDate, LocalDate endDate) {
+        return databaseClient.execute("SELECT id, start_date, end_date FROM reservations WHERE site = :site AND end_date >= :start AND start_date <= :end AND cancelled = 0")
+                .bind("site", site)
+                .bind("start", startDate)
+                .bind("end", endDate)
+                .map(row -> new ReservationNights(((Number) row.get("id")).longValue(), site, row.get("start_date", LocalDate.class), row.get("end_date", LocalDate.class)))
+                .all();
+    }
+
+    private int[] count(List<ReservationNights> resList, LocalDate startDate, LocalDate endDate) {
+        long first = startDate.toEpochDay();
+        int[] counts = new int[(int) Math.max(endDate.toEpochDay() - first, 0)];
+        for (ReservationNights res : resList) {
+            long last = Math.min(res.getEndDate().toEpochDay(), first + counts.length);
+            for (long day = Math.max(res.getStartDate().toEpochDay(), first); day < last; day++) {
+                counts[(int) (day - first)]++;
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,142 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.ReservationNights;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Moves reservations whose stay ended more than upgrade.archive.keep-days ago, cancelled or not,
+ * from reservations to reservations_history. Every upgrade.archive.interval ms the rows go over in
+ * batches of upgrade.archive.batch-size, each copied and deleted in a transaction of its own, so
+ * locks are held for one batch and a run that stops halfway leaves every row in exactly one of the
+ * tables; the next run takes the rest. Batches are read in (end_date, id) order from
+ * ix_reservations_end_date, each starting after the last row of the previous one.
+ */
+@Component
+public class ReservationArchiver {
+
+    private static final String ARCHIVABLE = "end_date < ?";
+
+    private static final String COLUMNS = "id, site, fullname, email, start_date, end_date, cancelled";
+
+    @Value("${upgrade.archive.enabled:true}")
+    private boolean enabled;
+
+    @Value("${upgrade.archive.batch-size:500}")
+    private int batchSize;
+
+    @Value("${upgrade.archive.keep-days:0}")
+    private int keepDays;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private ReservationCache reservationCache;
+
+    private TransactionTemplate transactionTemplate;
+
+    private MeterRegistry meterRegistry;
+
+    private Logger logger = LoggerFactory.getLogger(ReservationArchiver.class);
+
+    private Counter archived;
+
+    private Timer runs;
+
+    public ReservationArchiver(JdbcTemplate jdbcTemplate, ReservationCache reservationCache, PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.reservationCache = reservationCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        archived = meterRegistry.counter("booking.archive.rows");
+        runs = meterRegistry.timer("booking.archive");
+    }
+
+    @Scheduled(initialDelayString = "${upgrade.archive.interval:3600000}", fixedDelayString = "${upgrade.archive.interval:3600000}")
+    public void run() {
+        if (enabled) {
+            archive();
+        }
+    }
+
+    /**
+     * Archives every archivable reservation and returns how many were moved.
+     */
+    public int archive() {
+        long started = System.nanoTime();
+        Date before = Date.valueOf(LocalDate.now().minusDays(keepDays));
+        int moved = 0;
+        int batches = 0;
+        List<ReservationNights> rows = Collections.emptyList();
+        do {
+            rows = findArchivable(before, rows.isEmpty() ? null : rows.get(rows.size() - 1));
+            if (rows.isEmpty()) {
+                break;
+            }
+            List<Long> batch = rows.stream().map(ReservationNights::getId).collect(Collectors.toList());
+            Integer deleted = transactionTemplate.execute(status -> move(batch, before));
+            reservationCache.evict(batch);
+            moved += deleted == null ? 0 : deleted;
+            batches++;
+            archived.increment(deleted == null ? 0 : deleted);
+        } while (rows.size() == batchSize);
+        long elapsed = System.nanoTime() - started;
+        runs.record(elapsed, TimeUnit.NANOSECONDS);
+        logger.info("Archived " + moved + " reservations in " + batches + " batches, " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        return moved;
+    }
+
+    /**
+     * The next batch of archivable rows after the given one, or the first batch when it is null.
+     */
+    private List<ReservationNights> findArchivable(Date before, ReservationNights after) {
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement("SELECT id, start_date, end_date FROM reservations WHERE " + ARCHIVABLE
+                    + (after == null ? "" : " AND (end_date > ? OR end_date = ? AND id > ?)") + " ORDER BY end_date, id");
+            statement.setMaxRows(batchSize);
+            statement.setDate(1, before);
+            if (after != null) {
+                statement.setDate(2, Date.valueOf(after.getEndDate()));
+                statement.setDate(3, Date.valueOf(after.getEndDate()));
+                statement.setLong(4, after.getId());
+            }
+            return statement;
+        }, (rs, row) -> new ReservationNights(rs.getLong(1), rs.getDate(2).toLocalDate(), rs.getDate(3).toLocalDate()));
+    }
+
+    private int move(List<Long> ids, Date before) {
+        String in = "id IN (" + String.join(",", Collections.nCopies(ids.size(), "?")) + ") AND " + ARCHIVABLE;
+        List<Object> args = new ArrayList<>(ids);
+        args.add(before);
+        // lock the rows first, so a change or cancel cannot land between the copy and the delete
+        jdbcTemplate.update("UPDATE reservations SET cancelled = cancelled WHERE " + in, args.toArray());
+        List<Object> copyArgs = new ArrayList<>();
+        copyArgs.add(new Timestamp(System.currentTimeMillis()));
+        copyArgs.addAll(args);
+        jdbcTemplate.update("INSERT INTO reservations_history (" + COLUMNS + ", archived_at) SELECT " + COLUMNS + ", ? FROM reservations WHERE " + in, copyArgs.toArray());
+        return jdbcTemplate.update("DELETE FROM reservations WHERE " + in, args.toArray());
+    }
+}
@@ -0,0 +1,39 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import org.hibernate.SessionFactory;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Invalidation for reservation rows written past Hibernate (journal batches, R2DBC): the writes
+ * made through the repository already evict what they change, these have to say so.
+ */
+@Component
+public class ReservationCache {
+
+    private EntityManagerFactory entityManagerFactory;
+
+    public ReservationCache(EntityManagerFactory entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    public void evict(long id) {
+        evict(Collections.singletonList(id));
+    }
+
+    /**
+     * Drops the cached copies of the reservations and every cached query result, which may
+     * include or miss them.
+     */
+    public void evict(Collection<Long> ids) {
+        javax.persistence.Cache cache = entityManagerFactory.getCache();
+        for (Long id : ids) {
+            cache.evict(Reservation.class, id);
+        }
+        entityManagerFactory.unwrap(SessionFactory.class).getCache().evictQueryRegions();
+    }
+}
@@ -0,0 +1,239 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.config.ReadReplica;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes reservations to a stream as they come off a JDBC cursor read upgrade.export.fetch-size
+ * rows at a time. No entities are built and nothing is collected, so memory does not depend on
+ * the number of rows. At most upgrade.export.max-concurrent exports run at once.
+ */
+@Component
+public class ReservationExporter {
+
+    public enum Format {
+        NDJSON("application/x-ndjson"),
+        CSV("text/csv");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    private static final String COLUMNS = "id, site, fullname, email, start_date, end_date, cancelled";
+
+    private static final String CSV_HEADER = "id,site,name,email,startDate,endDate,cancelled";
+
+    @Value("${upgrade.export.fetch-size:1000}")
+    private int fetchSize;
+
+    @Value("${upgrade.export.max-concurrent:2}")
+    private int maxConcurrent;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private ObjectMapper objectMapper;
+
+    private MeterRegistry meterRegistry;
+
+    private Semaphore running;
+
+    private Counter exported;
+
+    public ReservationExporter(JdbcTemplate jdbcTemplate, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        running = new Semaphore(maxConcurrent);
+        exported = meterRegistry.counter("booking.export.rows");
+    }
+
+    /**
+     * Writes the reservations of the site (all sites when null) that overlap [startDate, endDate]
+     * (either end may be open), optionally only cancelled or only active ones, and with archived
+     * reservations when asked. Returns the number of rows written. Throws
+     * RejectedExecutionException before writing anything when too many exports are running.
+     */
+    @ReadReplica
+    public long export(String site, LocalDate startDate, LocalDate endDate, Boolean cancelled, boolean archived,
+                       Format format, OutputStream out) throws IOException {
+        if (!running.tryAcquire()) {
+            throw new RejectedExecutionException("Too many exports running");
+        }
+        try {
+            List<Object> args = new ArrayList<>();
+            String where = where(site, startDate, endDate, cancelled, args);
+            String sql = "SELECT " + COLUMNS + " FROM reservations" + where;
+            if (archived) {
+                sql += " UNION ALL SELECT " + COLUMNS + " FROM reservations_history" + where;
+                args.addAll(new ArrayList<>(args));
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            RowWriter rows = format == Format.CSV ? new CsvWriter(writer) : new JsonWriter(objectMapper, writer);
+            String query = sql;
+            long[] count = new long[1];
+            try {
+                jdbcTemplate.query(connection -> {
+                    PreparedStatement statement = connection.prepareStatement(query);
+                    statement.setFetchSize(fetchSize);
+                    for (int i = 0; i < args.size(); i++) {
+                        statement.setObject(i + 1, args.get(i));
+                    }
+                    return statement;
+                }, rs -> {
+                    try {
+                        rows.write(rs);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    count[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                // the client went away
+                throw e.getCause();
+            } finally {
+                exported.increment(count[0]);
+            }
+            rows.close();
+            return count[0];
+        } finally {
+            running.release();
+        }
+    }
+
+    private String where(String site, LocalDate startDate, LocalDate endDate, Boolean cancelled, List<Object> args) {
+        List<String> conditions = new ArrayList<>();
+        if (site != null) {
+            conditions.add("site = ?");
+            args.add(site);
+        }
+        if (startDate != null) {
+            conditions.add("end_date >= ?");
+            args.add(Date.valueOf(startDate));
+        }
+        if (endDate != null) {
+            conditions.add("start_date <= ?");
+            args.add(Date.valueOf(endDate));
+        }
+        if (cancelled != null) {
+            conditions.add("cancelled = ?");
+            args.add(cancelled);
+        }
+        return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+    }
+
+    private interface RowWriter {
+        void write(ResultSet rs) throws SQLException, IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * One JSON object per line, with the field names of the reservation API.
+     */
+    private static class JsonWriter implements RowWriter {
+        private final JsonGenerator generator;
+
+        JsonWriter(ObjectMapper objectMapper, Writer writer) throws IOException {
+            generator = objectMapper.getFactory().createGenerator(writer);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // rows are separated by the newline written after each of them
+            generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            generator.writeStartObject();
+            generator.writeNumberField("id", rs.getLong(1));
+            generator.writeStringField("site", rs.getString(2));
+            generator.writeStringField("name", rs.getString(3));
+            generator.writeStringField("email", rs.getString(4));
+            generator.writeStringField("startDate", date(rs, 5));
+            generator.writeStringField("endDate", date(rs, 6));
+            generator.writeBooleanField("cancelled", rs.getBoolean(7));
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+    }
+
+    private static class CsvWriter implements RowWriter {
+        private final Writer writer;
+
+        CsvWriter(Writer writer) throws IOException {
+            this.writer = writer;
+            writer.write(CSV_HEADER);
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException {
+            writer.write(Long.toString(rs.getLong(1)));
+            for (int column = 2; column <= 6; column++) {
+                writer.write(',');
+                writer.write(quote(column >= 5 ? date(rs, column) : rs.getString(column)));
+            }
+            writer.write(',');
+            writer.write(Boolean.toString(rs.getBoolean(7)));
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.flush();
+        }
+
+        private static String quote(String value) {
+            if (value == null) {
+                return "";
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                return value;
+            }
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    private static String date(ResultSet rs, int column) throws SQLException {
+        Date date = rs.getDate(column);
+        return date == null ? null : date.toLocalDate().toString();
+    }
+}
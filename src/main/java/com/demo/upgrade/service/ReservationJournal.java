@@ -0,0 +1,659 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead path for reserve, change and cancel. Each command is decided against the occupancy
+ * index, appended as a binary record to a memory-mapped file and acknowledged once the fsync
+ * policy considers it durable; a background thread then applies the records to the reservations
+ * table in batches. Unapplied records are replayed on startup.
+ *
+ * File layout: a 64 byte header (magic, generation, applied offset) followed by records of
+ * [length][type, generation, id, start day, end day, name, email, site][crc32]. The generation is
+ * bumped whenever the file is rewound after everything was applied, so stale records past the tail
+ * are never read back. Records written before sites existed end after the email and belong to the
+ * default site.
+ *
+ * Commands are decided under a lock per site; only the append itself is serialised across sites.
+ * Batches are written directly to the table under the same lock.
+ */
+@Component
+@Lazy(false)
+@ConditionalOnProperty(name = "upgrade.journal.enabled", havingValue = "true")
+public class ReservationJournal {
+
+    public enum FsyncPolicy {
+        /** Force the mapping before acknowledging every record. */
+        ALWAYS,
+        /** Acknowledge after the next periodic force, which covers every record appended since the last one. */
+        GROUP,
+        /** Acknowledge once the record is in the page cache. */
+        NEVER
+    }
+
+    private static final long MAGIC = 0x524a4e4c00000001L;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int GENERATION_OFFSET = 8;
+
+    private static final int APPLIED_OFFSET = 12;
+
+    private static final byte RESERVE = 1;
+
+    private static final byte CHANGE = 2;
+
+    private static final byte CANCEL = 3;
+
+    private static final String INSERT_SQL = "INSERT INTO reservations (id, site, fullname, email, start_date, end_date, cancelled) " +
+            "SELECT ?, ?, ?, ?, ?, ?, 0 WHERE NOT EXISTS (SELECT 1 FROM reservations WHERE id = ?)";
+
+    private static final String UPDATE_SQL = "UPDATE reservations SET fullname = ?, email = ?, start_date = ?, end_date = ? WHERE id = ?";
+
+    private static final String CANCEL_SQL = "UPDATE reservations SET cancelled = 1 WHERE id = ?";
+
+    @Value("${upgrade.journal.path:data/reservations.journal}")
+    private String path;
+
+    @Value("${upgrade.journal.size-mb:64}")
+    private int sizeMb;
+
+    @Value("${upgrade.journal.fsync:GROUP}")
+    private FsyncPolicy fsync;
+
+    @Value("${upgrade.journal.fsync-interval:5}")
+    private long fsyncInterval;
+
+    @Value("${upgrade.journal.apply-interval:50}")
+    private long applyInterval;
+
+    @Value("${upgrade.journal.apply-batch-size:500}")
+    private int applyBatchSize;
+
+    @Value("${upgrade.journal.id-blocks:4}")
+    private int idBlocks;
+
+    private BookingService bookingService;
+
+    private OccupancyIndex occupancyIndex;
+
+    private Sites sites;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private ReservationCache reservationCache;
+
+    private TransactionTemplate transactionTemplate;
+
+    private MeterRegistry meterRegistry;
+
+    private Logger logger = LoggerFactory.getLogger(ReservationJournal.class);
+
+    private RandomAccessFile file;
+
+    private MappedByteBuffer buffer;
+
+    private int generation;
+
+    private volatile int writePosition;
+
+    private volatile int appliedPosition;
+
+    private volatile int pendingRecords;
+
+    private Deque<long[]> ids = new ArrayDeque<>();
+
+    private final Map<String, Object> siteLocks;
+
+    private final Object applyLock = new Object();
+
+    private final Object flushLock = new Object();
+
+    private long appendedBytes;
+
+    private long durableBytes;
+
+    private AtomicLong applied = new AtomicLong();
+
+    private Thread applier;
+
+    private Thread flusher;
+
+    private volatile boolean running;
+
+    public ReservationJournal(BookingService bookingService, OccupancyIndex occupancyIndex, Sites sites, JdbcTemplate jdbcTemplate,
+                              ReservationCache reservationCache, PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.bookingService = bookingService;
+        this.occupancyIndex = occupancyIndex;
+        this.sites = sites;
+        Map<String, Object> locks = new HashMap<>();
+        for (String site : sites.getNames()) {
+            locks.put(site, new Object());
+        }
+        this.siteLocks = Collections.unmodifiableMap(locks);
+        this.jdbcTemplate = jdbcTemplate;
+        this.reservationCache = reservationCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        open();
+        try {
+            while (applyPending() > 0) {
+                logger.info("Replayed journal records, " + pendingRecords + " left");
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not replay " + pendingRecords + " journal records, will keep retrying: " + e.getMessage());
+        }
+        occupancyIndex.rebuild();
+        synchronized (this) {
+            for (Record record : read(appliedPosition, writePosition, Integer.MAX_VALUE)) {
+                if (!sites.contains(record.site)) {
+                    continue;
+                }
+                if (record.type == CANCEL) {
+                    occupancyIndex.remove(record.site, record.id);
+                } else {
+                    occupancyIndex.add(record.site, record.id, record.startDate, record.endDate);
+                }
+            }
+        }
+        occupancyIndex.setPendingWrites(this::hasPending);
+        try {
+            refillIds();
+        } catch (RuntimeException e) {
+            logger.warn("Could not reserve reservation ids: " + e.getMessage());
+        }
+        Gauge.builder("booking.journal.pending", this, journal -> journal.pendingRecords)
+                .description("Journal records not yet applied to the reservations table")
+                .register(meterRegistry);
+        Gauge.builder("booking.journal.used", this, journal -> journal.writePosition)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        FunctionCounter.builder("booking.journal.applied", applied, AtomicLong::get).register(meterRegistry);
+
+        running = true;
+        applier = new Thread(this::applyLoop, "reservation-journal-applier");
+        applier.setDaemon(true);
+        applier.start();
+        if (fsync == FsyncPolicy.GROUP) {
+            flusher = new Thread(this::flushLoop, "reservation-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        running = false;
+        for (Thread thread : new Thread[]{applier, flusher}) {
+            if (thread != null) {
+                thread.interrupt();
+                thread.join(5000);
+            }
+        }
+        synchronized (this) {
+            buffer.force();
+            file.close();
+        }
+        synchronized (flushLock) {
+            durableBytes = appendedBytes;
+            flushLock.notifyAll();
+        }
+    }
+
+    public BookingResult reserve(Reservation reservation) {
+        if (!bookingService.verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+            return BookingResult.of(BookingOutcome.BAD_DATES);
+        }
+        String site = reservation.getSite();
+        long id;
+        long mark;
+        synchronized (lock(site)) {
+            if (!bookingService.isAvaliable(site, reservation.getStartDate(), reservation.getEndDate(), null)) {
+                return BookingResult.of(BookingOutcome.UNAVAILABLE);
+            }
+            synchronized (this) {
+                id = nextId();
+                mark = append(RESERVE, site, id, reservation);
+            }
+            occupancyIndex.add(site, id, reservation.getStartDate(), reservation.getEndDate());
+        }
+        awaitDurable(mark);
+        return new BookingResult(BookingOutcome.CREATED, id);
+    }
+
+    /**
+     * Changes a reservation the occupancy index knows about at the site; reservations that already ended are not found.
+     */
+    public BookingResult change(String site, long id, Reservation reservation) {
+        long mark;
+        synchronized (lock(site)) {
+            if (!occupancyIndex.contains(site, id)) {
+                return BookingResult.of(BookingOutcome.NOT_FOUND);
+            }
+            if (!bookingService.verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+                return BookingResult.of(BookingOutcome.BAD_DATES);
+            }
+            if (!bookingService.isAvaliable(site, reservation.getStartDate(), reservation.getEndDate(), id)) {
+                return BookingResult.of(BookingOutcome.UNAVAILABLE);
+            }
+            synchronized (this) {
+                mark = append(CHANGE, site, id, reservation);
+            }
+            occupancyIndex.add(site, id, reservation.getStartDate(), reservation.getEndDate());
+        }
+        awaitDurable(mark);
+        return new BookingResult(BookingOutcome.UPDATED, id);
+    }
+
+    public BookingResult cancel(String site, long id) {
+        long mark;
+        synchronized (lock(site)) {
+            if (!occupancyIndex.contains(site, id)) {
+                return BookingResult.of(BookingOutcome.NOT_FOUND);
+            }
+            synchronized (this) {
+                mark = append(CANCEL, site, id, null);
+            }
+            occupancyIndex.remove(site, id);
+        }
+        awaitDurable(mark);
+        return new BookingResult(BookingOutcome.CANCELLED, id);
+    }
+
+    /**
+     * Books a batch for the site straight into the reservations table while holding the site's
+     * lock, so journal decisions for the site cannot pass against the same index state.
+     */
+    public List<BookingResult> reserveAll(String site, List<Reservation> reservations) {
+        return locked(site, () -> bookingService.reserveAll(reservations));
+    }
+
+    /**
+     * Runs a write of its own for the site under the lock journal decisions for the site take.
+     */
+    public <T> T locked(String site, Supplier<T> write) {
+        synchronized (lock(site)) {
+            return write.get();
+        }
+    }
+
+    public boolean hasPending() {
+        return appliedPosition != writePosition;
+    }
+
+    public int getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * Applies up to apply-batch-size records in one transaction and returns how many were applied.
+     * Inserts skip ids that already exist, so a batch committed before a crash can be applied again.
+     */
+    public int applyPending() {
+        synchronized (applyLock) {
+            int from;
+            int to;
+            int batchGeneration;
+            List<Record> records;
+            synchronized (this) {
+                from = appliedPosition;
+                to = writePosition;
+                batchGeneration = generation;
+                records = read(from, to, applyBatchSize);
+            }
+            if (records.isEmpty()) {
+                return 0;
+            }
+            transactionTemplate.executeWithoutResult(status -> write(records));
+            List<Long> written = new ArrayList<>();
+            for (Record record : records) {
+                written.add(record.id);
+            }
+            reservationCache.evict(written);
+            synchronized (this) {
+                if (generation == batchGeneration) {
+                    appliedPosition = records.get(records.size() - 1).next;
+                    pendingRecords -= records.size();
+                    if (appliedPosition == writePosition) {
+                        generation++;
+                        writePosition = HEADER_SIZE;
+                        appliedPosition = HEADER_SIZE;
+                        buffer.putInt(GENERATION_OFFSET, generation);
+                    }
+                    buffer.putInt(APPLIED_OFFSET, appliedPosition);
+                    buffer.force();
+                }
+            }
+            applied.addAndGet(records.size());
+            return records.size();
+        }
+    }
+
+    private void open() throws IOException {
+        File journalFile = new File(path);
+        if (journalFile.getParentFile() != null) {
+            journalFile.getParentFile().mkdirs();
+        }
+        int capacity = sizeMb * 1024 * 1024;
+        file = new RandomAccessFile(journalFile, "rw");
+        if (file.length() < capacity) {
+            file.setLength(capacity);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (buffer.getLong(0) != MAGIC) {
+            buffer.putLong(0, MAGIC);
+            buffer.putInt(GENERATION_OFFSET, 1);
+            buffer.putInt(APPLIED_OFFSET, HEADER_SIZE);
+            buffer.force();
+        }
+        generation = buffer.getInt(GENERATION_OFFSET);
+        appliedPosition = buffer.getInt(APPLIED_OFFSET);
+        List<Record> records = read(appliedPosition, capacity, Integer.MAX_VALUE);
+        writePosition = records.isEmpty() ? appliedPosition : records.get(records.size() - 1).next;
+        pendingRecords = records.size();
+        logger.info("Opened reservation journal " + journalFile.getAbsolutePath() + " with " + pendingRecords + " unapplied records");
+    }
+
+    private Object lock(String site) {
+        Object lock = siteLocks.get(site);
+        if (lock == null) {
+            throw new IllegalArgumentException("Unknown site " + site);
+        }
+        return lock;
+    }
+
+    private long append(byte type, String site, long id, Reservation reservation) {
+        byte[] name = bytes(reservation == null ? null : reservation.getName());
+        byte[] email = bytes(reservation == null ? null : reservation.getEmail());
+        byte[] siteName = bytes(site);
+        int length = 1 + 4 + 8 + 4 + 4 + 2 + (name == null ? 0 : name.length) + 2 + (email == null ? 0 : email.length)
+                + 2 + siteName.length + 4;
+        if (writePosition + 4 + length > buffer.capacity()) {
+            throw new RejectedExecutionException("Reservation journal is full");
+        }
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length)
+                .put(type)
+                .putInt(generation)
+                .putLong(id)
+                .putInt(reservation == null ? 0 : (int) reservation.getStartDate().toEpochDay())
+                .putInt(reservation == null ? 0 : (int) reservation.getEndDate().toEpochDay());
+        putString(record, name);
+        putString(record, email);
+        putString(record, siteName);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 4);
+        record.putInt((int) crc.getValue());
+
+        ByteBuffer target = buffer.duplicate();
+        target.position(writePosition);
+        target.put(record.array());
+        writePosition += record.capacity();
+        pendingRecords++;
+        if (fsync == FsyncPolicy.ALWAYS) {
+            buffer.force();
+        }
+        synchronized (flushLock) {
+            appendedBytes += record.capacity();
+            if (fsync != FsyncPolicy.GROUP) {
+                durableBytes = appendedBytes;
+            }
+            return appendedBytes;
+        }
+    }
+
+    private void awaitDurable(long mark) {
+        synchronized (flushLock) {
+            while (durableBytes < mark) {
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted before the journal was flushed");
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                Thread.sleep(fsyncInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long target;
+            synchronized (flushLock) {
+                target = appendedBytes;
+                if (target == durableBytes) {
+                    continue;
+                }
+            }
+            buffer.force();
+            synchronized (flushLock) {
+                durableBytes = Math.max(durableBytes, target);
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private void applyLoop() {
+        boolean failing = false;
+        while (running) {
+            try {
+                Thread.sleep(applyInterval);
+                while (applyPending() > 0) {
+                    // drain the backlog before sleeping again
+                }
+                refillIds();
+                if (failing) {
+                    logger.info("Journal applier recovered, " + pendingRecords + " records pending");
+                }
+                failing = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                if (!failing) {
+                    logger.warn("Journal applier failed, " + pendingRecords + " records pending: " + e.getMessage());
+                }
+                failing = true;
+            }
+        }
+    }
+
+    private void write(List<Record> records) {
+        int start = 0;
+        while (start < records.size()) {
+            byte type = records.get(start).type;
+            int end = start;
+            while (end < records.size() && records.get(end).type == type) {
+                end++;
+            }
+            List<Record> run = records.subList(start, end);
+            if (type == RESERVE) {
+                jdbcTemplate.batchUpdate(INSERT_SQL, run, run.size(), (ps, record) -> {
+                    ps.setLong(1, record.id);
+                    ps.setString(2, record.site);
+                    ps.setString(3, record.name);
+                    ps.setString(4, record.email);
+                    ps.setObject(5, record.startDate);
+                    ps.setObject(6, record.endDate);
+                    ps.setLong(7, record.id);
+                });
+            } else if (type == CHANGE) {
+                jdbcTemplate.batchUpdate(UPDATE_SQL, run, run.size(), (ps, record) -> {
+                    ps.setString(1, record.name);
+                    ps.setString(2, record.email);
+                    ps.setObject(3, record.startDate);
+                    ps.setObject(4, record.endDate);
+                    ps.setLong(5, record.id);
+                });
+            } else {
+                jdbcTemplate.batchUpdate(CANCEL_SQL, run, run.size(), (ps, record) -> ps.setLong(1, record.id));
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Reads valid records of the current generation in [from, to), stopping at the first torn or stale one.
+     */
+    private List<Record> read(int from, int to, int limit) {
+        List<Record> records = new ArrayList<>();
+        ByteBuffer view = buffer.duplicate();
+        int position = from;
+        while (records.size() < limit && position + 4 <= to) {
+            int length = view.getInt(position);
+            if (length < 29 || position + 4 + length > to) {
+                break;
+            }
+            byte[] body = new byte[length - 4];
+            view.position(position + 4);
+            view.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != view.getInt(position + length)) {
+                break;
+            }
+            ByteBuffer fields = ByteBuffer.wrap(body);
+            Record record = new Record();
+            record.type = fields.get();
+            if (fields.getInt() != generation) {
+                break;
+            }
+            record.id = fields.getLong();
+            record.startDate = LocalDate.ofEpochDay(fields.getInt());
+            record.endDate = LocalDate.ofEpochDay(fields.getInt());
+            record.name = getString(fields);
+            record.email = getString(fields);
+            record.site = fields.hasRemaining() ? getString(fields) : Reservation.DEFAULT_SITE;
+            record.next = position + 4 + length;
+            records.add(record);
+            position = record.next;
+        }
+        return records;
+    }
+
+    private long nextId() {
+        long[] block = ids.peekFirst();
+        if (block == null) {
+            try {
+                block = fetchIds();
+            } catch (RuntimeException e) {
+                throw new RejectedExecutionException("No reservation ids left: " + e.getMessage());
+            }
+            ids.addLast(block);
+        }
+        long id = block[0]++;
+        if (block[0] > block[1]) {
+            ids.pollFirst();
+        }
+        return id;
+    }
+
+    private void refillIds() {
+        while (true) {
+            synchronized (this) {
+                if (ids.size() >= idBlocks) {
+                    return;
+                }
+            }
+            long[] block = fetchIds();
+            synchronized (this) {
+                ids.addLast(block);
+            }
+        }
+    }
+
+    /**
+     * Draws one reservations_seq value and takes the block Hibernate's pooled optimizer leaves to whoever drew it.
+     */
+    private long[] fetchIds() {
+        long[] block;
+        do {
+            block = Reservation.idBlock(jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR reservations_seq", Long.class));
+        } while (block == null);
+        return block;
+    }
+
+    private static byte[] bytes(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Value too long for the reservation journal");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer record, byte[] value) {
+        if (value == null) {
+            record.putShort((short) -1);
+        } else {
+            record.putShort((short) value.length);
+            record.put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer fields) {
+        short length = fields.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        fields.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static class Record {
+        private byte type;
+        private long id;
+        private LocalDate startDate;
+        private LocalDate endDate;
+        private String name;
+        private String email;
+        private String site;
+        private int next;
+    }
+}
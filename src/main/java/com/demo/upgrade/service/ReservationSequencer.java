@@ -0,0 +1,255 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Funnels reserve, batch reserve, change and cancel through one writer thread per site. A writer
+ * decides each command in arrival order against the occupancy index and commits every drained batch
+ * in one transaction, so the availability check and the write can no longer interleave with another
+ * request for the same site, while sites never queue behind each other.
+ */
+@Component
+@Lazy(false)
+@ConditionalOnProperty(name = "upgrade.sequencer.enabled", havingValue = "true")
+public class ReservationSequencer {
+
+    @Value("${upgrade.sequencer.queue-size:1024}")
+    private int queueSize;
+
+    @Value("${upgrade.sequencer.batch-size:64}")
+    private int batchSize;
+
+    private BookingService bookingService;
+
+    private OccupancyIndex occupancyIndex;
+
+    private Sites sites;
+
+    private TransactionTemplate transactionTemplate;
+
+    private MeterRegistry meterRegistry;
+
+    private Logger logger = LoggerFactory.getLogger(ReservationSequencer.class);
+
+    private Map<String, Lane> lanes;
+
+    private DistributionSummary batchSizes;
+
+    private volatile boolean running;
+
+    public ReservationSequencer(BookingService bookingService, OccupancyIndex occupancyIndex, Sites sites,
+                                PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.bookingService = bookingService;
+        this.occupancyIndex = occupancyIndex;
+        this.sites = sites;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        batchSizes = DistributionSummary.builder("booking.sequencer.batch.size")
+                .description("Commands committed per transaction")
+                .register(meterRegistry);
+        running = true;
+        Map<String, Lane> bySite = new HashMap<>();
+        for (String site : sites.getNames()) {
+            Lane lane = new Lane(new ArrayBlockingQueue<>(queueSize));
+            meterRegistry.gauge("booking.sequencer.queue.depth", Tags.of("site", site), lane.queue, BlockingQueue::size);
+            lane.writer = new Thread(() -> run(lane), "reservation-sequencer-" + site);
+            lane.writer.setDaemon(true);
+            lane.writer.start();
+            bySite.put(site, lane);
+        }
+        lanes = Collections.unmodifiableMap(bySite);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Lane lane : lanes.values()) {
+            lane.writer.interrupt();
+            lane.writer.join(5000);
+            List<Command> pending = new ArrayList<>();
+            lane.queue.drainTo(pending);
+            pending.forEach(command -> command.result.completeExceptionally(new RejectedExecutionException("Sequencer stopped")));
+        }
+    }
+
+    public CompletableFuture<BookingResult> reserve(Reservation reservation) {
+        return submit(new Command(CommandType.RESERVE, reservation.getSite(), null, Collections.singletonList(reservation))).thenApply(results -> results.get(0));
+    }
+
+    /**
+     * Queues the batch on the lane of the site of its first reservation, so all of them should be for that site.
+     */
+    public CompletableFuture<List<BookingResult>> reserveAll(List<Reservation> reservations) {
+        String site = reservations.isEmpty() ? sites.getDefault() : reservations.get(0).getSite();
+        return submit(new Command(CommandType.RESERVE_ALL, site, null, reservations));
+    }
+
+    /**
+     * Runs a write of its own on the lane of the site, inside the lane's transaction, so it is
+     * decided in turn with the site's other commands.
+     */
+    public CompletableFuture<List<BookingResult>> run(String site, Supplier<List<BookingResult>> write) {
+        Command command = new Command(CommandType.WRITE, site, null, Collections.emptyList());
+        command.write = write;
+        return submit(command);
+    }
+
+    public CompletableFuture<BookingResult> change(String site, long id, Reservation reservation) {
+        return submit(new Command(CommandType.CHANGE, site, id, Collections.singletonList(reservation))).thenApply(results -> results.get(0));
+    }
+
+    public CompletableFuture<BookingResult> cancel(String site, long id) {
+        return submit(new Command(CommandType.CANCEL, site, id, Collections.emptyList())).thenApply(results -> results.get(0));
+    }
+
+    public int getQueueDepth(String site) {
+        return lanes.get(site).queue.size();
+    }
+
+    private CompletableFuture<List<BookingResult>> submit(Command command) {
+        Lane lane = lanes.get(command.site);
+        if (lane == null) {
+            command.result.completeExceptionally(new IllegalArgumentException("Unknown site " + command.site));
+        } else if (!running || !lane.queue.offer(command)) {
+            command.result.completeExceptionally(new RejectedExecutionException("Reservation queue is full"));
+        }
+        return command.result;
+    }
+
+    private void run(Lane lane) {
+        List<Command> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                batch.add(lane.queue.take());
+                lane.queue.drainTo(batch, batchSize - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Command> batch) {
+        batchSizes.record(batch.size());
+        List<List<BookingResult>> results = new ArrayList<>(batch.size());
+        try {
+            transactionTemplate.execute(status -> {
+                for (Command command : batch) {
+                    results.add(decide(command));
+                }
+                return null;
+            });
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (RuntimeException e) {
+            logger.error("Batch of " + batch.size() + " failed, retrying one by one: " + e.getMessage());
+            occupancyIndex.rebuild();
+            for (Command command : batch) {
+                commitOne(command);
+            }
+        }
+    }
+
+    private void commitOne(Command command) {
+        try {
+            command.result.complete(transactionTemplate.execute(status -> decide(command)));
+        } catch (RuntimeException e) {
+            occupancyIndex.rebuild();
+            command.result.completeExceptionally(e);
+        }
+    }
+
+    private List<BookingResult> decide(Command command) {
+        if (command.type == CommandType.RESERVE_ALL) {
+            return bookingService.reserveAll(command.reservations);
+        }
+        if (command.type == CommandType.WRITE) {
+            return command.write.get();
+        }
+        return Collections.singletonList(decideOne(command));
+    }
+
+    private BookingResult decideOne(Command command) {
+        Reservation reservation = command.reservations.isEmpty() ? null : command.reservations.get(0);
+        switch (command.type) {
+            case RESERVE:
+                if (!bookingService.verifyDates(reservation.getStartDate(), reservation.getEndDate(), true)) {
+                    return BookingResult.of(BookingOutcome.BAD_DATES);
+                }
+                if (!bookingService.isAvaliable(command.site, reservation.getStartDate(), reservation.getEndDate(), null)) {
+                    return BookingResult.of(BookingOutcome.UNAVAILABLE);
+                }
+                Long id = bookingService.reserve(reservation);
+                return id == null ? BookingResult.of(BookingOutcome.UNAVAILABLE) : new BookingResult(BookingOutcome.CREATED, id);
+            case CHANGE:
+                return bookingService.change(command.site, command.id, reservation);
+            default:
+                return bookingService.cancel(command.site, command.id);
+        }
+    }
+
+    private enum CommandType {
+        RESERVE,
+        RESERVE_ALL,
+        WRITE,
+        CHANGE,
+        CANCEL
+    }
+
+    private static class Lane {
+        private final BlockingQueue<Command> queue;
+        private Thread writer;
+
+        Lane(BlockingQueue<Command> queue) {
+            this.queue = queue;
+        }
+    }
+
+    private static class Command {
+        private final CommandType type;
+        private final String site;
+        private final Long id;
+        private final List<Reservation> reservations;
+        private final CompletableFuture<List<BookingResult>> result = new CompletableFuture<>();
+        private Supplier<List<BookingResult>> write;
+
+        Command(CommandType type, String site, Long id, List<Reservation> reservations) {
+            this.type = type;
+            this.site = site;
+            this.id = id;
+            this.reservations = reservations;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The sites reservations are taken for (upgrade.sites) and the capacity of each,
+ * upgrade.sites.&lt;site&gt;.size, falling back to upgrade.reservation.size.
+ */
+@Component
+public class Sites {
+
+    private Map<String, Integer> capacities;
+
+    public Sites(Environment environment) {
+        int defaultSize = environment.getRequiredProperty("upgrade.reservation.size", Integer.class);
+        String[] names = environment.getProperty("upgrade.sites", String[].class, new String[]{Reservation.DEFAULT_SITE});
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        for (String name : names) {
+            String site = name.trim();
+            if (!site.isEmpty()) {
+                sizes.put(site, environment.getProperty("upgrade.sites." + site + ".size", Integer.class, defaultSize));
+            }
+        }
+        if (sizes.isEmpty()) {
+            throw new IllegalStateException("upgrade.sites lists no site");
+        }
+        capacities = Collections.unmodifiableMap(sizes);
+    }
+
+    public Set<String> getNames() {
+        return capacities.keySet();
+    }
+
+    public boolean contains(String site) {
+        return site != null && capacities.containsKey(site);
+    }
+
+    /**
+     * The site a request without a site parameter is for.
+     */
+    public String getDefault() {
+        return capacities.containsKey(Reservation.DEFAULT_SITE) ? Reservation.DEFAULT_SITE : capacities.keySet().iterator().next();
+    }
+
+    public int getSize(String site) {
+        Integer size = capacities.get(site);
+        if (size == null) {
+            throw new IllegalArgumentException("Unknown site " + site);
+        }
+        return size;
+    }
+}
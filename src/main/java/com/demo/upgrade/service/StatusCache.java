@@ -0,0 +1,150 @@
+package com.demo.upgrade.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of available days per site and (startDate, endDate). Entries are dropped
+ * when the occupancy index reports a change to any of their nights. Each site has its own LRU
+ * (upgrade.status.cache-size entries) and lock.
+ */
+@Component
+public class StatusCache implements OccupancyListener {
+
+    @Value("${upgrade.status.cache-size:256}")
+    private int maxSize;
+
+    private OccupancyIndex occupancyIndex;
+
+    private Sites sites;
+
+    private MeterRegistry meterRegistry;
+
+    private Map<String, Map<Range, List<String>>> entries;
+
+    private AtomicLong hits = new AtomicLong();
+
+    private AtomicLong misses = new AtomicLong();
+
+    private AtomicLong evictions = new AtomicLong();
+
+    private AtomicLong invalidations = new AtomicLong();
+
+    public StatusCache(OccupancyIndex occupancyIndex, Sites sites, MeterRegistry meterRegistry) {
+        this.occupancyIndex = occupancyIndex;
+        this.sites = sites;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        Map<String, Map<Range, List<String>>> bySite = new HashMap<>();
+        for (String site : sites.getNames()) {
+            bySite.put(site, new LinkedHashMap<Range, List<String>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Range, List<String>> eldest) {
+                    if (size() > maxSize) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            });
+        }
+        entries = Collections.unmodifiableMap(bySite);
+        occupancyIndex.addListener(this);
+        FunctionCounter.builder("booking.status.cache.hits", hits, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("booking.status.cache.misses", misses, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("booking.status.cache.evictions", evictions, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("booking.status.cache.invalidations", invalidations, AtomicLong::get).register(meterRegistry);
+    }
+
+    public List<String> get(String site, LocalDate startDate, LocalDate endDate) {
+        Map<Range, List<String>> siteEntries = entries.get(site);
+        List<String> days;
+        synchronized (siteEntries) {
+            days = siteEntries.get(new Range(startDate.toEpochDay(), endDate.toEpochDay()));
+        }
+        if (days == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return days;
+    }
+
+    /**
+     * Caches days computed at the given occupancy version of the site, unless the index has changed since.
+     */
+    public void put(String site, LocalDate startDate, LocalDate endDate, List<String> days, long version) {
+        Map<Range, List<String>> siteEntries = entries.get(site);
+        synchronized (siteEntries) {
+            if (occupancyIndex.getVersion(site) == version) {
+                siteEntries.put(new Range(startDate.toEpochDay(), endDate.toEpochDay()), days);
+            }
+        }
+    }
+
+    @Override
+    public void occupancyChanged(String site, long firstDay, long endDay) {
+        Map<Range, List<String>> siteEntries = entries.get(site);
+        synchronized (siteEntries) {
+            Iterator<Range> iterator = siteEntries.keySet().iterator();
+            while (iterator.hasNext()) {
+                Range range = iterator.next();
+                if (range.startDay < endDay && range.endDay > firstDay) {
+                    iterator.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class Range {
+        private final long startDay;
+        private final long endDay;
+
+        Range(long startDay, long endDay) {
+            this.startDay = startDay;
+            this.endDay = endDay;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Range)) {
+                return false;
+            }
+            Range other = (Range) o;
+            return startDay == other.startDay && endDay == other.endDay;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(startDay) * 31 + Long.hashCode(endDay);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.demo.upgrade.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: four levels of 64 slots, each slot of a level spanning a whole turn
+ * of the level below. Scheduling and expiring are O(1) per item; an item moves down a level each
+ * time its slot comes round, until it reaches the tick it is due in. Deadlines past the last level
+ * (64^4 ticks) wait in its furthest slot and are placed again when it comes round. Not thread safe.
+ */
+public class TimingWheel<T> {
+
+    private static final int BITS = 6;
+
+    private static final int SLOTS = 1 << BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+
+    private final List<List<Entry<T>>> slots = new ArrayList<>();
+
+    private long currentTick;
+
+    private int size;
+
+    public TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Adds the item to expire in the first tick at or after deadlineMillis.
+     */
+    public void schedule(long deadlineMillis, T item) {
+        place(new Entry<>((deadlineMillis + tickMillis - 1) / tickMillis, item), currentTick + 1);
+        size++;
+    }
+
+    /**
+     * Moves the wheel to nowMillis and returns the items due by then.
+     */
+    public List<T> advance(long nowMillis) {
+        List<T> due = new ArrayList<>();
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level);
+                }
+            }
+            List<Entry<T>> slot = slots.get((int) (currentTick & MASK));
+            for (Entry<T> entry : slot) {
+                due.add(entry.item);
+            }
+            size -= slot.size();
+            slot.clear();
+        }
+        return due;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void cascade(int level) {
+        List<Entry<T>> slot = slots.get(level * SLOTS + (int) ((currentTick >> (BITS * level)) & MASK));
+        List<Entry<T>> entries = new ArrayList<>(slot);
+        slot.clear();
+        for (Entry<T> entry : entries) {
+            place(entry, currentTick);
+        }
+    }
+
+    /**
+     * Puts the entry in the slot of the lowest level that still reaches its tick, but not before
+     * earliestTick: the next tick for new items, the current one for items cascading down.
+     */
+    private void place(Entry<T> entry, long earliestTick) {
+        long tick = Math.max(entry.tick, earliestTick);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = BITS * level;
+            if ((tick >> shift) - (currentTick >> shift) < SLOTS) {
+                slots.get(level * SLOTS + (int) ((tick >> shift) & MASK)).add(entry);
+                return;
+            }
+        }
+        int shift = BITS * (LEVELS - 1);
+        slots.get((LEVELS - 1) * SLOTS + (int) (((currentTick >> shift) + MASK) & MASK)).add(entry);
+    }
+
+    private static class Entry<T> {
+        private final long tick;
+        private final T item;
+
+        Entry(long tick, T item) {
+            this.tick = tick;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.demo.upgrade.service;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.WaitlistEntry;
+import com.demo.upgrade.repository.WaitlistRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Requests waiting for full nights. Pending entries are indexed in memory by site and night, so a
+ * change to the occupancy index only looks at the entries on the nights it touched. Every
+ * upgrade.waitlist.allocate-interval ms the allocator takes the nights of the changed range that
+ * have capacity left, and books the oldest entries waiting on them whose every night has room, up
+ * to upgrade.waitlist.batch-size per site in one transaction. With the sequencer or the journal on,
+ * that transaction runs on the site's lane or under the journal's site lock, like every other write.
+ */
+@Component
+public class Waitlist implements OccupancyListener {
+
+    @Value("${upgrade.waitlist.batch-size:100}")
+    private int batchSize;
+
+    private WaitlistRepository waitlistRepository;
+
+    private BookingService bookingService;
+
+    private OccupancyIndex occupancyIndex;
+
+    private Sites sites;
+
+    private ReservationSequencer sequencer;
+
+    private ReservationJournal journal;
+
+    private TransactionTemplate transactionTemplate;
+
+    private MeterRegistry meterRegistry;
+
+    private Logger logger = LoggerFactory.getLogger(Waitlist.class);
+
+    private Map<String, Queue> queues;
+
+    private AtomicLong allocated = new AtomicLong();
+
+    public Waitlist(WaitlistRepository waitlistRepository, BookingService bookingService, OccupancyIndex occupancyIndex, Sites sites,
+                    Optional<ReservationSequencer> sequencer, Optional<ReservationJournal> journal,
+                    PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.waitlistRepository = waitlistRepository;
+        this.bookingService = bookingService;
+        this.occupancyIndex = occupancyIndex;
+        this.sites = sites;
+        this.sequencer = sequencer.orElse(null);
+        this.journal = journal.orElse(null);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        Map<String, Queue> bySite = new HashMap<>();
+        for (String site : sites.getNames()) {
+            Queue queue = new Queue();
+            Gauge.builder("booking.waitlist.pending", queue.entries, Map::size).tag("site", site).register(meterRegistry);
+            bySite.put(site, queue);
+        }
+        queues = Collections.unmodifiableMap(bySite);
+        int unknown = 0;
+        for (WaitlistEntry entry : waitlistRepository.findPending(LocalDate.now().plusDays(1))) {
+            Queue queue = queues.get(entry.getSite());
+            if (queue == null) {
+                unknown++;
+                continue;
+            }
+            queue.add(entry);
+        }
+        if (unknown > 0) {
+            logger.warn(unknown + " waitlist entries belong to sites missing from upgrade.sites");
+        }
+        FunctionCounter.builder("booking.waitlist.allocated", allocated, AtomicLong::get).register(meterRegistry);
+        occupancyIndex.addListener(this);
+    }
+
+    /**
+     * Adds a request for [startDate, endDate) at the end of the waitlist of the site.
+     */
+    public WaitlistEntry join(String site, String name, String email, LocalDate startDate, LocalDate endDate) {
+        Queue queue = queue(site);
+        WaitlistEntry entry = waitlistRepository.save(new WaitlistEntry(site, name, email, startDate, endDate, Instant.now()));
+        synchronized (queue) {
+            queue.add(entry);
+            // the nights may have been freed before the entry was indexed
+            queue.markDirty(startDate.toEpochDay(), endDate.toEpochDay());
+        }
+        return entry;
+    }
+
+    public WaitlistEntry getEntry(long id) {
+        return waitlistRepository.findById(id).orElse(null);
+    }
+
+    /**
+     * Removes a pending entry. Returns false when it is unknown or already booked.
+     */
+    public boolean leave(long id) {
+        for (Queue queue : queues.values()) {
+            WaitlistEntry entry;
+            synchronized (queue) {
+                entry = queue.remove(id);
+            }
+            if (entry != null) {
+                waitlistRepository.deleteById(id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getPending(String site) {
+        Queue queue = queue(site);
+        synchronized (queue) {
+            return queue.entries.size();
+        }
+    }
+
+    @Override
+    public void occupancyChanged(String site, long firstDay, long endDay) {
+        Queue queue = queues.get(site);
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            if (!queue.entries.isEmpty()) {
+                queue.markDirty(firstDay, endDay);
+            }
+        }
+    }
+
+    @Scheduled(initialDelayString = "${upgrade.waitlist.allocate-interval:1000}", fixedDelayString = "${upgrade.waitlist.allocate-interval:1000}")
+    public void allocate() {
+        queues.forEach(this::allocate);
+    }
+
+    private void allocate(String site, Queue queue) {
+        long tomorrow = LocalDate.now().plusDays(1).toEpochDay();
+        long first;
+        long end;
+        synchronized (queue) {
+            queue.prune(tomorrow);
+            first = Math.max(queue.dirtyFirst, tomorrow);
+            end = Math.min(queue.dirtyEnd, LocalDate.now().plusMonths(1).plusDays(1).toEpochDay());
+            queue.dirtyFirst = Long.MAX_VALUE;
+            queue.dirtyEnd = Long.MIN_VALUE;
+            if (first >= end || queue.entries.isEmpty()) {
+                return;
+            }
+        }
+        int[] remaining = bookingService.getRemainingCapacity(site, LocalDate.ofEpochDay(first), LocalDate.ofEpochDay(end));
+        List<WaitlistEntry> waiting = new ArrayList<>();
+        synchronized (queue) {
+            NavigableSet<Long> ids = new TreeSet<>();
+            for (long day = first; day < end; day++) {
+                NavigableSet<Long> onNight = queue.byNight.get(day);
+                if (remaining[(int) (day - first)] > 0 && onNight != null) {
+                    ids.addAll(onNight);
+                }
+            }
+            for (Long id : ids) {
+                waiting.add(queue.entries.get(id));
+            }
+        }
+        if (waiting.isEmpty()) {
+            return;
+        }
+        List<WaitlistEntry> candidates = new ArrayList<>();
+        boolean more = pickFitting(site, waiting, candidates);
+        if (candidates.isEmpty()) {
+            return;
+        }
+        List<Reservation> reservations = new ArrayList<>();
+        for (WaitlistEntry entry : candidates) {
+            reservations.add(new Reservation(site, entry.getName(), entry.getEmail(), entry.getStartDate(), entry.getEndDate()));
+        }
+        Supplier<List<BookingResult>> book = () -> transactionTemplate.execute(status -> {
+            List<BookingResult> booked = bookingService.reserveAll(reservations);
+            for (int i = 0; i < booked.size(); i++) {
+                BookingResult result = booked.get(i);
+                if (result.getOutcome() == BookingOutcome.CREATED && waitlistRepository.allocate(candidates.get(i).getId(), result.getId()) == 0) {
+                    // the entry left the waitlist while it was being booked
+                    bookingService.cancel(site, result.getId());
+                }
+            }
+            return booked;
+        });
+        List<BookingResult> results;
+        try {
+            if (journal != null) {
+                results = journal.locked(site, book);
+            } else if (sequencer != null) {
+                results = sequencer.run(site, book).join();
+            } else {
+                results = book.get();
+            }
+        } catch (CompletionException | RejectedExecutionException e) {
+            logger.warn("Could not book " + candidates.size() + " waitlist entries of site " + site + ", will retry: " + e.getMessage());
+            synchronized (queue) {
+                queue.markDirty(first, end);
+            }
+            return;
+        }
+        synchronized (queue) {
+            for (int i = 0; i < results.size(); i++) {
+                BookingOutcome outcome = results.get(i).getOutcome();
+                if (outcome == BookingOutcome.CREATED) {
+                    allocated.incrementAndGet();
+                }
+                if (outcome != BookingOutcome.UNAVAILABLE) {
+                    queue.remove(candidates.get(i).getId());
+                }
+            }
+            if (more) {
+                queue.markDirty(first, end);
+            }
+        }
+    }
+
+    /**
+     * Adds the oldest entries whose every night still has room, counting the ones already picked,
+     * to candidates until batch-size is reached. Entries that do not fit are passed over, so they
+     * cannot hold up later ones. Returns true when it stopped at batch-size with entries left.
+     */
+    private boolean pickFitting(String site, List<WaitlistEntry> waiting, List<WaitlistEntry> candidates) {
+        long first = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (WaitlistEntry entry : waiting) {
+            first = Math.min(first, entry.getStartDate().toEpochDay());
+            end = Math.max(end, entry.getEndDate().toEpochDay());
+        }
+        int[] remaining = bookingService.getRemainingCapacity(site, LocalDate.ofEpochDay(first), LocalDate.ofEpochDay(end));
+        for (int i = 0; i < waiting.size(); i++) {
+            if (candidates.size() == batchSize) {
+                return true;
+            }
+            WaitlistEntry entry = waiting.get(i);
+            int from = (int) (entry.getStartDate().toEpochDay() - first);
+            int to = (int) (entry.getEndDate().toEpochDay() - first);
+            boolean fits = true;
+            for (int night = from; night < to && fits; night++) {
+                fits = remaining[night] > 0;
+            }
+            if (fits) {
+                for (int night = from; night < to; night++) {
+                    remaining[night]--;
+                }
+                candidates.add(entry);
+            }
+        }
+        return false;
+    }
+
+    private Queue queue(String site) {
+        Queue queue = queues.get(site);
+        if (queue == null) {
+            throw new IllegalArgumentException("Unknown site " + site);
+        }
+        return queue;
+    }
+
+    private static class Queue {
+        private final Map<Long, WaitlistEntry> entries = new HashMap<>();
+        // entry ids waiting on each epoch day, in order of arrival
+        private final Map<Long, NavigableSet<Long>> byNight = new HashMap<>();
+        private long dirtyFirst = Long.MAX_VALUE;
+        private long dirtyEnd = Long.MIN_VALUE;
+        private long prunedDay;
+
+        private void add(WaitlistEntry entry) {
+            entries.put(entry.getId(), entry);
+            for (long day = entry.getStartDate().toEpochDay(); day < entry.getEndDate().toEpochDay(); day++) {
+                byNight.computeIfAbsent(day, d -> new TreeSet<>()).add(entry.getId());
+            }
+        }
+
+        private WaitlistEntry remove(long id) {
+            WaitlistEntry entry = entries.remove(id);
+            if (entry == null) {
+                return null;
+            }
+            for (long day = entry.getStartDate().toEpochDay(); day < entry.getEndDate().toEpochDay(); day++) {
+                NavigableSet<Long> waiting = byNight.get(day);
+                if (waiting != null && waiting.remove(id) && waiting.isEmpty()) {
+                    byNight.remove(day);
+                }
+            }
+            return entry;
+        }
+
+        private void markDirty(long firstDay, long endDay) {
+            dirtyFirst = Math.min(dirtyFirst, firstDay);
+            dirtyEnd = Math.max(dirtyEnd, endDay);
+        }
+
+        /**
+         * Drops the entries that start before the first bookable day, once a day.
+         */
+        private void prune(long firstBookableDay) {
+            if (prunedDay == firstBookableDay) {
+                return;
+            }
+            prunedDay = firstBookableDay;
+            for (WaitlistEntry entry : new ArrayList<>(entries.values())) {
+                if (entry.getStartDate().toEpochDay() < firstBookableDay) {
+                    remove(entry.getId());
+                }
+            }
+        }
+    }
+}
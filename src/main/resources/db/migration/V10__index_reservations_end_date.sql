@@ -0,0 +1 @@
+CREATE INDEX ix_reservations_end_date ON reservations (end_date, id);
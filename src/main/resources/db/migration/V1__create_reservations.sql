@@ -0,0 +1,13 @@
+CREATE SEQUENCE reservations_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE reservations (
+    id BIGINT NOT NULL,
+    fullname VARCHAR(255),
+    email VARCHAR(255),
+    start_date DATE,
+    end_date DATE,
+    cancelled BIT NOT NULL,
+    CONSTRAINT pk_reservations PRIMARY KEY (id)
+);
+
+CREATE INDEX ix_reservations_occupancy ON reservations (cancelled, end_date, start_date);
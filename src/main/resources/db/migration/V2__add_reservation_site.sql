@@ -0,0 +1 @@
+ALTER TABLE reservations ADD site VARCHAR(32) DEFAULT 'main' NOT NULL;
@@ -0,0 +1,10 @@
+CREATE TABLE idempotency_keys (
+    idempotency_key VARCHAR(255) NOT NULL,
+    fingerprint VARCHAR(1024),
+    status INT NOT NULL,
+    body VARCHAR(255),
+    created_at DATETIME2,
+    CONSTRAINT pk_idempotency_keys PRIMARY KEY (idempotency_key)
+);
+
+CREATE INDEX ix_idempotency_keys_created ON idempotency_keys (created_at);
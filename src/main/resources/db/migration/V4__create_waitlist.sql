@@ -0,0 +1,15 @@
+CREATE SEQUENCE waitlist_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE waitlist (
+    id BIGINT NOT NULL,
+    site VARCHAR(32) NOT NULL,
+    fullname VARCHAR(255),
+    email VARCHAR(255),
+    start_date DATE,
+    end_date DATE,
+    created_at DATETIME2,
+    reservation_id BIGINT,
+    CONSTRAINT pk_waitlist PRIMARY KEY (id)
+);
+
+CREATE INDEX ix_waitlist_pending ON waitlist (reservation_id, start_date);
@@ -0,0 +1,5 @@
+CREATE TABLE replica_heartbeat (
+    id INT NOT NULL,
+    beat_at DATETIME2,
+    CONSTRAINT pk_replica_heartbeat PRIMARY KEY (id)
+);
@@ -0,0 +1,11 @@
+CREATE TABLE reservations_history (
+    id BIGINT NOT NULL,
+    site VARCHAR(32) NOT NULL,
+    fullname VARCHAR(255),
+    email VARCHAR(255),
+    start_date DATE,
+    end_date DATE,
+    cancelled BIT NOT NULL,
+    archived_at DATETIME2,
+    CONSTRAINT pk_reservations_history PRIMARY KEY (id)
+);
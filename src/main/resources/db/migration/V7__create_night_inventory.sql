@@ -0,0 +1,7 @@
+CREATE TABLE night_inventory (
+    site VARCHAR(32) NOT NULL,
+    night DATE NOT NULL,
+    capacity INT NOT NULL,
+    remaining INT NOT NULL,
+    CONSTRAINT pk_night_inventory PRIMARY KEY (site, night)
+);
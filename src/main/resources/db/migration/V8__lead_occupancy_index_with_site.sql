@@ -0,0 +1,3 @@
+DROP INDEX ix_reservations_occupancy ON reservations;
+
+CREATE INDEX ix_reservations_occupancy ON reservations (site, cancelled, end_date, start_date);
@@ -0,0 +1,10 @@
+CREATE TABLE inventory_holds (
+    token VARCHAR(36) NOT NULL,
+    site VARCHAR(32) NOT NULL,
+    start_date DATE NOT NULL,
+    end_date DATE NOT NULL,
+    expires_at DATETIME2 NOT NULL,
+    CONSTRAINT pk_inventory_holds PRIMARY KEY (token)
+);
+
+CREATE INDEX ix_inventory_holds_expires ON inventory_holds (expires_at);
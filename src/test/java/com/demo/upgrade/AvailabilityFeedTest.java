@@ -0,0 +1,157 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.CompactAvailability;
+import com.demo.upgrade.model.NightCapacity;
+import com.demo.upgrade.repository.ArchivedReservationRepository;
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.AvailabilityFeed;
+import com.demo.upgrade.service.BookingServiceImpl;
+import com.demo.upgrade.service.NightInventory;
+import com.demo.upgrade.service.OccupancyIndex;
+import com.demo.upgrade.service.Sites;
+import com.demo.upgrade.service.StatusCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AvailabilityFeedTest {
+
+    private OccupancyIndex occupancyIndex;
+
+    private AvailabilityFeed feed;
+
+    private LocalDate tomorrow = LocalDate.now().plusDays(1);
+
+    private List<String> events = new ArrayList<>();
+
+    private List<Object> data = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        Sites sites = new Sites(new MockEnvironment().withProperty("upgrade.reservation.size", "3").withProperty("upgrade.sites", "main,lake"));
+        ReservationRepository repository = Mockito.mock(ReservationRepository.class);
+        occupancyIndex = new OccupancyIndex(repository, sites);
+        ReflectionTestUtils.setField(occupancyIndex, "days", 64);
+        occupancyIndex.rebuild();
+        StatusCache statusCache = new StatusCache(occupancyIndex, sites, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(statusCache, "maxSize", 16);
+        statusCache.init();
+        feed = new AvailabilityFeed(new BookingServiceImpl(repository, Mockito.mock(ArchivedReservationRepository.class), occupancyIndex, statusCache, sites, Mockito.mock(NightInventory.class)), occupancyIndex, sites, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(feed, "sendThreads", 1);
+        ReflectionTestUtils.setField(feed, "sendTimeout", 5000L);
+        feed.init();
+        feed.stop();
+        ReflectionTestUtils.setField(feed, "sender", (Executor) Runnable::run);
+    }
+
+    @Test
+    public void whenSubscribed_thenSnapshotThenCoalescedDeltas() throws IOException {
+        Runnable unsubscribe = feed.subscribe("main", tomorrow, tomorrow.plusDays(5), this::record);
+        Assertions.assertEquals("snapshot", events.get(0));
+        Assertions.assertArrayEquals(new int[]{3, 3, 3, 3, 3}, ((CompactAvailability) data.get(0)).decode());
+
+        occupancyIndex.add("main", 1, tomorrow, tomorrow.plusDays(2));
+        occupancyIndex.add("main", 2, tomorrow.plusDays(1), tomorrow.plusDays(2));
+        occupancyIndex.add("main", 3, tomorrow.plusDays(3), tomorrow.plusDays(4));
+        occupancyIndex.remove("main", 3);
+        feed.flush();
+
+        Assertions.assertEquals(2, events.size());
+        Assertions.assertEquals("delta", events.get(1));
+        @SuppressWarnings("unchecked")
+        List<NightCapacity> changed = (List<NightCapacity>) data.get(1);
+        Assertions.assertEquals(2, changed.size());
+        Assertions.assertEquals(tomorrow, changed.get(0).getNight());
+        Assertions.assertEquals(2, changed.get(0).getRemaining());
+        Assertions.assertEquals(1, changed.get(1).getRemaining());
+
+        feed.flush();
+        unsubscribe.run();
+        occupancyIndex.add("main", 4, tomorrow, tomorrow.plusDays(1));
+        feed.flush();
+        Assertions.assertEquals(2, events.size());
+        Assertions.assertEquals(0, feed.getSubscribers("main"));
+    }
+
+    @Test
+    public void whenOtherSiteOrOtherNightsChange_thenNothingSent() throws IOException {
+        feed.subscribe("main", tomorrow, tomorrow.plusDays(3), this::record);
+        occupancyIndex.add("lake", 1, tomorrow, tomorrow.plusDays(2));
+        occupancyIndex.add("main", 2, tomorrow.plusDays(10), tomorrow.plusDays(12));
+        feed.flush();
+        Assertions.assertEquals(1, events.size());
+    }
+
+    @Test
+    public void whenSendFails_thenSubscriberDropped() throws IOException {
+        feed.subscribe("main", tomorrow, tomorrow.plusDays(3), (event, payload) -> {
+            if (event.equals("delta")) {
+                throw new IOException("Broken pipe");
+            }
+        });
+        occupancyIndex.add("main", 1, tomorrow, tomorrow.plusDays(1));
+        feed.flush();
+        Assertions.assertEquals(0, feed.getSubscribers("main"));
+    }
+
+    @Test
+    public void whenSubscriberStillSending_thenSkippedAndLaterSentEverything() throws IOException {
+        List<Runnable> inFlight = new ArrayList<>();
+        ReflectionTestUtils.setField(feed, "sender", (Executor) inFlight::add);
+        feed.subscribe("main", tomorrow, tomorrow.plusDays(3), this::record);
+        occupancyIndex.add("main", 1, tomorrow, tomorrow.plusDays(1));
+        feed.flush();
+        Assertions.assertEquals(1, inFlight.size());
+
+        occupancyIndex.add("main", 2, tomorrow.plusDays(1), tomorrow.plusDays(2));
+        feed.flush();
+        Assertions.assertEquals(1, inFlight.size());
+
+        inFlight.remove(0).run();
+        feed.flush();
+        inFlight.remove(0).run();
+        Assertions.assertEquals(3, events.size());
+        @SuppressWarnings("unchecked")
+        List<NightCapacity> changed = (List<NightCapacity>) data.get(2);
+        Assertions.assertEquals(tomorrow.plusDays(1), changed.get(0).getNight());
+    }
+
+    @Test
+    public void whenSendTakesTooLong_thenSubscriberClosed() throws IOException {
+        ReflectionTestUtils.setField(feed, "sender", (Executor) task -> { });
+        ReflectionTestUtils.setField(feed, "sendTimeout", -1L);
+        AtomicBoolean closed = new AtomicBoolean();
+        feed.subscribe("main", tomorrow, tomorrow.plusDays(3), new AvailabilityFeed.Subscriber() {
+            @Override
+            public void send(String event, Object data) {
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        occupancyIndex.add("main", 1, tomorrow, tomorrow.plusDays(1));
+        feed.flush();
+        occupancyIndex.add("main", 2, tomorrow, tomorrow.plusDays(1));
+        feed.flush();
+        Assertions.assertTrue(closed.get());
+        Assertions.assertEquals(0, feed.getSubscribers("main"));
+    }
+
+    private void record(String event, Object payload) {
+        events.add(event);
+        data.add(payload);
+    }
+}
@@ -1,27 +1,56 @@
 package com.demo.upgrade;
 
+import com.demo.upgrade.config.BookingExecutors;
 import com.demo.upgrade.controller.BookingController;
+import com.demo.upgrade.model.CompactAvailability;
 import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationHold;
+import com.demo.upgrade.repository.IdempotentResponseRepository;
+import com.demo.upgrade.service.AvailabilityFeed;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingResult;
 import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.HoldManager;
+import com.demo.upgrade.service.IdempotencyStore;
+import com.demo.upgrade.service.RateLimiter;
+import com.demo.upgrade.service.ReservationExporter;
+import com.demo.upgrade.service.Sites;
+import com.demo.upgrade.service.Waitlist;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @ExtendWith(SpringExtension.class)
-@WebMvcTest(controllers = BookingController.class)
+@WebMvcTest(controllers = BookingController.class, properties = {"upgrade.bulkhead.read.threads=2", "upgrade.bulkhead.read.queue-size=2"})
+@Import({SimpleMeterRegistry.class, BookingExecutors.class, Sites.class, IdempotencyStore.class})
 public class ControllerUnitTest {
     @Autowired
     private MockMvc mockMvc;
@@ -29,9 +58,33 @@ public class ControllerUnitTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private BookingExecutors executors;
+
     @MockBean
     private BookingService bookingService;
 
+    @MockBean
+    private AvailabilityFeed availabilityFeed;
+
+    @MockBean
+    private IdempotentResponseRepository idempotentResponseRepository;
+
+    @MockBean
+    private RateLimiter rateLimiter;
+
+    @MockBean
+    private HoldManager holdManager;
+
+    @MockBean
+    private Waitlist waitlist;
+
+    @MockBean
+    private ReservationExporter exporter;
+
     private Reservation reservation1 = new Reservation("A", "A@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
     private Reservation reservation2 = new Reservation("B", "B@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
     //private Reservation reservation3 = new Reservation("C", "C@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
@@ -40,21 +93,123 @@ public class ControllerUnitTest {
     @Test
     void whenGetStatus_thenReturnsOK() throws Exception {
         when(bookingService.verifyDates(any(), any(), eq(false))).thenReturn(true);
-        when(bookingService.getAvaliableDays(any(), any())).thenReturn(Arrays.asList(""));
+        when(bookingService.getAvaliableDays(any(), any(), any())).thenReturn(Arrays.asList(""));
+
+        perform(get("/api/booking/status")
+                .contentType("application/json"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    void whenGetStatusUnchanged_thenReturnsNotModified() throws Exception {
+        when(bookingService.verifyDates(any(), any(), eq(false))).thenReturn(true);
+        when(bookingService.getAvaliableDays(any(), any(), any())).thenReturn(Arrays.asList(""));
+        when(bookingService.getOccupancyVersion(any(), any(), any())).thenReturn(7L);
+
+        String eTag = perform(get("/api/booking/status")
+                .contentType("application/json"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
 
-        mockMvc.perform(get("/api/booking/status")
+        perform(get("/api/booking/status")
+                .header("If-None-Match", eTag)
+                .contentType("application/json"))
+                .andExpect(status().isNotModified());
+
+        when(bookingService.getOccupancyVersion(any(), any(), any())).thenReturn(8L);
+        perform(get("/api/booking/status")
+                .header("If-None-Match", eTag)
                 .contentType("application/json"))
                 .andExpect(status().isOk());
     }
 
+    @Test
+    void whenCompactStatus_thenReturnsRunLengthEncodedCapacity() throws Exception {
+        int[] remaining = new int[200];
+        Arrays.fill(remaining, 3);
+        remaining[10] = 0;
+        when(bookingService.verifyRange(any(), any())).thenReturn(true);
+        when(bookingService.getRemainingCapacity(any(), any(), any())).thenReturn(remaining.clone());
+
+        String body = perform(get("/api/booking/status?endDate=" + LocalDate.now().plusDays(201))
+                .accept(CompactAvailability.MEDIA_TYPE))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.encoding").value(CompactAvailability.RLE))
+                .andExpect(jsonPath("$.nights").value(200))
+                .andReturn().getResponse().getContentAsString();
+        Assertions.assertArrayEquals(remaining, objectMapper.readValue(body, CompactAvailability.class).decode());
+
+        perform(get("/api/booking/status?format=compact"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.capacity").value(3));
+
+        when(bookingService.verifyRange(any(), any())).thenReturn(false);
+        perform(get("/api/booking/status?format=compact"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void whenStreamStatus_thenSendsSnapshotEvent() throws Exception {
+        when(bookingService.verifyDates(any(), any(), eq(false))).thenReturn(true);
+        when(availabilityFeed.subscribe(any(), any(), any(), any())).thenAnswer(invocation -> {
+            AvailabilityFeed.Subscriber subscriber = invocation.getArgument(3);
+            subscriber.send("snapshot", CompactAvailability.of("main", LocalDate.now().plusDays(1), 3, new int[]{3, 2}));
+            return (Runnable) () -> { };
+        });
+
+        MvcResult result = mockMvc.perform(get("/api/booking/status/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        Assertions.assertTrue(result.getResponse().getContentAsString().startsWith("event:snapshot\ndata:{"));
+    }
+
+    @Test
+    void whenReadsSaturated_thenReturnsServiceUnavailable() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        try {
+            // fill the queue with blockers until every worker is running one of them and the queue is full
+            while (true) {
+                try {
+                    executors.getReads().execute(() -> {
+                        running.incrementAndGet();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    if (running.get() == executors.getReads().getMaxPoolSize()
+                            && executors.getReads().getThreadPoolExecutor().getQueue().remainingCapacity() == 0) {
+                        break;
+                    }
+                    Thread.sleep(10);
+                }
+            }
+            perform(get("/api/booking/status")
+                    .contentType("application/json"))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string("Retry-After", "1"));
+
+            when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(false);
+            perform(post("/api/booking/reserve")
+                    .contentType("application/json")
+                    .content(objectMapper.writeValueAsString(reservation4)))
+                    .andExpect(status().isBadRequest());
+        } finally {
+            release.countDown();
+        }
+    }
+
     @Test
     void whenGetStatusWithWrongDates_thenReturnsBadRequest() throws Exception {
 
-        mockMvc.perform(get("/api/booking/status?startDate=2021-01-01&endDate=2021-01-10")
+        perform(get("/api/booking/status?startDate=2021-01-01&endDate=2021-01-10")
                 .contentType("application/json"))
                 .andExpect(status().isBadRequest());
 
-        mockMvc.perform(get("/api/booking/status?startDate=2021-02-01&endDate=2021-03-10")
+        perform(get("/api/booking/status?startDate=2021-02-01&endDate=2021-03-10")
                 .contentType("application/json"))
                 .andExpect(status().isBadRequest());
     }
@@ -63,38 +218,145 @@ public class ControllerUnitTest {
     void whenReserve_thenReturnsOK() throws Exception {
         when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(true);
         when(bookingService.reserve(any())).thenReturn(Long.valueOf(11));
-        when(bookingService.isAvaliable(any(), any(), eq(null))).thenReturn(true);
-        mockMvc.perform(post("/api/booking/reserve")
+        when(bookingService.isAvaliable(any(), any(), any(), eq(null))).thenReturn(true);
+        perform(post("/api/booking/reserve")
                 .contentType("application/json")
                 .content(objectMapper.writeValueAsString(reservation2)))
                 .andExpect(status().isCreated());
     }
 
+    @Test
+    void whenReserveRepeatedWithIdempotencyKey_thenReplaysFirstResponse() throws Exception {
+        when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(true);
+        when(bookingService.reserve(any())).thenReturn(Long.valueOf(12), Long.valueOf(13));
+        when(bookingService.isAvaliable(any(), any(), any(), eq(null))).thenReturn(true);
+        for (int i = 0; i < 2; i++) {
+            perform(post("/api/booking/reserve")
+                    .header(BookingController.IDEMPOTENCY_KEY, "retry-1")
+                    .contentType("application/json")
+                    .content(objectMapper.writeValueAsString(reservation2)))
+                    .andExpect(status().isCreated())
+                    .andExpect(content().string("12"));
+        }
+        verify(bookingService, times(1)).reserve(any());
+
+        perform(post("/api/booking/reserve")
+                .header(BookingController.IDEMPOTENCY_KEY, "retry-1")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(header().string(BookingController.IDEMPOTENT_REPLAYED, "true"));
+        perform(post("/api/booking/reserve")
+                .header(BookingController.IDEMPOTENCY_KEY, "retry-1")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation1)))
+                .andExpect(status().isUnprocessableEntity());
+    }
+
+    @Test
+    void whenEmailOverLimit_thenRepeatWithIdempotencyKeyStillReplayed() throws Exception {
+        when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(true);
+        when(bookingService.reserve(any())).thenReturn(Long.valueOf(12));
+        when(bookingService.isAvaliable(any(), any(), any(), eq(null))).thenReturn(true);
+        when(rateLimiter.acquire(eq(true), eq(RateLimiter.EMAIL), eq("b@email.com"))).thenReturn(1500L);
+        perform(post("/api/booking/reserve")
+                .header(BookingController.IDEMPOTENCY_KEY, "limited-1")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(status().isTooManyRequests());
+
+        // the 429 is not kept, so the retry runs once the bucket has a token
+        when(rateLimiter.acquire(eq(true), eq(RateLimiter.EMAIL), eq("b@email.com"))).thenReturn(0L);
+        perform(post("/api/booking/reserve")
+                .header(BookingController.IDEMPOTENCY_KEY, "limited-1")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(status().isCreated());
+
+        when(rateLimiter.acquire(eq(true), eq(RateLimiter.EMAIL), eq("b@email.com"))).thenReturn(1500L);
+        perform(post("/api/booking/reserve")
+                .header(BookingController.IDEMPOTENCY_KEY, "limited-1")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(status().isCreated())
+                .andExpect(header().string(BookingController.IDEMPOTENT_REPLAYED, "true"));
+        verify(bookingService, times(1)).reserve(any());
+        verify(rateLimiter, times(2)).acquire(eq(true), eq(RateLimiter.EMAIL), eq("b@email.com"));
+    }
+
+    @Test
+    void whenEmailOverLimit_thenReturnsTooManyRequests() throws Exception {
+        when(rateLimiter.acquire(eq(true), eq(RateLimiter.EMAIL), eq("b@email.com"))).thenReturn(1500L);
+        MvcResult result = mockMvc.perform(post("/api/booking/reserve")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "2"));
+        verify(bookingService, never()).isAvaliable(any(), any(), any(), any());
+    }
+
+    @Test
+    void whenHoldConfirmed_thenReturnsCreated() throws Exception {
+        when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(true);
+        when(holdManager.hold(eq("main"), any(), any())).thenReturn(new ReservationHold("h-1", "main",
+                reservation2.getStartDate(), reservation2.getEndDate(), Instant.now().plusSeconds(600)));
+        mockMvc.perform(post("/api/booking/hold")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.holdId").value("h-1"));
+
+        when(holdManager.confirm("h-1", "B", "B@email.com")).thenReturn(new BookingResult(BookingOutcome.CREATED, 21L));
+        perform(post("/api/booking/hold/confirm?holdId=h-1")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(status().isCreated())
+                .andExpect(content().string("21"));
+        when(holdManager.confirm("h-2", "B", "B@email.com")).thenReturn(BookingResult.of(BookingOutcome.NOT_FOUND));
+        perform(post("/api/booking/hold/confirm?holdId=h-2")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(reservation2)))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     void whenReserveWithWrongDates_thenReturnsBR() throws Exception {
         when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(false);
-        mockMvc.perform(post("/api/booking/reserve")
+        double before = meterRegistry.counter("booking.outcome", "endpoint", "reserve", "outcome", "bad_dates").count();
+        perform(post("/api/booking/reserve")
                 .contentType("application/json")
                 .content(objectMapper.writeValueAsString(reservation4)))
                 .andExpect(status().isBadRequest());
+        Assertions.assertEquals(before + 1, meterRegistry.counter("booking.outcome", "endpoint", "reserve", "outcome", "bad_dates").count());
     }
 
     @Test
     void whenReserveWithoutAvaliablity_thenReturnsBR() throws Exception {
-        when(bookingService.isAvaliable(any(), any(), anyLong())).thenReturn(false);
-        mockMvc.perform(post("/api/booking/reserve")
+        when(bookingService.isAvaliable(any(), any(), any(), anyLong())).thenReturn(false);
+        perform(post("/api/booking/reserve")
                 .contentType("application/json")
                 .content(objectMapper.writeValueAsString(reservation2)))
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    void whenReserveBatch_thenReturnsResultPerItem() throws Exception {
+        when(bookingService.reserveAll(anyList())).thenReturn(Arrays.asList(
+                new BookingResult(BookingOutcome.CREATED, 11L), BookingResult.of(BookingOutcome.UNAVAILABLE)));
+        perform(post("/api/booking/reserve/batch")
+                .contentType("application/json")
+                .content(objectMapper.writeValueAsString(Arrays.asList(reservation1, reservation2))))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id").value(11))
+                .andExpect(jsonPath("$[1].outcome").value("UNAVAILABLE"));
+    }
+
     @Test
     void whenChange_thenReturnsOK() throws Exception {
-        when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(true);
-        when(bookingService.getReservation(anyLong())).thenReturn(reservation1);
-        when(bookingService.isAvaliable(any(), any(), anyLong())).thenReturn(true);
-        when(bookingService.update(anyLong(), any())).thenReturn(reservation2);
-        mockMvc.perform(put("/api/booking/change?id=1")
+        when(bookingService.change(any(), anyLong(), any())).thenReturn(new BookingResult(BookingOutcome.UPDATED, 1L));
+        perform(put("/api/booking/change?id=1")
                 .contentType("application/json")
                 .content(objectMapper.writeValueAsString(reservation2)))
                 .andExpect(status().isOk());
@@ -102,8 +364,8 @@ public class ControllerUnitTest {
 
     @Test
     void whenChangeNotFOUND_thenReturnsNotFound() throws Exception {
-        when(bookingService.getReservation(anyLong())).thenReturn(null);
-        mockMvc.perform(put("/api/booking/change?id=1")
+        when(bookingService.change(any(), anyLong(), any())).thenReturn(BookingResult.of(BookingOutcome.NOT_FOUND));
+        perform(put("/api/booking/change?id=1")
                 .contentType("application/json")
                 .content(objectMapper.writeValueAsString(reservation2)))
                 .andExpect(status().isNotFound());
@@ -111,28 +373,64 @@ public class ControllerUnitTest {
 
     @Test
     void whenChangeWithWrongDates_thenReturnsBR() throws Exception {
-        when(bookingService.getReservation(anyLong())).thenReturn(reservation1);
-        when(bookingService.verifyDates(any(), any(), eq(true))).thenReturn(false);
-        mockMvc.perform(put("/api/booking/change?id=1")
+        when(bookingService.change(any(), anyLong(), any())).thenReturn(BookingResult.of(BookingOutcome.BAD_DATES));
+        perform(put("/api/booking/change?id=1")
                 .contentType("application/json")
                 .content(objectMapper.writeValueAsString(reservation4)))
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    void whenUnknownSite_thenReturnsNotFound() throws Exception {
+        perform(get("/api/booking/status?site=hill")
+                .contentType("application/json"))
+                .andExpect(status().isNotFound());
+        perform(put("/api/booking/cancel?site=hill&id=1")
+                .contentType("application/json"))
+                .andExpect(status().isNotFound());
+        Assertions.assertEquals(1, meterRegistry.counter("booking.outcome", "endpoint", "cancel", "outcome", "unknown_site").count());
+    }
+
+    @Test
+    void whenExport_thenStreamsWithFormatAndFilters() throws Exception {
+        when(exporter.export(any(), any(), any(), any(), anyBoolean(), any(), any())).thenAnswer(invocation -> {
+            invocation.getArgument(6, java.io.OutputStream.class).write("id,site\r\n".getBytes());
+            return 0L;
+        });
+        mockMvc.perform(get("/api/booking/export?format=csv&startDate=2030-01-01&cancelled=false"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith("text/csv"))
+                .andExpect(header().string("Content-Disposition", "attachment; filename=reservations.csv"))
+                .andExpect(content().string("id,site\r\n"));
+        verify(exporter).export(isNull(), eq(LocalDate.parse("2030-01-01")), isNull(), eq(false), eq(false), eq(ReservationExporter.Format.CSV), any());
+
+        mockMvc.perform(get("/api/booking/export?format=xml")).andExpect(status().isBadRequest());
+        doThrow(new RejectedExecutionException()).when(exporter).export(any(), any(), any(), any(), anyBoolean(), any(), any());
+        mockMvc.perform(get("/api/booking/export"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().exists("Retry-After"));
+    }
+
     @Test
     void whenClear_thenReturnsOK() throws Exception {
-        when(bookingService.getReservation(anyLong())).thenReturn(reservation1);
-        mockMvc.perform(put("/api/booking/cancel?id=1")
+        when(bookingService.cancel(any(), anyLong())).thenReturn(new BookingResult(BookingOutcome.CANCELLED, 1L));
+        perform(put("/api/booking/cancel?id=1")
                 .contentType("application/json"))
                 .andExpect(status().isOk());
     }
 
     @Test
     void whenClearNotFound_thenReturnsNotFound() throws Exception {
-        when(bookingService.getReservation(anyLong())).thenReturn(null);
-        mockMvc.perform(put("/api/booking/cancel?id=1")
+        when(bookingService.cancel(any(), anyLong())).thenReturn(BookingResult.of(BookingOutcome.NOT_FOUND));
+        perform(put("/api/booking/cancel?id=1")
                 .contentType("application/json"))
                 .andExpect(status().isNotFound());
     }
 
+    private ResultActions perform(RequestBuilder builder) throws Exception {
+        MvcResult result = mockMvc.perform(builder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(result));
+    }
 }
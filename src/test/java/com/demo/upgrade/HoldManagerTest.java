@@ -0,0 +1,129 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationHold;
+import com.demo.upgrade.repository.ArchivedReservationRepository;
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingResult;
+import com.demo.upgrade.service.BookingServiceImpl;
+import com.demo.upgrade.service.HoldManager;
+import com.demo.upgrade.service.NightInventory;
+import com.demo.upgrade.service.OccupancyIndex;
+import com.demo.upgrade.service.Sites;
+import com.demo.upgrade.service.StatusCache;
+import com.demo.upgrade.service.TimingWheel;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+public class HoldManagerTest {
+
+    private AtomicLong now = new AtomicLong(1_000_000);
+
+    private BookingServiceImpl bookingService;
+
+    private HoldManager holdManager;
+
+    private LocalDate tomorrow = LocalDate.now().plusDays(1);
+
+    @BeforeEach
+    public void setUp() {
+        Sites sites = new Sites(new MockEnvironment().withProperty("upgrade.reservation.size", "1"));
+        ReservationRepository repository = Mockito.mock(ReservationRepository.class);
+        when(repository.save(any())).thenAnswer(invocation -> {
+            Reservation reservation = invocation.getArgument(0);
+            ReflectionTestUtils.setField(reservation, "id", 42L);
+            return reservation;
+        });
+        OccupancyIndex occupancyIndex = new OccupancyIndex(repository, sites);
+        ReflectionTestUtils.setField(occupancyIndex, "days", 64);
+        occupancyIndex.rebuild();
+        StatusCache statusCache = new StatusCache(occupancyIndex, sites, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(statusCache, "maxSize", 16);
+        statusCache.init();
+        NightInventory nightInventory = Mockito.mock(NightInventory.class);
+        bookingService = new BookingServiceImpl(repository, Mockito.mock(ArchivedReservationRepository.class), occupancyIndex, statusCache, sites, nightInventory);
+        holdManager = new HoldManager(bookingService, occupancyIndex, sites, nightInventory, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(holdManager, "ttl", 60_000L);
+        ReflectionTestUtils.setField(holdManager, "tick", 1000L);
+        ReflectionTestUtils.setField(holdManager, "clock", (LongSupplier) now::get);
+        holdManager.init();
+    }
+
+    @Test
+    public void whenHeld_thenNightsUnavailableUntilExpired() {
+        ReservationHold hold = holdManager.hold("main", tomorrow, tomorrow.plusDays(2));
+        Assertions.assertNotNull(hold);
+        Assertions.assertFalse(bookingService.isAvaliable("main", tomorrow.plusDays(1), tomorrow.plusDays(2), null));
+        Assertions.assertNull(holdManager.hold("main", tomorrow, tomorrow.plusDays(1)));
+        Assertions.assertEquals(0, bookingService.getAvaliableDays("main", tomorrow, tomorrow.plusDays(2)).size());
+
+        now.addAndGet(59_000);
+        holdManager.expire();
+        Assertions.assertEquals(1, holdManager.getActive());
+        now.addAndGet(1_000);
+        holdManager.expire();
+        Assertions.assertEquals(0, holdManager.getActive());
+        Assertions.assertTrue(bookingService.isAvaliable("main", tomorrow, tomorrow.plusDays(2), null));
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, holdManager.confirm(hold.getHoldId(), "A", "a@email.com").getOutcome());
+    }
+
+    @Test
+    public void whenConfirmed_thenReservationKeepsTheNights() {
+        ReservationHold hold = holdManager.hold("main", tomorrow, tomorrow.plusDays(2));
+        BookingResult result = holdManager.confirm(hold.getHoldId(), "A", "a@email.com");
+        Assertions.assertEquals(new BookingResult(BookingOutcome.CREATED, 42L).toString(), result.toString());
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, holdManager.confirm(hold.getHoldId(), "A", "a@email.com").getOutcome());
+
+        now.addAndGet(120_000);
+        holdManager.expire();
+        Assertions.assertFalse(bookingService.isAvaliable("main", tomorrow, tomorrow.plusDays(1), null));
+        Assertions.assertTrue(bookingService.isAvaliable("main", tomorrow, tomorrow.plusDays(1), 42L));
+    }
+
+    @Test
+    public void whenReleased_thenNightsFreeAtOnce() {
+        ReservationHold hold = holdManager.hold("main", tomorrow, tomorrow.plusDays(1));
+        Assertions.assertTrue(holdManager.release(hold.getHoldId()));
+        Assertions.assertFalse(holdManager.release(hold.getHoldId()));
+        Assertions.assertNotNull(holdManager.hold("main", tomorrow, tomorrow.plusDays(1)));
+    }
+
+    @Test
+    public void whenWheelAdvanced_thenEachItemExpiresInItsTick() {
+        long start = 5_000_123;
+        TimingWheel<Long> wheel = new TimingWheel<>(1, start);
+        Random random = new Random(7);
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            long deadline = start + 1 + (i % 4 == 0 ? random.nextInt(64 * 64 * 64 * 64 * 2) : random.nextInt(300_000));
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        wheel.schedule(start - 10, start + 1);
+        deadlines.add(start + 1);
+        int fired = 0;
+        for (long time = start + 1; wheel.size() > 0; time += 1 + random.nextInt(3)) {
+            for (long deadline : wheel.advance(time)) {
+                Assertions.assertTrue(deadline <= time && deadline > time - 3, deadline + " fired at " + time);
+                fired++;
+            }
+        }
+        Assertions.assertEquals(deadlines.size(), fired);
+    }
+}
@@ -0,0 +1,112 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.IdempotentResponse;
+import com.demo.upgrade.repository.IdempotentResponseRepository;
+import com.demo.upgrade.service.IdempotencyStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IdempotencyStoreTest {
+
+    private IdempotentResponseRepository repository = Mockito.mock(IdempotentResponseRepository.class);
+
+    private IdempotencyStore store;
+
+    @BeforeEach
+    public void setUp() {
+        store = create(false);
+    }
+
+    @Test
+    public void whenDuplicateArrivesWhileRunning_thenItWaitsForTheFirst() {
+        IdempotencyStore.Claim first = store.begin("reserve:a", "x");
+        Assertions.assertTrue(first.isFirst());
+        IdempotencyStore.Claim duplicate = store.begin("reserve:a", "x");
+        Assertions.assertFalse(duplicate.isFirst());
+        Assertions.assertFalse(duplicate.getResponse().isDone());
+
+        store.complete(first, 201, "7", true);
+        Assertions.assertEquals("7", duplicate.getResponse().join().getBody());
+        Assertions.assertEquals(201, store.begin("reserve:a", "x").getResponse().join().getStatus());
+        Assertions.assertEquals(2, store.getReplays());
+    }
+
+    @Test
+    public void whenResponseNotStored_thenRetryRunsAgain() {
+        IdempotencyStore.Claim first = store.begin("reserve:a", "x");
+        CompletableFuture<IdempotentResponse> duplicate = store.begin("reserve:a", "x").getResponse();
+        store.complete(first, 503, null, false);
+        Assertions.assertEquals(503, duplicate.join().getStatus());
+        Assertions.assertTrue(store.begin("reserve:a", "x").isFirst());
+    }
+
+    @Test
+    public void whenKeyReusedForOtherRequest_thenRejected() {
+        store.begin("reserve:a", "x");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> store.begin("reserve:a", "y"));
+    }
+
+    @Test
+    public void whenBoundsExceeded_thenOldestKeysDropped() {
+        ReflectionTestUtils.setField(store, "maxSize", 2);
+        for (String key : new String[]{"a", "b", "c"}) {
+            store.complete(store.begin(key, "x"), 200, "ok", true);
+        }
+        Assertions.assertEquals(2, store.size());
+        IdempotencyStore.Claim again = store.begin("a", "x");
+        Assertions.assertTrue(again.isFirst());
+
+        ReflectionTestUtils.setField(store, "ttl", 0L);
+        store.complete(again, 200, "ok", true);
+        store.purge();
+        Assertions.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void whenBoundsExceededWhileRunning_thenRunningKeysKept() {
+        ReflectionTestUtils.setField(store, "maxSize", 1);
+        IdempotencyStore.Claim running = store.begin("a", "x");
+        store.complete(store.begin("b", "x"), 200, "ok", true);
+        IdempotencyStore.Claim duplicate = store.begin("a", "x");
+        Assertions.assertFalse(duplicate.isFirst());
+
+        store.begin("c", "x");
+        Assertions.assertFalse(store.begin("a", "x").isFirst());
+        store.complete(running, 201, "7", true);
+        Assertions.assertEquals("7", duplicate.getResponse().join().getBody());
+    }
+
+    @Test
+    public void whenPersisted_thenKeysSurviveRestart() {
+        store = create(true);
+        store.complete(store.begin("cancel:a", "main|5"), 200, "Reservation is cancelled", true);
+        ArgumentCaptor<IdempotentResponse> saved = ArgumentCaptor.forClass(IdempotentResponse.class);
+        verify(repository).save(saved.capture());
+
+        when(repository.findById(any())).thenReturn(Optional.of(saved.getValue()));
+        IdempotencyStore restarted = create(true);
+        Assertions.assertEquals("Reservation is cancelled", restarted.begin("cancel:a", "main|5").getResponse().join().getBody());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> create(true).begin("cancel:a", "main|6"));
+    }
+
+    private IdempotencyStore create(boolean persist) {
+        IdempotencyStore created = new IdempotencyStore(repository, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(created, "maxSize", 100);
+        ReflectionTestUtils.setField(created, "ttl", 60000L);
+        ReflectionTestUtils.setField(created, "persist", persist);
+        created.init();
+        return created;
+    }
+}
@@ -1,21 +1,33 @@
 package com.demo.upgrade;
 
+import com.demo.upgrade.config.SecondLevelCacheConfig;
 import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationNights;
 import com.demo.upgrade.repository.ReservationRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.persistence.EntityManagerFactory;
 import java.time.LocalDate;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 
 @ExtendWith(SpringExtension.class)
 @DataJpaTest
+@Import(SecondLevelCacheConfig.class)
 public class JPAUnitTest {
 
     @Autowired
@@ -24,6 +36,12 @@ public class JPAUnitTest {
     @Autowired
     ReservationRepository reservationRepository;
 
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
 
 
     @Test
@@ -57,9 +75,29 @@ public class JPAUnitTest {
         Reservation reservation3 = new Reservation("Reservation#3", "3@email.com", LocalDate.now().plusDays(5), LocalDate.now().plusDays(6));
         testEntityManager.persist(reservation3);
 
-        Iterable<Reservation> reservations = reservationRepository.findAvaliable(LocalDate.now().plusDays(1), LocalDate.now().plusDays(3));
+        List<ReservationNights> reservations = reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, LocalDate.now().plusDays(1), LocalDate.now().plusDays(3));
 
-        assertThat(reservations).hasSize(2).contains(reservation1, reservation2);
+        assertThat(reservations).extracting(ReservationNights::getId).containsExactlyInAnyOrder(reservation1.getId(), reservation2.getId());
+    }
+
+    @Test
+    public void should_find_occupied_nights() {
+        Reservation reservation1 = new Reservation("Reservation#1", "1@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
+        testEntityManager.persist(reservation1);
+
+        Reservation reservation2 = new Reservation("Reservation#2", "2@email.com", LocalDate.now().plusDays(2), LocalDate.now().plusDays(3));
+        reservation2.setCancelled(true);
+        testEntityManager.persist(reservation2);
+
+        Reservation reservation3 = new Reservation("Reservation#3", "3@email.com", LocalDate.now().plusDays(5), LocalDate.now().plusDays(6));
+        testEntityManager.persist(reservation3);
+
+        List<ReservationNights> nights = reservationRepository.findOccupancy(LocalDate.now().plusDays(1), LocalDate.now().plusDays(3));
+
+        assertThat(nights).hasSize(1);
+        assertThat(nights.get(0).getId()).isEqualTo(reservation1.getId());
+        assertThat(nights.get(0).getStartDate()).isEqualTo(reservation1.getStartDate());
+        assertThat(nights.get(0).getEndDate()).isEqualTo(reservation1.getEndDate());
     }
 
     @Test
@@ -120,5 +158,74 @@ public class JPAUnitTest {
         assertThat(checkReservation.isCancelled()).isEqualTo(true);
     }
 
+    @Test
+    public void should_cancel_only_active_reservation_with_conditional_update() {
+        Reservation reservation1 = new Reservation("Reservation#1", "1@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
+        testEntityManager.persist(reservation1);
+
+        assertThat(reservationRepository.cancel(reservation1.getId(), Reservation.DEFAULT_SITE)).isEqualTo(1);
+        assertThat(reservationRepository.cancel(reservation1.getId(), Reservation.DEFAULT_SITE)).isEqualTo(0);
+        assertThat(reservationRepository.existsByIdAndSiteAndCancelledFalse(reservation1.getId(), Reservation.DEFAULT_SITE)).isFalse();
+        assertThat(reservationRepository.findById(reservation1.getId()).get().isCancelled()).isTrue();
+    }
+
+    @Test
+    public void should_update_only_active_reservation_with_conditional_update() {
+        Reservation reservation1 = new Reservation("Reservation#1", "1@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
+        testEntityManager.persist(reservation1);
+
+        assertThat(reservationRepository.update(reservation1.getId(), Reservation.DEFAULT_SITE, "updated", "updated@email.com", LocalDate.now().plusDays(3), LocalDate.now().plusDays(4))).isEqualTo(1);
+        Reservation checkReservation = reservationRepository.findById(reservation1.getId()).get();
+        assertThat(checkReservation.getName()).isEqualTo("updated");
+        assertThat(checkReservation.getStartDate()).isEqualTo(LocalDate.now().plusDays(3));
+
+        reservationRepository.cancel(reservation1.getId(), Reservation.DEFAULT_SITE);
+        assertThat(reservationRepository.update(reservation1.getId(), Reservation.DEFAULT_SITE, "again", "again@email.com", LocalDate.now().plusDays(3), LocalDate.now().plusDays(4))).isEqualTo(0);
+    }
 
+    @Test
+    public void should_not_change_reservation_of_another_site() {
+        Reservation reservation1 = new Reservation("lake", "Reservation#1", "1@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
+        testEntityManager.persist(reservation1);
+
+        assertThat(reservationRepository.cancel(reservation1.getId(), Reservation.DEFAULT_SITE)).isEqualTo(0);
+        assertThat(reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, LocalDate.now(), LocalDate.now().plusDays(3))).isEmpty();
+        assertThat(reservationRepository.findSiteOccupancy("lake", LocalDate.now(), LocalDate.now().plusDays(3))).hasSize(1);
+        assertThat(reservationRepository.cancel(reservation1.getId(), "lake")).isEqualTo(1);
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void should_not_serve_cancelled_reservation_from_second_level_cache() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        LocalDate start = LocalDate.now().plusDays(1);
+        LocalDate end = LocalDate.now().plusDays(3);
+        try {
+            Reservation reservation1 = reservationRepository.save(new Reservation("Reservation#1", "1@email.com", start, end));
+            Reservation reservation2 = reservationRepository.save(new Reservation("Reservation#2", "2@email.com", start, end));
+            assertThat(reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, start, end)).hasSize(2);
+
+            long entityHits = statistics.getSecondLevelCacheHitCount();
+            long queryHits = statistics.getQueryCacheHitCount();
+            assertThat(reservationRepository.findById(reservation1.getId()).get().isCancelled()).isFalse();
+            assertThat(reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, start, end)).hasSize(2);
+            assertThat(statistics.getSecondLevelCacheHitCount()).isGreaterThan(entityHits);
+            assertThat(statistics.getQueryCacheHitCount()).isEqualTo(queryHits + 1);
+
+            // bulk update
+            Integer cancelled = new TransactionTemplate(transactionManager).execute(status -> reservationRepository.cancel(reservation1.getId(), Reservation.DEFAULT_SITE));
+            assertThat(cancelled).isEqualTo(1);
+            assertThat(reservationRepository.findById(reservation1.getId()).get().isCancelled()).isTrue();
+            assertThat(reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, start, end)).extracting(ReservationNights::getId).containsExactly(reservation2.getId());
+
+            // entity save
+            Reservation cached = reservationRepository.findById(reservation2.getId()).get();
+            cached.setCancelled(true);
+            reservationRepository.save(cached);
+            assertThat(reservationRepository.findById(reservation2.getId()).get().isCancelled()).isTrue();
+            assertThat(reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, start, end)).isEmpty();
+        } finally {
+            reservationRepository.deleteAll();
+        }
+    }
 }
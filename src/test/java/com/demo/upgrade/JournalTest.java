@@ -0,0 +1,132 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingResult;
+import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.OccupancyIndex;
+import com.demo.upgrade.service.ReservationJournal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Journal records are applied only when the test asks, so the table can be checked before and after.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"upgrade.journal.enabled=true", "upgrade.journal.size-mb=1", "upgrade.journal.apply-interval=3600000",
+        "spring.datasource.generate-unique-name=true"})
+public class JournalTest {
+
+    @TempDir
+    static Path directory;
+
+    @Autowired
+    private ReservationJournal journal;
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Autowired
+    private OccupancyIndex occupancyIndex;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @DynamicPropertySource
+    static void journalPath(DynamicPropertyRegistry registry) {
+        registry.add("upgrade.journal.path", () -> directory.resolve("reservations.journal").toString());
+    }
+
+    @Test
+    public void whenReserveChangeCancel_thenAppliedInOrder() {
+        LocalDate start = LocalDate.now().plusDays(3);
+        BookingResult kept = journal.reserve(new Reservation("A", "A@email.com", start, start.plusDays(1)));
+        BookingResult cancelled = journal.reserve(new Reservation("B", "B@email.com", start, start.plusDays(1)));
+        long direct = bookingService.reserve(new Reservation("C", "C@email.com", start, start.plusDays(1)));
+        Assertions.assertEquals(BookingOutcome.UNAVAILABLE, journal.reserve(new Reservation("D", "D@email.com", start, start.plusDays(1))).getOutcome());
+
+        Assertions.assertEquals(BookingOutcome.UPDATED, journal.change(Reservation.DEFAULT_SITE, kept.getId(), new Reservation("A2", "A@email.com", start.plusDays(1), start.plusDays(3))).getOutcome());
+        Assertions.assertEquals(BookingOutcome.CANCELLED, journal.cancel(Reservation.DEFAULT_SITE, cancelled.getId()).getOutcome());
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, journal.cancel(Reservation.DEFAULT_SITE, cancelled.getId()).getOutcome());
+        Assertions.assertNotEquals(direct, kept.getId());
+        Assertions.assertNotEquals(direct, cancelled.getId());
+        Assertions.assertFalse(reservationRepository.findById(kept.getId()).isPresent());
+        // cached before the journal cancels it past Hibernate
+        Assertions.assertNotNull(bookingService.getReservation(direct));
+        Assertions.assertEquals(BookingOutcome.CANCELLED, journal.cancel(Reservation.DEFAULT_SITE, direct).getOutcome());
+
+        while (journal.applyPending() > 0) {
+        }
+        Assertions.assertFalse(journal.hasPending());
+        Reservation changed = reservationRepository.findById(kept.getId()).get();
+        Assertions.assertEquals("A2", changed.getName());
+        Assertions.assertEquals(start.plusDays(1), changed.getStartDate());
+        Assertions.assertTrue(reservationRepository.findById(cancelled.getId()).get().isCancelled());
+        Assertions.assertNull(bookingService.getReservation(direct));
+        Assertions.assertEquals(0, occupancyIndex.verify());
+    }
+
+    @Test
+    public void whenBatchRacesJournal_thenNightNotOverbooked() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(10);
+        Assertions.assertEquals(BookingOutcome.CREATED, journal.reserve(new Reservation("J", "J@email.com", start, start.plusDays(1))).getOutcome());
+        Assertions.assertEquals(BookingOutcome.CREATED, journal.reserve(new Reservation("K", "K@email.com", start, start.plusDays(1))).getOutcome());
+        List<BookingResult> batch = journal.reserveAll(Reservation.DEFAULT_SITE, Arrays.asList(
+                new Reservation("L", "L@email.com", start, start.plusDays(1)), new Reservation("M", "M@email.com", start, start.plusDays(1))));
+        Assertions.assertEquals(BookingOutcome.CREATED, batch.get(0).getOutcome());
+        Assertions.assertEquals(BookingOutcome.UNAVAILABLE, batch.get(1).getOutcome());
+
+        LocalDate racing = start.plusDays(2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<BookingResult>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Reservation reservation = new Reservation("Racer " + i, "racer@email.com", racing, racing.plusDays(1));
+            results.add(i % 2 == 0
+                    ? executor.submit(() -> journal.reserve(reservation))
+                    : executor.submit(() -> journal.reserveAll(Reservation.DEFAULT_SITE, Collections.singletonList(reservation)).get(0)));
+        }
+        int created = 0;
+        for (Future<BookingResult> result : results) {
+            if (result.get().getOutcome() == BookingOutcome.CREATED) {
+                created++;
+            }
+        }
+        executor.shutdown();
+        Assertions.assertEquals(3, created);
+        while (journal.applyPending() > 0) {
+        }
+        Assertions.assertEquals(0, occupancyIndex.verify());
+    }
+
+    @Test
+    public void whenRestarted_thenUnappliedRecordsReplayed() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(20);
+        BookingResult created = journal.reserve(new Reservation("R", "R@email.com", start, start.plusDays(2)));
+        Assertions.assertEquals(1, journal.getPendingRecords());
+
+        journal.stop();
+        journal.start();
+
+        Assertions.assertFalse(journal.hasPending());
+        Assertions.assertTrue(reservationRepository.findById(created.getId()).isPresent());
+        Assertions.assertTrue(occupancyIndex.contains(Reservation.DEFAULT_SITE, created.getId()));
+    }
+}
@@ -0,0 +1,25 @@
+package com.demo.upgrade;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"spring.datasource.generate-unique-name=true", "spring.main.lazy-initialization=true"})
+public class LazyInitializationTest {
+
+    @Autowired
+    private ConfigurableListableBeanFactory beanFactory;
+
+    @Test
+    public void whenLazy_thenScheduledBeansStillCreated() {
+        for (String name : new String[]{"occupancyIndex", "reservationArchiver", "nightInventory", "holdManager", "idempotencyStore", "rateLimiter"}) {
+            Assertions.assertTrue(beanFactory.containsSingleton(name), name);
+        }
+        Assertions.assertFalse(beanFactory.containsSingleton("reservationExporter"));
+    }
+}
@@ -0,0 +1,320 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.ReservationNights;
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.Sites;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Drives a mix of status, reserve, change and cancel calls from concurrent clients against the
+ * app on H2 and reports throughput and latency percentiles per endpoint. Every reservation the
+ * responses confirm is tallied per site and night while the run goes on, and each CREATED or
+ * UPDATED response is checked against the site's size; the table is checked again at the end.
+ *
+ * mvn test -Dtest=LoadTest -Dupgrade.load=true [-Dupgrade.load.clients=64 -Dupgrade.load.seconds=20
+ *   -Dupgrade.load.mix=status:70,reserve:15,change:10,cancel:5 -Dupgrade.sequencer.enabled=true]
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "spring.datasource.generate-unique-name=true")
+@EnabledIfSystemProperty(named = "upgrade.load", matches = "true")
+public class LoadTest {
+
+    private static final String[] ENDPOINTS = {"status", "reserve", "change", "cancel"};
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private Sites sites;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    private Logger logger = LoggerFactory.getLogger(LoadTest.class);
+
+    private ExecutorService clientExecutor = Executors.newCachedThreadPool();
+
+    private HttpClient client = HttpClient.newBuilder().executor(clientExecutor).build();
+
+    private List<Long> created = new CopyOnWriteArrayList<>();
+
+    private Tally tally;
+
+    @AfterEach
+    public void stopClient() {
+        clientExecutor.shutdownNow();
+    }
+
+    @Test
+    public void runLoad() throws Exception {
+        int clients = Integer.getInteger("upgrade.load.clients", 32);
+        int seconds = Integer.getInteger("upgrade.load.seconds", 10);
+        int[] weights = parseMix(System.getProperty("upgrade.load.mix", "status:70,reserve:15,change:10,cancel:5"));
+        tally = new Tally(sites);
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<long[][]>> results = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < clients; i++) {
+            long seed = i;
+            results.add(pool.submit(() -> drive(new Random(seed), weights, deadline)));
+        }
+        List<List<Long>> latencies = new ArrayList<>();
+        for (int e = 0; e < ENDPOINTS.length; e++) {
+            latencies.add(new ArrayList<>());
+        }
+        for (Future<long[][]> result : results) {
+            long[][] perEndpoint = result.get();
+            for (int e = 0; e < ENDPOINTS.length; e++) {
+                for (long latency : perEndpoint[e]) {
+                    latencies.get(e).add(latency);
+                }
+            }
+        }
+        pool.shutdown();
+
+        logger.info(String.format("%d clients for %d s, upgrade.reservation.size=%d", clients, seconds, sites.getSize(sites.getDefault())));
+        for (int e = 0; e < ENDPOINTS.length; e++) {
+            report(ENDPOINTS[e], latencies.get(e), seconds);
+        }
+        logger.info("Created " + created.size() + " reservations, overbooked on responses: " + tally.overbooked);
+        Assertions.assertTrue(tally.overbooked.isEmpty(), "Responses that booked nights over capacity: " + tally.overbooked);
+        assertNoOverbooking();
+    }
+
+    private long[][] drive(Random random, int[] weights, long deadline) throws Exception {
+        List<List<Long>> latencies = new ArrayList<>();
+        for (int e = 0; e < ENDPOINTS.length; e++) {
+            latencies.add(new ArrayList<>());
+        }
+        int total = Arrays.stream(weights).sum();
+        while (System.nanoTime() < deadline) {
+            int pick = random.nextInt(total);
+            int endpoint = 0;
+            while (pick >= weights[endpoint]) {
+                pick -= weights[endpoint++];
+            }
+            long started = System.nanoTime();
+            call(endpoint, random);
+            latencies.get(endpoint).add(System.nanoTime() - started);
+        }
+        long[][] result = new long[ENDPOINTS.length][];
+        for (int e = 0; e < ENDPOINTS.length; e++) {
+            result[e] = latencies.get(e).stream().mapToLong(Long::longValue).toArray();
+        }
+        return result;
+    }
+
+    private void call(int endpoint, Random random) throws Exception {
+        String base = "http://localhost:" + port + "/api/booking/";
+        switch (ENDPOINTS[endpoint]) {
+            case "status":
+                send(HttpRequest.newBuilder(URI.create(base + "status")).GET());
+                break;
+            case "reserve": {
+                Stay stay = stay(random);
+                HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(base + "reserve"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(stay.body())));
+                if (response.statusCode() == 201) {
+                    long id = Long.parseLong(response.body());
+                    created.add(id);
+                    tally.created(id, stay);
+                }
+                break;
+            }
+            case "change": {
+                long id = beginWrite(random);
+                Stay stay = stay(random);
+                Stay now = null;
+                try {
+                    HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(base + "change?id=" + id))
+                            .header("Content-Type", "application/json")
+                            .PUT(HttpRequest.BodyPublishers.ofString(stay.body())));
+                    now = response.statusCode() == 200 ? stay : tally.before(id);
+                } finally {
+                    tally.end(id, now, now == stay);
+                }
+                break;
+            }
+            default: {
+                long id = beginWrite(random);
+                Stay now = null;
+                try {
+                    HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(base + "cancel?id=" + id))
+                            .PUT(HttpRequest.BodyPublishers.noBody()));
+                    now = response.statusCode() == 200 ? null : tally.before(id);
+                } finally {
+                    tally.end(id, now, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks a created reservation no other client is changing or cancelling, so the responses for
+     * one reservation are tallied in the order they were made; -1 when there is none.
+     */
+    private long beginWrite(Random random) {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long id = anyCreated(random);
+            if (id != -1 && tally.begin(id)) {
+                return id;
+            }
+        }
+        tally.begin(-1);
+        return -1;
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private Stay stay(Random random) {
+        LocalDate start = LocalDate.now().plusDays(1 + random.nextInt(25));
+        return new Stay(sites.getDefault(), start, start.plusDays(1 + random.nextInt(3)));
+    }
+
+    private long anyCreated(Random random) {
+        return created.isEmpty() ? -1 : created.get(random.nextInt(created.size()));
+    }
+
+    private void report(String endpoint, List<Long> latencies, int seconds) {
+        if (latencies.isEmpty()) {
+            return;
+        }
+        Collections.sort(latencies);
+        logger.info(String.format("%-8s %8d calls %10.1f/s  p50 %7.2f ms  p99 %7.2f ms  p999 %7.2f ms",
+                endpoint, latencies.size(), latencies.size() / (double) seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999)));
+    }
+
+    private double percentile(List<Long> sorted, double quantile) {
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(quantile * sorted.size()) - 1);
+        return sorted.get(Math.max(index, 0)) / 1_000_000.0;
+    }
+
+    private void assertNoOverbooking() {
+        LocalDate start = LocalDate.now();
+        LocalDate end = LocalDate.now().plusMonths(2);
+        Map<String, Map<LocalDate, Integer>> booked = new TreeMap<>();
+        for (ReservationNights res : reservationRepository.findOccupancy(start, end)) {
+            for (LocalDate night = res.getStartDate(); night.isBefore(res.getEndDate()); night = night.plusDays(1)) {
+                booked.computeIfAbsent(res.getSite(), site -> new TreeMap<>()).merge(night, 1, Integer::sum);
+            }
+        }
+        List<String> overbooked = new ArrayList<>();
+        booked.forEach((site, nights) -> nights.forEach((night, count) -> {
+            if (count > sites.getSize(site)) {
+                overbooked.add(site + " " + night + "=" + count);
+            }
+        }));
+        logger.info("Overbooked nights in the table: " + overbooked);
+        Assertions.assertTrue(overbooked.isEmpty(), "Nights over capacity: " + overbooked);
+    }
+
+    private int[] parseMix(String mix) {
+        int[] weights = new int[ENDPOINTS.length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.split(":");
+            weights[Arrays.asList(ENDPOINTS).indexOf(pair[0].trim())] = Integer.parseInt(pair[1].trim());
+        }
+        return weights;
+    }
+
+    private static class Stay {
+        private final String site;
+        private final LocalDate start;
+        private final LocalDate end;
+
+        Stay(String site, LocalDate start, LocalDate end) {
+            this.site = site;
+            this.start = start;
+            this.end = end;
+        }
+
+        String body() {
+            return "{\"name\":\"Load\",\"email\":\"load@test.com\",\"startDate\":\"" + start + "\",\"endDate\":\"" + end + "\"}";
+        }
+    }
+
+    /**
+     * Booked count per site and night, as confirmed by the responses. The nights of a reservation
+     * being changed or cancelled stop counting when the request is sent and count again only if
+     * the response says it kept them, so the tally never runs ahead of the table and a count over
+     * the site's size is a real overbooking.
+     */
+    private static class Tally {
+        private final Sites sites;
+        private final Map<String, Map<LocalDate, Integer>> booked = new HashMap<>();
+        private final Map<Long, Stay> stays = new HashMap<>();
+        private final Map<Long, Stay> writing = new HashMap<>();
+        private final List<String> overbooked = new CopyOnWriteArrayList<>();
+
+        Tally(Sites sites) {
+            this.sites = sites;
+        }
+
+        synchronized void created(long id, Stay stay) {
+            stays.put(id, stay);
+            add(stay, 1, true);
+        }
+
+        /**
+         * Takes the reservation's nights out of the count while a change or cancel is sent; false
+         * when another client is already writing it.
+         */
+        synchronized boolean begin(long id) {
+            if (id != -1 && writing.containsKey(id)) {
+                return false;
+            }
+            Stay stay = stays.remove(id);
+            if (stay != null) {
+                add(stay, -1, false);
+            }
+            writing.put(id, stay);
+            return true;
+        }
+
+        synchronized Stay before(long id) {
+            return writing.get(id);
+        }
+
+        /**
+         * Counts the nights the reservation has after the write, none when it is gone or unknown.
+         */
+        synchronized void end(long id, Stay now, boolean check) {
+            writing.remove(id);
+            if (now != null && id != -1) {
+                stays.put(id, now);
+                add(now, 1, check);
+            }
+        }
+
+        private void add(Stay stay, int delta, boolean check) {
+            Map<LocalDate, Integer> nights = booked.computeIfAbsent(stay.site, site -> new HashMap<>());
+            for (LocalDate night = stay.start; night.isBefore(stay.end); night = night.plusDays(1)) {
+                int count = nights.merge(night, delta, Integer::sum);
+                if (check && count > sites.getSize(stay.site)) {
+                    overbooked.add(stay.site + " " + night + "=" + count);
+                }
+            }
+        }
+    }
+}
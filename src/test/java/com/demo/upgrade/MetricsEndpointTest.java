@@ -0,0 +1,36 @@
+package com.demo.upgrade;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpMethod;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "management.endpoints.web.exposure.include=prometheus",
+        "management.metrics.distribution.percentiles-histogram.booking=true",
+        "spring.datasource.generate-unique-name=true"})
+public class MetricsEndpointTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Test
+    public void whenScraped_thenExposesBookingMetrics() {
+        restTemplate.getForEntity("/api/booking/status", String.class);
+        restTemplate.exchange("/api/booking/cancel?id=-1", HttpMethod.PUT, null, String.class);
+
+        String body = restTemplate.getForObject("/actuator/prometheus", String.class);
+
+        assertThat(body).contains("booking_endpoint_seconds_bucket");
+        assertThat(body).contains("booking_service_seconds_bucket");
+        assertThat(body).contains("booking_outcome_total{endpoint=\"cancel\",outcome=\"not_found\",}");
+        assertThat(body).contains("booking_request_queries");
+        assertThat(body).contains("hikaricp_connections");
+        assertThat(body).contains("hibernate_statements_total");
+        assertThat(body).contains("hibernate_second_level_cache_requests_total");
+        assertThat(body).contains("hibernate_cache_query_requests_total");
+    }
+}
@@ -0,0 +1,215 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.NightCapacity;
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationHold;
+import com.demo.upgrade.service.AvailabilityFeed;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.HoldManager;
+import com.demo.upgrade.service.NightInventory;
+import com.demo.upgrade.service.Sites;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Date;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"spring.datasource.generate-unique-name=true", "upgrade.inventory.enabled=true", "upgrade.reservation.size=1"})
+public class NightInventoryTest {
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Autowired
+    private NightInventory nightInventory;
+
+    @Autowired
+    private HoldManager holdManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private AvailabilityFeed availabilityFeed;
+
+    @Test
+    public void whenNightTaken_thenRejectedUntilCancelled() {
+        LocalDate start = LocalDate.now().plusDays(2);
+        Long first = bookingService.reserve(new Reservation("First", "first@email.com", start, start.plusDays(1)));
+        Assertions.assertNotNull(first);
+        Assertions.assertNull(bookingService.reserve(new Reservation("Second", "second@email.com", start, start.plusDays(1))));
+        Assertions.assertArrayEquals(new int[]{0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+
+        Assertions.assertEquals(BookingOutcome.CANCELLED, bookingService.cancel(Reservation.DEFAULT_SITE, first).getOutcome());
+        Assertions.assertArrayEquals(new int[]{1}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+        Assertions.assertNotNull(bookingService.reserve(new Reservation("Second", "second@email.com", start, start.plusDays(1))));
+    }
+
+    @Test
+    public void whenOneNightFull_thenNoNightTaken() {
+        LocalDate start = LocalDate.now().plusDays(5);
+        nightInventory.seed(Reservation.DEFAULT_SITE, start, start.plusDays(2));
+        // booked on another node
+        jdbcTemplate.update("UPDATE night_inventory SET remaining = 0 WHERE site = ? AND night = ?", Reservation.DEFAULT_SITE, Date.valueOf(start.plusDays(1)));
+
+        Assertions.assertFalse(bookingService.isAvaliable(Reservation.DEFAULT_SITE, start, start.plusDays(2), null));
+        Assertions.assertEquals(List.of(start.toString()), bookingService.getAvaliableDays(Reservation.DEFAULT_SITE, start, start.plusDays(2)));
+        Assertions.assertNull(bookingService.reserve(new Reservation("Both", "both@email.com", start, start.plusDays(2))));
+        Assertions.assertArrayEquals(new int[]{1, 0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(2)));
+    }
+
+    @Test
+    public void whenChanged_thenOldNightsFreedOrKeptWhenNewFull() {
+        LocalDate start = LocalDate.now().plusDays(10);
+        Long id = bookingService.reserve(new Reservation("Change", "change@email.com", start, start.plusDays(2)));
+        nightInventory.seed(Reservation.DEFAULT_SITE, start, start.plusDays(5));
+        jdbcTemplate.update("UPDATE night_inventory SET remaining = 0 WHERE site = ? AND night = ?", Reservation.DEFAULT_SITE, Date.valueOf(start.plusDays(2)));
+
+        Reservation full = new Reservation("Change", "change@email.com", start.plusDays(1), start.plusDays(3));
+        Assertions.assertEquals(BookingOutcome.UNAVAILABLE, bookingService.change(Reservation.DEFAULT_SITE, id, full).getOutcome());
+        Assertions.assertArrayEquals(new int[]{0, 0, 0, 1, 1}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(5)));
+
+        Reservation moved = new Reservation("Change", "change@email.com", start.plusDays(3), start.plusDays(5));
+        Assertions.assertEquals(BookingOutcome.UPDATED, bookingService.change(Reservation.DEFAULT_SITE, id, moved).getOutcome());
+        Assertions.assertArrayEquals(new int[]{1, 1, 0, 0, 0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(5)));
+    }
+
+    @Test
+    public void whenHeld_thenNightTakenUntilReleasedAndHandedOverOnConfirm() {
+        LocalDate start = LocalDate.now().plusDays(15);
+        ReservationHold hold = holdManager.hold(Reservation.DEFAULT_SITE, start, start.plusDays(1));
+        Assertions.assertNotNull(hold);
+        Assertions.assertArrayEquals(new int[]{0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+        Assertions.assertNull(bookingService.reserve(new Reservation("Other", "other@email.com", start, start.plusDays(1))));
+
+        Assertions.assertTrue(holdManager.release(hold.getHoldId()));
+        Assertions.assertArrayEquals(new int[]{1}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+
+        hold = holdManager.hold(Reservation.DEFAULT_SITE, start, start.plusDays(1));
+        Assertions.assertEquals(BookingOutcome.CREATED, holdManager.confirm(hold.getHoldId(), "Held", "held@email.com").getOutcome());
+        Assertions.assertArrayEquals(new int[]{0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+    }
+
+    @Test
+    public void whenHoldLeftBehindExpires_thenRefreshGivesNightBack() {
+        LocalDate start = LocalDate.now().plusDays(32);
+        // a node that stopped without releasing its hold
+        Assertions.assertTrue(nightInventory.hold("left-behind", Reservation.DEFAULT_SITE, start, start.plusDays(1), Instant.now().minusSeconds(1)));
+        Assertions.assertArrayEquals(new int[]{0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+
+        nightInventory.refresh();
+        Assertions.assertArrayEquals(new int[]{1}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+        Assertions.assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM inventory_holds WHERE token = 'left-behind'", Integer.class));
+        nightInventory.refresh();
+        Assertions.assertArrayEquals(new int[]{1}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+    }
+
+    @Test
+    public void whenStopping_thenHoldsReleased() {
+        LocalDate start = LocalDate.now().plusDays(34);
+        Assertions.assertNotNull(holdManager.hold(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+        Assertions.assertArrayEquals(new int[]{0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+
+        holdManager.releaseAll();
+        Assertions.assertEquals(0, holdManager.getActive());
+        Assertions.assertArrayEquals(new int[]{1}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+    }
+
+    @Test
+    public void whenBookedOnAnotherNode_thenETagChangesAndStreamSendsDelta() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(36);
+        nightInventory.seed(Reservation.DEFAULT_SITE, start, start.plusDays(2));
+        long version = bookingService.getOccupancyVersion(Reservation.DEFAULT_SITE, start, start.plusDays(2));
+        List<Object> sent = new CopyOnWriteArrayList<>();
+        Runnable unsubscribe = availabilityFeed.subscribe(Reservation.DEFAULT_SITE, start, start.plusDays(2), (event, data) -> sent.add(data));
+
+        jdbcTemplate.update("UPDATE night_inventory SET remaining = 0 WHERE site = ? AND night = ?", Reservation.DEFAULT_SITE, Date.valueOf(start.plusDays(1)));
+
+        Assertions.assertNotEquals(version, bookingService.getOccupancyVersion(Reservation.DEFAULT_SITE, start, start.plusDays(2)));
+        availabilityFeed.pollInventory();
+        availabilityFeed.flush();
+        for (int i = 0; i < 100 && sent.size() < 2; i++) {
+            Thread.sleep(50);
+        }
+        unsubscribe.run();
+        @SuppressWarnings("unchecked")
+        List<NightCapacity> changed = (List<NightCapacity>) sent.get(1);
+        Assertions.assertEquals(1, changed.size());
+        Assertions.assertEquals(start.plusDays(1), changed.get(0).getNight());
+        Assertions.assertEquals(0, changed.get(0).getRemaining());
+    }
+
+    @Test
+    public void whenNightTakenOnAnotherNode_thenNotHeld() {
+        LocalDate start = LocalDate.now().plusDays(17);
+        nightInventory.seed(Reservation.DEFAULT_SITE, start, start.plusDays(2));
+        jdbcTemplate.update("UPDATE night_inventory SET remaining = 0 WHERE site = ? AND night = ?", Reservation.DEFAULT_SITE, Date.valueOf(start.plusDays(1)));
+
+        Assertions.assertNull(holdManager.hold(Reservation.DEFAULT_SITE, start, start.plusDays(2)));
+        Assertions.assertArrayEquals(new int[]{1, 0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(2)));
+        Assertions.assertNotNull(bookingService.reserve(new Reservation("Free", "free@email.com", start, start.plusDays(1))));
+    }
+
+    @Test
+    public void whenSeeded_thenExistingReservationsCounted() {
+        LocalDate start = LocalDate.now().plusDays(20);
+        jdbcTemplate.update("DELETE FROM night_inventory WHERE night = ?", Date.valueOf(start));
+        jdbcTemplate.update("INSERT INTO reservations (id, site, fullname, email, start_date, end_date, cancelled) VALUES (?, ?, ?, ?, ?, ?, 0)",
+                2_000_000_000L, Reservation.DEFAULT_SITE, "Earlier", "earlier@email.com", Date.valueOf(start), Date.valueOf(start.plusDays(1)));
+
+        Assertions.assertNull(bookingService.reserve(new Reservation("Later", "later@email.com", start, start.plusDays(1))));
+        Assertions.assertArrayEquals(new int[]{0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+    }
+
+    @Test
+    public void whenReservedConcurrently_thenOneWins() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(25);
+        nightInventory.seed(Reservation.DEFAULT_SITE, start, start.plusDays(1));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Reservation reservation = new Reservation("Racer " + i, "racer@email.com", start, start.plusDays(1));
+            results.add(executor.submit(() -> bookingService.reserve(reservation)));
+        }
+        int created = 0;
+        for (Future<Long> result : results) {
+            if (result.get() != null) {
+                created++;
+            }
+        }
+        executor.shutdown();
+        Assertions.assertEquals(1, created);
+        Assertions.assertArrayEquals(new int[]{0}, nightInventory.getRemaining(Reservation.DEFAULT_SITE, start, start.plusDays(1)));
+    }
+
+    @Test
+    public void whenJournalOrReactiveEnabled_thenStartupFails() {
+        NightInventory journal = new NightInventory(jdbcTemplate, new Sites(new MockEnvironment().withProperty("upgrade.reservation.size", "1")), null, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "journalEnabled", true);
+        ReflectionTestUtils.setField(journal, "webApplicationType", "servlet");
+        Assertions.assertThrows(IllegalStateException.class, journal::init);
+
+        NightInventory reactive = new NightInventory(jdbcTemplate, new Sites(new MockEnvironment().withProperty("upgrade.reservation.size", "1")), null, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(reactive, "enabled", true);
+        ReflectionTestUtils.setField(reactive, "webApplicationType", "reactive");
+        Assertions.assertThrows(IllegalStateException.class, reactive::init);
+    }
+}
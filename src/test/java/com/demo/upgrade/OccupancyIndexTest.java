@@ -0,0 +1,147 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.ReservationNights;
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.OccupancyIndex;
+import com.demo.upgrade.service.Sites;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+public class OccupancyIndexTest {
+
+    private ReservationRepository reservationRepository;
+
+    private OccupancyIndex occupancyIndex;
+
+    private LocalDate tomorrow = LocalDate.now().plusDays(1);
+
+    @BeforeEach
+    public void setUp() {
+        reservationRepository = Mockito.mock(ReservationRepository.class);
+        List<ReservationNights> list = new ArrayList<>();
+        list.add(new ReservationNights(1, tomorrow, tomorrow.plusDays(2)));
+        list.add(new ReservationNights(2, tomorrow, tomorrow.plusDays(1)));
+        list.add(new ReservationNights(3, "lake", tomorrow, tomorrow.plusDays(1)));
+        when(reservationRepository.findOccupancy(any(), any())).thenReturn(list);
+        occupancyIndex = new OccupancyIndex(reservationRepository, new Sites(new MockEnvironment()
+                .withProperty("upgrade.reservation.size", "3").withProperty("upgrade.sites", "main,lake")));
+        ReflectionTestUtils.setField(occupancyIndex, "days", 64);
+        occupancyIndex.rebuild();
+    }
+
+    @Test
+    public void whenLoaded_thenCountsBookedNights() {
+        int[] booked = occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(3));
+        Assertions.assertArrayEquals(new int[]{2, 1, 0}, booked);
+    }
+
+    @Test
+    public void whenOutsideWindow_thenReturnNull() {
+        Assertions.assertNull(occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(100)));
+        Assertions.assertNull(occupancyIndex.isAvailable("main", LocalDate.now().minusDays(1), tomorrow, null, 3));
+    }
+
+    @Test
+    public void whenFull_thenNotAvailableUnlessExcluded() {
+        occupancyIndex.add("main", 3, tomorrow, tomorrow.plusDays(1));
+        Assertions.assertFalse(occupancyIndex.isAvailable("main", tomorrow, tomorrow.plusDays(1), null, 3));
+        Assertions.assertTrue(occupancyIndex.isAvailable("main", tomorrow, tomorrow.plusDays(1), 3L, 3));
+        Assertions.assertTrue(occupancyIndex.isAvailable("main", tomorrow.plusDays(1), tomorrow.plusDays(3), null, 3));
+    }
+
+    @Test
+    public void whenMovedAndRemoved_thenCountsFollow() {
+        occupancyIndex.add("main", 2, tomorrow.plusDays(2), tomorrow.plusDays(3));
+        Assertions.assertArrayEquals(new int[]{1, 1, 1}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(3)));
+        occupancyIndex.remove("main", 1);
+        Assertions.assertArrayEquals(new int[]{0, 0, 1}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(3)));
+    }
+
+    @Test
+    public void whenTableChanged_thenVerifyRebuilds() {
+        Assertions.assertEquals(0, occupancyIndex.verify());
+        when(reservationRepository.findOccupancy(any(), any())).thenReturn(Collections.emptyList());
+        Assertions.assertEquals(3, occupancyIndex.verify());
+        Assertions.assertArrayEquals(new int[]{0, 0}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(2)));
+    }
+
+    @Test
+    public void whenHeld_thenCountedAndKeptThroughVerify() {
+        Assertions.assertTrue(occupancyIndex.tryHold("main", 100, tomorrow, tomorrow.plusDays(1), 3));
+        Assertions.assertFalse(occupancyIndex.tryHold("main", 101, tomorrow, tomorrow.plusDays(1), 3));
+        Assertions.assertEquals(0, occupancyIndex.verify());
+        occupancyIndex.rebuild();
+        Assertions.assertArrayEquals(new int[]{3, 1}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(2)));
+
+        Assertions.assertTrue(occupancyIndex.confirmHold("main", 100, 5));
+        Assertions.assertTrue(occupancyIndex.contains("main", 5));
+        Assertions.assertFalse(occupancyIndex.releaseHold("main", 100));
+        Assertions.assertArrayEquals(new int[]{3, 1}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(2)));
+    }
+
+    @Test
+    public void whenTransactionRollsBack_thenChangesUndoneAndListenersToldAfter() {
+        List<String> changed = new ArrayList<>();
+        occupancyIndex.addListener((site, firstDay, endDay) -> changed.add(site));
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            occupancyIndex.add("main", 4, tomorrow, tomorrow.plusDays(3));
+            occupancyIndex.add("main", 2, tomorrow.plusDays(2), tomorrow.plusDays(3));
+            occupancyIndex.remove("main", 1);
+            Assertions.assertArrayEquals(new int[]{1, 1, 2}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(3)));
+            Assertions.assertTrue(changed.isEmpty());
+            complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        Assertions.assertArrayEquals(new int[]{2, 1, 0}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(3)));
+        Assertions.assertFalse(occupancyIndex.contains("main", 4));
+        Assertions.assertTrue(occupancyIndex.contains("main", 1));
+        Assertions.assertFalse(changed.isEmpty());
+    }
+
+    @Test
+    public void whenVerifyOverlapsOpenTransaction_thenCommittedChangeKept() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            occupancyIndex.add("main", 4, tomorrow, tomorrow.plusDays(1));
+            // the table read does not see the uncommitted row yet
+            Assertions.assertEquals(0, occupancyIndex.verify());
+            complete(TransactionSynchronization.STATUS_COMMITTED);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        Assertions.assertArrayEquals(new int[]{3, 1}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(2)));
+        Assertions.assertTrue(occupancyIndex.contains("main", 4));
+    }
+
+    @Test
+    public void whenOtherSiteChanged_thenCountsAndVersionUnaffected() {
+        long version = occupancyIndex.getVersion("main");
+        Assertions.assertArrayEquals(new int[]{1, 0}, occupancyIndex.bookedNights("lake", tomorrow, tomorrow.plusDays(2)));
+        occupancyIndex.add("lake", 4, tomorrow, tomorrow.plusDays(2));
+        Assertions.assertArrayEquals(new int[]{2, 1}, occupancyIndex.bookedNights("lake", tomorrow, tomorrow.plusDays(2)));
+        Assertions.assertArrayEquals(new int[]{2, 1}, occupancyIndex.bookedNights("main", tomorrow, tomorrow.plusDays(2)));
+        Assertions.assertEquals(version, occupancyIndex.getVersion("main"));
+        Assertions.assertFalse(occupancyIndex.contains("main", 4));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> occupancyIndex.bookedNights("hill", tomorrow, tomorrow.plusDays(2)));
+    }
+
+    private void complete(int status) {
+        TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.afterCompletion(status));
+    }
+}
@@ -0,0 +1,99 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.repository.ReservationRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import javax.persistence.EntityManager;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the entity query against the projection over a large table, with and without the
+ * occupancy index. Run with -Dupgrade.perf=true -Dtest=OccupancyQueryMeasurementTest.
+ */
+@ExtendWith(SpringExtension.class)
+@DataJpaTest
+@EnabledIfSystemProperty(named = "upgrade.perf", matches = "true")
+public class OccupancyQueryMeasurementTest {
+
+    private static final int ROWS = Integer.getInteger("upgrade.perf.rows", 500_000);
+
+    private static final int ROUNDS = 50;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    private Logger logger = LoggerFactory.getLogger(OccupancyQueryMeasurementTest.class);
+
+    @Test
+    public void measureOccupancyQueries() {
+        populate();
+        LocalDate start = LocalDate.now().plusDays(1);
+        LocalDate end = LocalDate.now().plusMonths(1);
+
+        jdbcTemplate.execute("DROP INDEX ix_reservations_occupancy");
+        logger.info("findOccupancy, no index:   " + time(() -> reservationRepository.findOccupancy(start, end).size()) + " ms/query");
+        logger.info("findSiteOccupancy, no index:   " + time(() -> reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, start, end).size()) + " ms/query");
+        jdbcTemplate.execute("CREATE INDEX ix_reservations_occupancy ON reservations (site, cancelled, end_date, start_date)");
+        logger.info("findOccupancy, with index: " + time(() -> reservationRepository.findOccupancy(start, end).size()) + " ms/query");
+        logger.info("findSiteOccupancy, with index: " + time(() -> reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, start, end).size()) + " ms/query");
+    }
+
+    private double time(Query query) {
+        for (int i = 0; i < 5; i++) {
+            query.run();
+            entityManager.clear();
+        }
+        long rows = 0;
+        long started = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            rows += query.run();
+            entityManager.clear();
+        }
+        double millis = (System.nanoTime() - started) / 1_000_000.0 / ROUNDS;
+        logger.info("  " + rows / ROUNDS + " rows");
+        return Math.round(millis * 100) / 100.0;
+    }
+
+    private void populate() {
+        Random random = new Random(42);
+        LocalDate first = LocalDate.now().minusYears(3);
+        int span = (int) (LocalDate.now().plusMonths(1).toEpochDay() - first.toEpochDay());
+        List<Object[]> batch = new ArrayList<>();
+        for (int i = 1; i <= ROWS; i++) {
+            LocalDate start = first.plusDays(random.nextInt(span));
+            batch.add(new Object[]{i, "Name" + i, i + "@email.com", Date.valueOf(start), Date.valueOf(start.plusDays(1 + random.nextInt(3))), random.nextInt(10) == 0});
+            if (batch.size() == 10_000) {
+                insert(batch);
+            }
+        }
+        insert(batch);
+    }
+
+    private void insert(List<Object[]> batch) {
+        jdbcTemplate.batchUpdate("INSERT INTO reservations (id, fullname, email, start_date, end_date, cancelled) VALUES (?, ?, ?, ?, ?, ?)", batch);
+        batch.clear();
+    }
+
+    private interface Query {
+        int run();
+    }
+}
@@ -0,0 +1,54 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.config.QueryCountInspector;
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.time.LocalDate;
+
+/**
+ * Statements issued per change and cancel against H2, counted by {@link QueryCountInspector}.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = "spring.datasource.generate-unique-name=true")
+public class QueryCountTest {
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Test
+    public void whenCancel_thenOneStatement() {
+        long id = bookingService.reserve(new Reservation("A", "A@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2)));
+
+        QueryCountInspector.reset();
+        Assertions.assertEquals(BookingOutcome.CANCELLED, bookingService.cancel(Reservation.DEFAULT_SITE, id).getOutcome());
+        Assertions.assertEquals(1, QueryCountInspector.count());
+
+        QueryCountInspector.reset();
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, bookingService.cancel(Reservation.DEFAULT_SITE, id).getOutcome());
+        Assertions.assertEquals(1, QueryCountInspector.count());
+    }
+
+    @Test
+    public void whenChange_thenTwoStatements() {
+        long id = bookingService.reserve(new Reservation("B", "B@email.com", LocalDate.now().plusDays(5), LocalDate.now().plusDays(6)));
+        Reservation moved = new Reservation("B", "B@email.com", LocalDate.now().plusDays(6), LocalDate.now().plusDays(8));
+
+        QueryCountInspector.reset();
+        Assertions.assertEquals(BookingOutcome.UPDATED, bookingService.change(Reservation.DEFAULT_SITE, id, moved).getOutcome());
+        Assertions.assertEquals(2, QueryCountInspector.count());
+
+        QueryCountInspector.reset();
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, bookingService.change(Reservation.DEFAULT_SITE, -1L, moved).getOutcome());
+        Assertions.assertEquals(1, QueryCountInspector.count());
+
+        Assertions.assertEquals(LocalDate.now().plusDays(6), bookingService.getReservation(id).getStartDate());
+    }
+}
@@ -0,0 +1,107 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.config.RateLimitFilter;
+import com.demo.upgrade.service.RateLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class RateLimiterTest {
+
+    private AtomicLong now = new AtomicLong();
+
+    private RateLimiter rateLimiter;
+
+    @BeforeEach
+    public void setUp() {
+        rateLimiter = new RateLimiter(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(rateLimiter, "enabled", true);
+        ReflectionTestUtils.setField(rateLimiter, "readCapacity", 5);
+        ReflectionTestUtils.setField(rateLimiter, "readPerSecond", 10.0);
+        ReflectionTestUtils.setField(rateLimiter, "writeCapacity", 2);
+        ReflectionTestUtils.setField(rateLimiter, "writePerSecond", 0.5);
+        ReflectionTestUtils.setField(rateLimiter, "clock", (LongSupplier) now::get);
+        rateLimiter.init();
+    }
+
+    @Test
+    public void whenBucketEmpty_thenRejectedUntilRefilled() {
+        Assertions.assertEquals(0, rateLimiter.acquire(true, RateLimiter.EMAIL, "a@email.com"));
+        Assertions.assertEquals(0, rateLimiter.acquire(true, RateLimiter.EMAIL, "a@email.com"));
+        Assertions.assertEquals(2000, rateLimiter.acquire(true, RateLimiter.EMAIL, "a@email.com"));
+        Assertions.assertEquals(0, rateLimiter.acquire(true, RateLimiter.EMAIL, "b@email.com"));
+        Assertions.assertEquals(0, rateLimiter.acquire(false, RateLimiter.EMAIL, "a@email.com"));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        Assertions.assertEquals(0, rateLimiter.acquire(true, RateLimiter.EMAIL, "a@email.com"));
+        Assertions.assertTrue(rateLimiter.acquire(true, RateLimiter.EMAIL, "a@email.com") > 0);
+        Assertions.assertEquals(2, rateLimiter.getRejected(true, RateLimiter.EMAIL));
+    }
+
+    @Test
+    public void whenBucketsRefilled_thenEvicted() {
+        rateLimiter.acquire(false, RateLimiter.IP, "10.0.0.1");
+        rateLimiter.acquire(true, RateLimiter.IP, "10.0.0.1");
+        rateLimiter.evictIdle();
+        Assertions.assertEquals(2, rateLimiter.getBuckets());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        rateLimiter.evictIdle();
+        Assertions.assertEquals(1, rateLimiter.getBuckets());
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        rateLimiter.evictIdle();
+        Assertions.assertEquals(0, rateLimiter.getBuckets());
+    }
+
+    @Test
+    public void whenConcurrent_thenCapacityAdmittedOnce() throws InterruptedException {
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < 100; j++) {
+                    if (rateLimiter.acquire(false, RateLimiter.API_KEY, "bot") == 0) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(5, admitted.get());
+    }
+
+    @Test
+    public void whenClientOverLimit_thenFilterAnswersTooManyRequests() throws Exception {
+        RateLimitFilter filter = new RateLimitFilter(rateLimiter);
+        int[] statuses = new int[3];
+        for (int i = 0; i < statuses.length; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/booking/cancel");
+            request.setRemoteAddr("10.0.0.2");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            filter.doFilter(request, response, new MockFilterChain());
+            statuses[i] = response.getStatus();
+        }
+        Assertions.assertArrayEquals(new int[]{200, 200, 429}, statuses);
+    }
+}
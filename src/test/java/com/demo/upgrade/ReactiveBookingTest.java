@@ -0,0 +1,118 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.CompactAvailability;
+import com.demo.upgrade.model.Reservation;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.PoolMetrics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.Disposable;
+
+import java.time.LocalDate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.main.web-application-type=reactive",
+        "spring.datasource.url=jdbc:h2:mem:reactive;DB_CLOSE_DELAY=-1",
+        "spring.r2dbc.url=r2dbc:h2:mem:///reactive;DB_CLOSE_DELAY=-1",
+        "spring.r2dbc.username=sa",
+        "spring.r2dbc.password=",
+        "spring.r2dbc.pool.max-size=2"})
+@ActiveProfiles("reactive")
+public class ReactiveBookingTest {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Autowired
+    @Qualifier("r2dbcConnectionPool")
+    private Disposable pool;
+
+    @Test
+    public void whenReserveChangeCancel_thenSameContractAsServlet() {
+        LocalDate start = LocalDate.now().plusDays(2);
+        Reservation reservation = new Reservation("A", "A@email.com", start, start.plusDays(1));
+
+        String id = webTestClient.post().uri("/api/booking/reserve").bodyValue(reservation)
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertThat(Long.valueOf(id)).isPositive();
+
+        Reservation moved = new Reservation("A", "A@email.com", start.plusDays(1), start.plusDays(2));
+        webTestClient.put().uri("/api/booking/change?id=" + id).bodyValue(moved)
+                .exchange()
+                .expectStatus().isOk();
+
+        webTestClient.put().uri("/api/booking/cancel?id=" + id)
+                .exchange()
+                .expectStatus().isOk();
+        webTestClient.put().uri("/api/booking/cancel?id=" + id)
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void whenFull_thenReserveRejected() {
+        LocalDate start = LocalDate.now().plusDays(10);
+        for (int i = 0; i < 3; i++) {
+            webTestClient.post().uri("/api/booking/reserve").bodyValue(new Reservation("R" + i, i + "@email.com", start, start.plusDays(1)))
+                    .exchange()
+                    .expectStatus().isCreated();
+        }
+        webTestClient.post().uri("/api/booking/reserve").bodyValue(new Reservation("R", "r@email.com", start, start.plusDays(1)))
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        webTestClient.get().uri("/api/booking/status?startDate=" + start + "&endDate=" + start.plusDays(2))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$[0]").isEqualTo(start.plusDays(1).toString());
+
+        CompactAvailability compact = webTestClient.get().uri("/api/booking/status?format=compact&startDate=" + start + "&endDate=" + start.plusDays(120))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(CompactAvailability.class).returnResult().getResponseBody();
+        assertThat(compact.decode()).hasSize(120).startsWith(0, 3, 3);
+    }
+
+    @Test
+    public void whenManyRequests_thenConnectionsReusedFromPool() {
+        LocalDate start = LocalDate.now().plusDays(20);
+        for (int i = 0; i < 6; i++) {
+            webTestClient.post().uri("/api/booking/reserve").bodyValue(new Reservation("P" + i, i + "@email.com", start, start.plusDays(1)))
+                    .exchange()
+                    .expectStatus().value(status -> assertThat(status).isIn(201, 400));
+        }
+        PoolMetrics metrics = ((ConnectionPool) pool).getMetrics().get();
+        assertThat(metrics.getMaxAllocatedSize()).isEqualTo(2);
+        assertThat(metrics.allocatedSize()).isBetween(1, 2);
+        assertThat(metrics.acquiredSize()).isZero();
+    }
+
+    @Test
+    public void whenReservedInTurn_thenIdsTakenFromOneSequenceBlock() {
+        LocalDate start = LocalDate.now().plusDays(25);
+        long first = Long.parseLong(webTestClient.post().uri("/api/booking/reserve").bodyValue(new Reservation("I", "i@email.com", start, start.plusDays(1)))
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody(String.class).returnResult().getResponseBody());
+        long second = Long.parseLong(webTestClient.post().uri("/api/booking/reserve").bodyValue(new Reservation("J", "j@email.com", start, start.plusDays(1)))
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody(String.class).returnResult().getResponseBody());
+        assertThat(second).isEqualTo(first + 1);
+    }
+
+    @Test
+    public void whenBadDates_thenBadRequest() {
+        webTestClient.get().uri("/api/booking/status?startDate=2021-01-01&endDate=2021-01-10")
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+}
@@ -0,0 +1,113 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.config.ReplicaRouter;
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import javax.persistence.EntityManagerFactory;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:routing-primary;DB_CLOSE_DELAY=-1",
+        "upgrade.replica.enabled=true", "upgrade.replica.urls=jdbc:h2:mem:routing-replica;DB_CLOSE_DELAY=-1",
+        "upgrade.replica.heartbeat-interval=3600000", "upgrade.replica.max-lag=5000"})
+public class ReplicaRoutingTest {
+
+    @Autowired
+    private ReplicaRouter router;
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private JdbcTemplate replica;
+
+    @BeforeEach
+    public void copySchema() {
+        JdbcTemplate primary = new JdbcTemplate(router.getPrimary());
+        replica = new JdbcTemplate(router.getReplica("replica-0"));
+        if (replica.queryForObject("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'RESERVATIONS'", Integer.class) > 0) {
+            return;
+        }
+        for (String statement : primary.queryForList("SCRIPT NODATA", String.class)) {
+            if (statement.startsWith("CREATE SEQUENCE") || statement.startsWith("CREATE MEMORY TABLE") || statement.startsWith("CREATE CACHED TABLE")) {
+                replica.execute(statement);
+            }
+        }
+        replica.update("INSERT INTO replica_heartbeat (id, beat_at) VALUES (1, ?)", new Timestamp(System.currentTimeMillis() - 60000));
+    }
+
+    @Test
+    public void whenReplicaLags_thenReadsFallBackToPrimary() {
+        LocalDate start = LocalDate.now().plusDays(5);
+        Long id = bookingService.reserve(new Reservation("Primary", "p@email.com", start, start.plusDays(1)));
+        copyToReplica(id, "Replica", start);
+
+        beat(60000);
+        Assertions.assertEquals("replica-0", router.pick());
+        entityManagerFactory.getCache().evictAll();
+        Assertions.assertEquals("Replica", bookingService.getReservation(id).getName());
+
+        beat(-60000);
+        Assertions.assertNull(router.pick());
+        // the replica's row was not put into the second-level cache
+        Assertions.assertEquals("Primary", bookingService.getReservation(id).getName());
+    }
+
+    @Test
+    public void whenCancelNotYetOnReplica_thenNotCachedAsActive() {
+        LocalDate start = LocalDate.now().plusDays(7);
+        Long id = bookingService.reserve(new Reservation("Cancelled", "c@email.com", start, start.plusDays(1)));
+        Assertions.assertEquals(BookingOutcome.CANCELLED, bookingService.cancel(Reservation.DEFAULT_SITE, id).getOutcome());
+        copyToReplica(id, "Cancelled", start);
+
+        beat(60000);
+        entityManagerFactory.getCache().evictAll();
+        Assertions.assertNotNull(bookingService.getReservation(id));
+
+        beat(-60000);
+        Assertions.assertNull(bookingService.getReservation(id));
+    }
+
+    @Test
+    public void whenReadFailsOnReplica_thenRetriedOnPrimaryAndReplicaMarkedFailed() {
+        LocalDate start = LocalDate.now().plusDays(9);
+        Long id = bookingService.reserve(new Reservation("Failover", "f@email.com", start, start.plusDays(1)));
+
+        beat(60000);
+        entityManagerFactory.getCache().evictAll();
+        replica.execute("ALTER TABLE reservations RENAME TO reservations_moved");
+        try {
+            Assertions.assertEquals("Failover", bookingService.getReservation(id).getName());
+            Assertions.assertNull(router.pick());
+        } finally {
+            replica.execute("ALTER TABLE reservations_moved RENAME TO reservations");
+        }
+    }
+
+    private void copyToReplica(Long id, String name, LocalDate start) {
+        replica.update("INSERT INTO reservations (id, site, fullname, email, start_date, end_date, cancelled) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                id, Reservation.DEFAULT_SITE, name, "p@email.com", Date.valueOf(start), Date.valueOf(start.plusDays(1)), false);
+    }
+
+    /**
+     * Stamps the replica's heartbeat offset ms from now and runs the lag check.
+     */
+    private void beat(long offset) {
+        replica.update("UPDATE replica_heartbeat SET beat_at=? WHERE id=1", new Timestamp(System.currentTimeMillis() + offset));
+        router.heartbeat();
+    }
+}
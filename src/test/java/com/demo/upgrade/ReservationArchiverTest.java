@@ -0,0 +1,72 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.repository.ArchivedReservationRepository;
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.ReservationArchiver;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Date;
+import java.time.LocalDate;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"spring.datasource.generate-unique-name=true", "upgrade.archive.batch-size=2"})
+public class ReservationArchiverTest {
+
+    @Autowired
+    private ReservationArchiver archiver;
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Autowired
+    private ArchivedReservationRepository archivedReservationRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    public void whenArchived_thenEndedStaysMovedAfterKeepDaysAndStillFoundById() {
+        LocalDate start = LocalDate.now().plusDays(3);
+        long past = 1_000_000_000L;
+        for (long id = past; id < past + 3; id++) {
+            jdbcTemplate.update("INSERT INTO reservations (id, site, fullname, email, start_date, end_date, cancelled) VALUES (?, ?, ?, ?, ?, ?, 0)",
+                    id, Reservation.DEFAULT_SITE, "Past", "past@email.com", Date.valueOf(LocalDate.now().minusDays(5)), Date.valueOf(LocalDate.now().minusDays(2)));
+        }
+        long pastCancelled = past + 3;
+        jdbcTemplate.update("INSERT INTO reservations (id, site, fullname, email, start_date, end_date, cancelled) VALUES (?, ?, ?, ?, ?, ?, 1)",
+                pastCancelled, Reservation.DEFAULT_SITE, "Old", "old@email.com", Date.valueOf(LocalDate.now().minusDays(12)), Date.valueOf(LocalDate.now().minusDays(10)));
+        Long active = bookingService.reserve(new Reservation("Active", "a@email.com", start, start.plusDays(1)));
+        Long cancelled = bookingService.reserve(new Reservation("Cancelled", "c@email.com", start, start.plusDays(1)));
+        // cached before it is archived
+        Assertions.assertNotNull(bookingService.getReservation(past));
+        bookingService.cancel(Reservation.DEFAULT_SITE, cancelled);
+
+        ReflectionTestUtils.setField(archiver, "keepDays", 5);
+        Assertions.assertEquals(1, archiver.archive());
+        Assertions.assertTrue(archivedReservationRepository.findById(pastCancelled).get().isCancelled());
+
+        ReflectionTestUtils.setField(archiver, "keepDays", 0);
+        Assertions.assertEquals(3, archiver.archive());
+        Assertions.assertEquals(2, reservationRepository.count());
+        Assertions.assertEquals(4, archivedReservationRepository.count());
+        Assertions.assertEquals("Active", bookingService.getReservation(active).getName());
+        Assertions.assertEquals("Past", bookingService.getReservation(past).getName());
+        // a cancelled stay still to come is kept until its dates have passed
+        Assertions.assertTrue(reservationRepository.findById(cancelled).get().isCancelled());
+        Assertions.assertNull(bookingService.getReservation(cancelled));
+
+        Assertions.assertEquals(0, archiver.archive());
+    }
+}
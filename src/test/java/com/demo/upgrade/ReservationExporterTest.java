@@ -0,0 +1,74 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.ReservationArchiver;
+import com.demo.upgrade.service.ReservationExporter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.time.LocalDate;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"spring.datasource.generate-unique-name=true", "upgrade.export.fetch-size=2"})
+public class ReservationExporterTest {
+
+    @Autowired
+    private ReservationExporter exporter;
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Autowired
+    private ReservationArchiver archiver;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    public void whenExported_thenFilteredRowsWrittenAsNdjsonAndCsv() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(3);
+        Long first = bookingService.reserve(new Reservation("Smith, \"Jo\"", "a@email.com", start, start.plusDays(1)));
+        Long second = bookingService.reserve(new Reservation("B", "b@email.com", start.plusDays(5), start.plusDays(6)));
+        Long cancelled = bookingService.reserve(new Reservation("C", "c@email.com", start, start.plusDays(1)));
+        bookingService.cancel(Reservation.DEFAULT_SITE, cancelled);
+        jdbcTemplate.update("INSERT INTO reservations (id, site, fullname, email, start_date, end_date, cancelled) VALUES (?, ?, ?, ?, ?, ?, 0)",
+                1_000_000_000L, Reservation.DEFAULT_SITE, "Past", "p@email.com", Date.valueOf(LocalDate.now().minusDays(5)), Date.valueOf(LocalDate.now().minusDays(2)));
+        archiver.archive();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assertions.assertEquals(2, exporter.export(null, null, null, false, false, ReservationExporter.Format.NDJSON, out));
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        Assertions.assertEquals(2, lines.length);
+        JsonNode row = objectMapper.readTree(lines[0]);
+        Assertions.assertEquals(first.longValue(), row.get("id").asLong());
+        Assertions.assertEquals("Smith, \"Jo\"", row.get("name").asText());
+        Assertions.assertEquals(start.toString(), row.get("startDate").asText());
+        Assertions.assertFalse(row.get("cancelled").asBoolean());
+
+        out = new ByteArrayOutputStream();
+        Assertions.assertEquals(1, exporter.export(Reservation.DEFAULT_SITE, start.plusDays(2), null, null, false, ReservationExporter.Format.CSV, out));
+        Assertions.assertEquals("id,site,name,email,startDate,endDate,cancelled\r\n"
+                + second + ",main,B,b@email.com," + start.plusDays(5) + "," + start.plusDays(6) + ",false\r\n", out.toString(StandardCharsets.UTF_8));
+
+        out = new ByteArrayOutputStream();
+        Assertions.assertEquals(3, exporter.export(null, null, start, null, true, ReservationExporter.Format.CSV, out));
+        Assertions.assertTrue(out.toString(StandardCharsets.UTF_8).contains("\"Smith, \"\"Jo\"\"\""));
+
+        out = new ByteArrayOutputStream();
+        Assertions.assertEquals(4, exporter.export(null, null, null, null, true, ReservationExporter.Format.NDJSON, out));
+    }
+}
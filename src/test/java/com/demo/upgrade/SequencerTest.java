@@ -0,0 +1,93 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.WaitlistEntry;
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingResult;
+import com.demo.upgrade.service.ReservationSequencer;
+import com.demo.upgrade.service.Waitlist;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"upgrade.sequencer.enabled=true", "spring.datasource.generate-unique-name=true",
+        "upgrade.sites=main,lake", "upgrade.sites.lake.size=1"})
+public class SequencerTest {
+
+    @Autowired
+    private ReservationSequencer sequencer;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Autowired
+    private Waitlist waitlist;
+
+    @Test
+    public void whenConcurrentReserves_thenNeverOverbook() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(1);
+        List<CompletableFuture<BookingResult>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Reservation reservation = new Reservation("R" + i, i + "@email.com", start, start.plusDays(1));
+            results.add(CompletableFuture.supplyAsync(() -> sequencer.reserve(reservation)).thenCompose(result -> result));
+        }
+        long created = 0;
+        for (CompletableFuture<BookingResult> result : results) {
+            if (result.get().getOutcome() == BookingOutcome.CREATED) {
+                created++;
+            }
+        }
+        Assertions.assertEquals(3, created);
+        Assertions.assertEquals(3, reservationRepository.findSiteOccupancy(Reservation.DEFAULT_SITE, start, start).size());
+    }
+
+    @Test
+    public void whenChangeOrCancelMissing_thenNotFound() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(5);
+        Reservation reservation = new Reservation("A", "A@email.com", start, start.plusDays(1));
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, sequencer.change(Reservation.DEFAULT_SITE, -1, reservation).get().getOutcome());
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, sequencer.cancel(Reservation.DEFAULT_SITE, -1).get().getOutcome());
+
+        BookingResult created = sequencer.reserve(reservation).get();
+        Assertions.assertEquals(BookingOutcome.CREATED, created.getOutcome());
+        Assertions.assertEquals(BookingOutcome.CANCELLED, sequencer.cancel(Reservation.DEFAULT_SITE, created.getId()).get().getOutcome());
+        Assertions.assertTrue(reservationRepository.findById(created.getId()).get().isCancelled());
+    }
+
+    @Test
+    public void whenSitesBooked_thenCapacityIsPerSite() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(10);
+        Assertions.assertEquals(BookingOutcome.CREATED, sequencer.reserve(new Reservation("lake", "L1", "l1@email.com", start, start.plusDays(1))).get().getOutcome());
+        Assertions.assertEquals(BookingOutcome.UNAVAILABLE, sequencer.reserve(new Reservation("lake", "L2", "l2@email.com", start, start.plusDays(1))).get().getOutcome());
+        BookingResult main = sequencer.reserve(new Reservation("M1", "m1@email.com", start, start.plusDays(1))).get();
+        Assertions.assertEquals(BookingOutcome.CREATED, main.getOutcome());
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, sequencer.cancel("lake", main.getId()).get().getOutcome());
+        Assertions.assertEquals("lake", reservationRepository.findSiteOccupancy("lake", start, start).get(0).getSite());
+    }
+
+    @Test
+    public void whenWaitlistAllocates_thenBookedOnTheSiteLane() throws Exception {
+        LocalDate start = LocalDate.now().plusDays(9);
+        BookingResult full = sequencer.reserve(new Reservation("lake", "F", "F@email.com", start, start.plusDays(1))).get();
+        WaitlistEntry entry = waitlist.join("lake", "W", "W@email.com", start, start.plusDays(1));
+        waitlist.allocate();
+        Assertions.assertNull(waitlist.getEntry(entry.getId()).getReservationId());
+
+        Assertions.assertEquals(BookingOutcome.CANCELLED, sequencer.cancel("lake", full.getId()).get().getOutcome());
+        waitlist.allocate();
+        Long id = waitlist.getEntry(entry.getId()).getReservationId();
+        Assertions.assertNotNull(id);
+        Assertions.assertEquals("lake", reservationRepository.findById(id).get().getSite());
+        Assertions.assertEquals(BookingOutcome.UNAVAILABLE, sequencer.reserve(new Reservation("lake", "G", "G@email.com", start, start.plusDays(1))).get().getOutcome());
+    }
+}
@@ -1,14 +1,24 @@
 package com.demo.upgrade;
 
 import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.ReservationNights;
+import com.demo.upgrade.repository.ArchivedReservationRepository;
 import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.BookingOutcome;
+import com.demo.upgrade.service.BookingResult;
 import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.BookingServiceImpl;
+import com.demo.upgrade.service.NightInventory;
+import com.demo.upgrade.service.OccupancyIndex;
+import com.demo.upgrade.service.Sites;
+import com.demo.upgrade.service.StatusCache;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.mockito.Mockito;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
@@ -18,6 +28,8 @@ import java.util.List;
 import java.util.Optional;
 
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(SpringExtension.class)
@@ -30,6 +42,9 @@ public class ServiceUnitTest {
     @Autowired
     private BookingService bookignService;
 
+    @Autowired
+    private Sites sites;
+
     @BeforeEach
     public void setUp() {
         Reservation res1 = new Reservation("A", "A@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
@@ -42,20 +57,24 @@ public class ServiceUnitTest {
         list.add(res2);
         list.add(res3);
         list.add(res4);
-        when(reservationRepository.findAvaliable(any(), any())).thenReturn(list);
+        List<ReservationNights> nights = new ArrayList<>();
+        for (Reservation res : list) {
+            nights.add(new ReservationNights(res.getId(), res.getStartDate(), res.getEndDate()));
+        }
+        when(reservationRepository.findOccupancy(any(), any())).thenReturn(nights);
         when(reservationRepository.findById(eq(Long.valueOf(1)))).thenReturn(Optional.of(res1));
         when(reservationRepository.save(any())).thenReturn(res1);
     }
 
     @Test
     public void whenGetAvaileDays_thenReturnStringList() {
-        List<String> result = bookignService.getAvaliableDays(LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
+        List<String> result = bookignService.getAvaliableDays("main", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
         Assertions.assertEquals(result.get(0), LocalDate.now().plusDays(1).toString());
     }
 
     @Test
     public void whenIsAvaliable_thenReturnTrue() {
-        Boolean result = bookignService.isAvaliable(LocalDate.now().plusDays(1), LocalDate.now().plusDays(2), Long.valueOf(1));
+        Boolean result = bookignService.isAvaliable("main", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2), Long.valueOf(1));
         Assertions.assertTrue(result);
     }
 
@@ -66,6 +85,42 @@ public class ServiceUnitTest {
         Assertions.assertNotEquals(id, null);
     }
 
+    @Test
+    public void whenReserveAll_thenCheckCapacityTogether() {
+        LocalDate start = LocalDate.now().plusDays(10);
+        List<Reservation> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            batch.add(new Reservation("R" + i, i + "@email.com", start, start.plusDays(1)));
+        }
+        batch.add(new Reservation("Late", "late@email.com", LocalDate.now().plusMonths(2), LocalDate.now().plusMonths(2).plusDays(1)));
+        when(reservationRepository.saveAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        List<BookingResult> results = bookignService.reserveAll(batch);
+
+        Assertions.assertEquals(BookingOutcome.CREATED, results.get(0).getOutcome());
+        Assertions.assertEquals(BookingOutcome.CREATED, results.get(2).getOutcome());
+        Assertions.assertEquals(BookingOutcome.UNAVAILABLE, results.get(3).getOutcome());
+        Assertions.assertEquals(BookingOutcome.BAD_DATES, results.get(4).getOutcome());
+    }
+
+    @Test
+    public void whenReserveAllWithoutIndex_thenCheckCapacityTogether() {
+        BookingServiceImpl withoutIndex = new BookingServiceImpl(reservationRepository, Mockito.mock(ArchivedReservationRepository.class),
+                Mockito.mock(OccupancyIndex.class), Mockito.mock(StatusCache.class), sites, Mockito.mock(NightInventory.class));
+        LocalDate start = LocalDate.now().plusDays(10);
+        List<Reservation> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            batch.add(new Reservation("R" + i, i + "@email.com", start, start.plusDays(1)));
+        }
+        when(reservationRepository.saveAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        List<BookingResult> results = withoutIndex.reserveAll(batch);
+
+        Assertions.assertEquals(BookingOutcome.CREATED, results.get(2).getOutcome());
+        Assertions.assertEquals(BookingOutcome.UNAVAILABLE, results.get(3).getOutcome());
+        verify(reservationRepository, times(1)).findSiteOccupancy(any(), any(), any());
+    }
+
     @Test
     public void whenGetReservation_thenReturnRes() {
         Reservation res = bookignService.getReservation(Long.valueOf(1));
@@ -79,17 +134,38 @@ public class ServiceUnitTest {
         Assertions.assertEquals(res, null);
     }
 
-    @Test void whenUpdate_thenReturnRes() {
+    @Test void whenChange_thenReturnUpdated() {
+        when(reservationRepository.existsByIdAndSiteAndCancelledFalse(eq(Long.valueOf(1)), eq("main"))).thenReturn(true);
+        when(reservationRepository.update(eq(Long.valueOf(1)), eq("main"), any(), any(), any(), any())).thenReturn(1);
         Reservation res1 = new Reservation("A", "A@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
-        Reservation res = bookignService.update(Long.valueOf(1), res1);
-        Assertions.assertNotEquals(res, null);
+        BookingResult res = bookignService.change("main", Long.valueOf(1), res1);
+        Assertions.assertEquals(BookingOutcome.UPDATED, res.getOutcome());
     }
 
-    @Test void whenUpdateNotFound_thenReturnNull() {
-        when(reservationRepository.findById(anyLong())).thenReturn(Optional.empty());
+    @Test void whenChangeNotFound_thenReturnNotFound() {
+        when(reservationRepository.existsByIdAndSiteAndCancelledFalse(anyLong(), any())).thenReturn(false);
         Reservation res1 = new Reservation("A", "A@email.com", LocalDate.now().plusDays(1), LocalDate.now().plusDays(2));
-        Reservation res = bookignService.update(Long.valueOf(1), res1);
-        Assertions.assertEquals(res, null);
+        BookingResult res = bookignService.change("main", Long.valueOf(1), res1);
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, res.getOutcome());
+    }
+
+    @Test void whenCancel_thenReportFoundFromRowCount() {
+        when(reservationRepository.cancel(eq(Long.valueOf(1)), eq("main"))).thenReturn(1);
+        Assertions.assertEquals(BookingOutcome.CANCELLED, bookignService.cancel("main", Long.valueOf(1)).getOutcome());
+        Assertions.assertEquals(BookingOutcome.NOT_FOUND, bookignService.cancel("main", Long.valueOf(2)).getOutcome());
+    }
+
+    @Test
+    public void whenRangePastIndexWindow_thenCountRemainingFromQuery() {
+        LocalDate start = LocalDate.now().plusDays(100);
+        List<ReservationNights> nights = new ArrayList<>();
+        nights.add(new ReservationNights(7, start.minusDays(1), start.plusDays(2)));
+        nights.add(new ReservationNights(8, start.plusDays(1), start.plusDays(3)));
+        when(reservationRepository.findSiteOccupancy(eq("main"), any(), any())).thenReturn(nights);
+
+        Assertions.assertArrayEquals(new int[]{2, 1, 2, 3}, bookignService.getRemainingCapacity("main", start, start.plusDays(4)));
+        Assertions.assertTrue(bookignService.verifyRange(LocalDate.now().plusDays(1), LocalDate.now().plusDays(300)));
+        Assertions.assertFalse(bookignService.verifyRange(LocalDate.now().plusDays(1), LocalDate.now().plusDays(400)));
     }
 
     @Test
@@ -0,0 +1,83 @@
+package com.demo.upgrade;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Boots the application on H2 and reports time to ready, the first status request and how many
+ * requests it takes for latency to settle. One configuration per JVM, so JIT state does not carry over:
+ * mvn test -Dtest=StartupMeasurementTest -Dupgrade.perf=true [-Dupgrade.startup.profile=fast-start]
+ */
+@EnabledIfSystemProperty(named = "upgrade.perf", matches = "true")
+public class StartupMeasurementTest {
+
+    private static final int REQUESTS = 3000;
+
+    private static final int WINDOW = 100;
+
+    private Logger logger = LoggerFactory.getLogger(StartupMeasurementTest.class);
+
+    @Test
+    public void measureStartup() throws Exception {
+        List<String> args = new ArrayList<>(List.of("--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:startup;DB_CLOSE_DELAY=-1",
+                "--spring.datasource.driverClassName=org.h2.Driver",
+                "--spring.datasource.username=sa",
+                "--spring.datasource.password=",
+                "--spring.jpa.database-platform=org.hibernate.dialect.H2Dialect"));
+        String profile = System.getProperty("upgrade.startup.profile", "");
+        if (!profile.isEmpty()) {
+            args.add("--spring.profiles.active=" + profile);
+        }
+
+        long started = System.nanoTime();
+        ConfigurableApplicationContext context = SpringApplication.run(UpgradeApplication.class, args.toArray(new String[0]));
+        long ready = System.nanoTime();
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest status = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/booking/status")).GET().build();
+            long[] latencies = new long[REQUESTS];
+            for (int i = 0; i < REQUESTS; i++) {
+                long sent = System.nanoTime();
+                client.send(status, HttpResponse.BodyHandlers.ofString());
+                latencies[i] = System.nanoTime() - sent;
+            }
+            long firstRequest = ready + latencies[0] - started;
+            double steady = mean(latencies, REQUESTS - WINDOW, REQUESTS);
+            int settled = REQUESTS;
+            for (int i = 0; i + WINDOW <= REQUESTS; i += WINDOW) {
+                if (mean(latencies, i, i + WINDOW) <= steady * 1.2) {
+                    settled = i + WINDOW;
+                    break;
+                }
+            }
+            logger.info(String.format("profile=%s ready %d ms, first request answered %d ms after start (%.2f ms), " +
+                            "requests 2-%d %.2f ms, steady %.3f ms/request reached after %d requests",
+                    profile.isEmpty() ? "default" : profile, (ready - started) / 1_000_000, firstRequest / 1_000_000,
+                    latencies[0] / 1e6, WINDOW, mean(latencies, 1, WINDOW), steady, settled));
+        } finally {
+            context.close();
+        }
+    }
+
+    private double mean(long[] latencies, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += latencies[i];
+        }
+        return sum / (double) (to - from) / 1e6;
+    }
+}
@@ -0,0 +1,84 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.repository.ReservationRepository;
+import com.demo.upgrade.service.OccupancyIndex;
+import com.demo.upgrade.service.Sites;
+import com.demo.upgrade.service.StatusCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+public class StatusCacheTest {
+
+    private OccupancyIndex occupancyIndex;
+
+    private StatusCache statusCache;
+
+    private LocalDate tomorrow = LocalDate.now().plusDays(1);
+
+    private List<String> days = Collections.singletonList("");
+
+    @BeforeEach
+    public void setUp() {
+        Sites sites = new Sites(new MockEnvironment().withProperty("upgrade.reservation.size", "3").withProperty("upgrade.sites", "main,lake"));
+        occupancyIndex = new OccupancyIndex(Mockito.mock(ReservationRepository.class), sites);
+        ReflectionTestUtils.setField(occupancyIndex, "days", 64);
+        occupancyIndex.rebuild();
+        statusCache = new StatusCache(occupancyIndex, sites, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(statusCache, "maxSize", 2);
+        statusCache.init();
+    }
+
+    @Test
+    public void whenOverlappingChange_thenOnlyOverlappingRangesDropped() {
+        statusCache.put("main", tomorrow, tomorrow.plusDays(3), days, occupancyIndex.getVersion("main"));
+        statusCache.put("main", tomorrow.plusDays(5), tomorrow.plusDays(9), days, occupancyIndex.getVersion("main"));
+
+        occupancyIndex.add("main", 1, tomorrow.plusDays(2), tomorrow.plusDays(4));
+
+        Assertions.assertNull(statusCache.get("main", tomorrow, tomorrow.plusDays(3)));
+        Assertions.assertSame(days, statusCache.get("main", tomorrow.plusDays(5), tomorrow.plusDays(9)));
+        Assertions.assertEquals(1, statusCache.getHits());
+        Assertions.assertEquals(1, statusCache.getMisses());
+    }
+
+    @Test
+    public void whenComputedBeforeChange_thenNotCached() {
+        long version = occupancyIndex.getVersion("main");
+        occupancyIndex.add("main", 1, tomorrow, tomorrow.plusDays(1));
+        statusCache.put("main", tomorrow, tomorrow.plusDays(3), days, version);
+        Assertions.assertNull(statusCache.get("main", tomorrow, tomorrow.plusDays(3)));
+    }
+
+    @Test
+    public void whenFull_thenEvictsLeastRecentlyUsed() {
+        long version = occupancyIndex.getVersion("main");
+        statusCache.put("main", tomorrow, tomorrow.plusDays(1), days, version);
+        statusCache.put("main", tomorrow, tomorrow.plusDays(2), days, version);
+        statusCache.get("main", tomorrow, tomorrow.plusDays(1));
+        statusCache.put("main", tomorrow, tomorrow.plusDays(3), days, version);
+
+        Assertions.assertNull(statusCache.get("main", tomorrow, tomorrow.plusDays(2)));
+        Assertions.assertNotNull(statusCache.get("main", tomorrow, tomorrow.plusDays(1)));
+        Assertions.assertEquals(1, statusCache.getEvictions());
+    }
+
+    @Test
+    public void whenOtherSiteChanged_thenEntriesKept() {
+        statusCache.put("main", tomorrow, tomorrow.plusDays(3), days, occupancyIndex.getVersion("main"));
+        statusCache.put("lake", tomorrow, tomorrow.plusDays(3), days, occupancyIndex.getVersion("lake"));
+
+        occupancyIndex.add("lake", 1, tomorrow, tomorrow.plusDays(2));
+
+        Assertions.assertSame(days, statusCache.get("main", tomorrow, tomorrow.plusDays(3)));
+        Assertions.assertNull(statusCache.get("lake", tomorrow, tomorrow.plusDays(3)));
+    }
+}
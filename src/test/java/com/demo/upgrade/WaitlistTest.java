@@ -0,0 +1,86 @@
+package com.demo.upgrade;
+
+import com.demo.upgrade.model.Reservation;
+import com.demo.upgrade.model.WaitlistEntry;
+import com.demo.upgrade.service.BookingService;
+import com.demo.upgrade.service.Waitlist;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"spring.datasource.generate-unique-name=true", "upgrade.reservation.size=1",
+        "upgrade.waitlist.allocate-interval=3600000", "upgrade.waitlist.batch-size=2"})
+public class WaitlistTest {
+
+    @Autowired
+    private Waitlist waitlist;
+
+    @Autowired
+    private BookingService bookingService;
+
+    @Test
+    public void whenNightsFreed_thenOldestFittingEntryBooked() {
+        LocalDate start = LocalDate.now().plusDays(3);
+        Long booked = bookingService.reserve(new Reservation("A", "a@email.com", start, start.plusDays(2)));
+        WaitlistEntry first = waitlist.join(Reservation.DEFAULT_SITE, "W1", "w1@email.com", start, start.plusDays(1));
+        WaitlistEntry second = waitlist.join(Reservation.DEFAULT_SITE, "W2", "w2@email.com", start, start.plusDays(1));
+        WaitlistEntry later = waitlist.join(Reservation.DEFAULT_SITE, "W3", "w3@email.com", start.plusDays(2), start.plusDays(3));
+        waitlist.allocate();
+        Assertions.assertNull(waitlist.getEntry(first.getId()).getReservationId());
+        Assertions.assertNotNull(waitlist.getEntry(later.getId()).getReservationId());
+        Assertions.assertEquals(2, waitlist.getPending(Reservation.DEFAULT_SITE));
+
+        bookingService.cancel(Reservation.DEFAULT_SITE, booked);
+        waitlist.allocate();
+        Long reservationId = waitlist.getEntry(first.getId()).getReservationId();
+        Assertions.assertNotNull(reservationId);
+        Assertions.assertEquals("W1", bookingService.getReservation(reservationId).getName());
+        Assertions.assertNull(waitlist.getEntry(second.getId()).getReservationId());
+        Assertions.assertEquals(1, waitlist.getPending(Reservation.DEFAULT_SITE));
+
+        Assertions.assertTrue(waitlist.leave(second.getId()));
+        Assertions.assertFalse(waitlist.leave(first.getId()));
+        Assertions.assertNull(waitlist.getEntry(second.getId()));
+    }
+
+    @Test
+    public void whenOldestEntriesCannotFit_thenLaterEntriesBookedInBatchesOldestFirst() {
+        LocalDate start = LocalDate.now().plusDays(10);
+        Assertions.assertNotNull(bookingService.reserve(new Reservation("Full", "full@email.com", start.plusDays(1), start.plusDays(2))));
+        WaitlistEntry blocked1 = waitlist.join(Reservation.DEFAULT_SITE, "B1", "b1@email.com", start, start.plusDays(2));
+        WaitlistEntry blocked2 = waitlist.join(Reservation.DEFAULT_SITE, "B2", "b2@email.com", start, start.plusDays(2));
+        List<WaitlistEntry> fitting = new ArrayList<>();
+        for (int i = 3; i <= 6; i++) {
+            fitting.add(waitlist.join(Reservation.DEFAULT_SITE, "F" + i, "f" + i + "@email.com", start.plusDays(i), start.plusDays(i + 1)));
+        }
+        WaitlistEntry behind = waitlist.join(Reservation.DEFAULT_SITE, "F7", "f7@email.com", start.plusDays(6), start.plusDays(7));
+
+        waitlist.allocate();
+        Assertions.assertNotNull(waitlist.getEntry(fitting.get(0).getId()).getReservationId());
+        Assertions.assertNotNull(waitlist.getEntry(fitting.get(1).getId()).getReservationId());
+        Assertions.assertNull(waitlist.getEntry(fitting.get(2).getId()).getReservationId());
+
+        waitlist.allocate();
+        Assertions.assertNotNull(waitlist.getEntry(fitting.get(2).getId()).getReservationId());
+        Assertions.assertNotNull(waitlist.getEntry(fitting.get(3).getId()).getReservationId());
+        Assertions.assertNull(waitlist.getEntry(behind.getId()).getReservationId());
+
+        waitlist.allocate();
+        Assertions.assertNull(waitlist.getEntry(blocked1.getId()).getReservationId());
+        Assertions.assertNull(waitlist.getEntry(blocked2.getId()).getReservationId());
+        Assertions.assertNull(waitlist.getEntry(behind.getId()).getReservationId());
+        Assertions.assertEquals(3, waitlist.getPending(Reservation.DEFAULT_SITE));
+
+        Assertions.assertTrue(waitlist.leave(blocked1.getId()));
+        Assertions.assertTrue(waitlist.leave(blocked2.getId()));
+        Assertions.assertTrue(waitlist.leave(behind.getId()));
+    }
+}